@@ -0,0 +1,35 @@
+package iota.bench;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+/*
+ * The Clojure functions benchmarks call into, loaded once.
+ */
+public class Clj {
+
+    static {
+	Var require = RT.var("clojure.core", "require");
+	require.invoke(Symbol.intern("clojure.core.reducers"));
+	require.invoke(Symbol.intern("iota"));
+    }
+
+    public static final IFn FOLD     = RT.var("clojure.core.reducers", "fold");
+    public static final IFn REDUCE   = RT.var("clojure.core", "reduce");
+    public static final IFn LINE_SEQ = RT.var("clojure.core", "line-seq");
+    public static final IFn PLUS     = RT.var("clojure.core", "+");
+
+    // Sum the length of every line, treating nil (empty lines) as 0
+    public static final IFn SUM_LENGTHS = new AFn() {
+	    public Object invoke() {
+		return 0L;
+	    }
+
+	    public Object invoke(Object acc, Object line) {
+		return ((Long)acc) + ((line == null) ? 0 : ((String)line).length());
+	    }
+	};
+}
@@ -0,0 +1,37 @@
+package iota.bench;
+
+import java.io.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * A generated data file shared by every benchmark in a run.  Override the
+ * shape of the file from the command line, e.g.
+ *   -p fileSize=1073741824 -p lineLength=200 -p separator=9
+ */
+@State(Scope.Benchmark)
+public class DataFile {
+
+    @Param({"16777216"}) // 16MB
+    public long fileSize;
+
+    @Param({"80"})
+    public int lineLength;
+
+    @Param({"10"}) // ASCII newline
+    public byte separator;
+
+    public File   file;
+    public String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	file = Files.generate(fileSize, lineLength, separator);
+	path = file.getAbsolutePath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	file.delete();
+    }
+}
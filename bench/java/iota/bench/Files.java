@@ -0,0 +1,34 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.Random;
+
+/*
+ * Generates the temporary data files benchmarks run against.
+ */
+public class Files {
+
+    // Write roughly size bytes of printable lines averaging lineLength bytes, ending in sep
+    public static File generate(long size, int lineLength, byte sep) throws IOException {
+	File         f    = File.createTempFile("iota-bench", ".txt");
+	OutputStream out  = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+	Random       rand = new Random(42); // Same file for every run
+	long         pos  = 0;
+
+	f.deleteOnExit();
+	try {
+	    while(pos < size) {
+		int len = 1 + rand.nextInt(2 * lineLength - 1);
+		for(int i = 0; i < len - 1; i++) {
+		    int c = 32 + rand.nextInt(95);
+		    out.write((byte)c == sep ? 'x' : c);
+		}
+		out.write(sep);
+		pos += len;
+	    }
+	} finally {
+	    out.close();
+	}
+	return f;
+    }
+}
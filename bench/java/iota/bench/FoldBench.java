@@ -0,0 +1,104 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import iota.FileRecordSeq;
+import iota.FileSeq;
+import iota.FileVector;
+
+/*
+ * clojure.core.reducers/fold over each collection type, summing line
+ * lengths, on a ForkJoinPool of the given size.  The reducers run their
+ * tasks in the pool they're invoked from, so this controls the fold's
+ * parallelism.  Serial reduces over each collection are included (they
+ * ignore threads), and the baseline is a serial reduce over line-seq.
+ *
+ *   lein with-profile +bench run FoldBench -p threads=1,2,4,8,16,32
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FoldBench {
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"512"})
+    public long n;
+
+    public ForkJoinPool  pool;
+    public FileVector    vec;
+    public FileSeq       seq;
+    public FileRecordSeq recSeq;
+
+    @Setup(Level.Trial)
+    public void setup(DataFile d) throws IOException {
+	pool   = new ForkJoinPool(threads);
+	vec    = new FileVector(d.path, 10, d.separator);
+	seq    = new FileSeq(d.path, 262144, d.separator);
+	recSeq = new FileRecordSeq(d.path, 262144, new byte[]{d.separator});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	pool.shutdown();
+    }
+
+    Object fold(final Object coll) throws Exception {
+	return pool.submit(new Callable<Object>() {
+		public Object call() {
+		    return Clj.FOLD.invoke(n, Clj.PLUS, Clj.SUM_LENGTHS, coll);
+		}
+	    }).get();
+    }
+
+    @Benchmark
+    public Object foldVec() throws Exception {
+	return fold(vec);
+    }
+
+    @Benchmark
+    public Object foldSeq() throws Exception {
+	return fold(seq);
+    }
+
+    @Benchmark
+    public Object foldRecSeq() throws Exception {
+	return fold(recSeq);
+    }
+
+    // Serial, single pass reduce
+    @Benchmark
+    public Object reduceVec() {
+	return Clj.REDUCE.invoke(Clj.SUM_LENGTHS, 0L, vec);
+    }
+
+    @Benchmark
+    public Object reduceSeq() {
+	return Clj.REDUCE.invoke(Clj.SUM_LENGTHS, 0L, seq);
+    }
+
+    @Benchmark
+    public Object reduceRecSeq() {
+	return Clj.REDUCE.invoke(Clj.SUM_LENGTHS, 0L, recSeq);
+    }
+
+    // Baseline; only meaningful for the default newline separator
+    @Benchmark
+    public Object reduceLineSeq(DataFile d) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(d.file), "UTF-8"));
+	try {
+	    return Clj.REDUCE.invoke(Clj.SUM_LENGTHS, 0L, Clj.LINE_SEQ.invoke(r));
+	} finally {
+	    r.close();
+	}
+    }
+}
@@ -0,0 +1,49 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import iota.FileVector;
+
+/*
+ * Opening a FileVector, which maps and indexes the whole file, with and
+ * without a valid sidecar index file.
+ *
+ *   lein with-profile +bench run IndexBench -p fileSize=1073741824
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBench {
+
+    @Param({"10", "1000"})
+    public int chunkSize;
+
+    public String indexFile;
+
+    @Setup(Level.Trial)
+    public void setup(DataFile d) throws IOException {
+	indexFile = d.path + ".idx";
+	new FileVector(d.path, chunkSize, d.separator, indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	new File(indexFile).delete();
+    }
+
+    @Benchmark
+    public FileVector build(DataFile d) throws IOException {
+	return new FileVector(d.path, chunkSize, d.separator);
+    }
+
+    @Benchmark
+    public FileVector loadIndexFile(DataFile d) throws IOException {
+	return new FileVector(d.path, chunkSize, d.separator, indexFile);
+    }
+}
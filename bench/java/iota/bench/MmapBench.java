@@ -0,0 +1,83 @@
+package iota.bench;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import iota.Mmap;
+
+/*
+ * Concurrent random reads through Mmap.get, against the previous design
+ * of a single shared buffer guarded by a monitor.
+ *
+ * Run at increasing thread counts to see how each scales, e.g.
+ *   lein with-profile +bench run MmapBench -t 1
+ *   lein with-profile +bench run MmapBench -t 32
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MmapBench {
+
+    @State(Scope.Benchmark)
+    public static class Data {
+	@Param({"4096"})
+	public int readSize;
+
+	public long             fileSize;
+	public Mmap             map;
+	public MappedByteBuffer shared;
+	public FileInputStream  fis;
+
+	@Setup
+	public void setup(DataFile d) throws IOException {
+	    fileSize = Math.min( d.fileSize, (long)Integer.MAX_VALUE );
+	    map      = new Mmap(d.path);
+	    fis      = new FileInputStream(d.file);
+	    shared   = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+	    fis.close();
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+	public Random rand = new Random();
+	public byte[] buf;
+
+	@Setup
+	public void setup(Data d) {
+	    buf = new byte[d.readSize];
+	}
+
+	long nextPos(Data d) {
+	    return (long)(rand.nextDouble() * (d.fileSize - d.readSize));
+	}
+    }
+
+    @Benchmark
+    public void get(Data d, Reader r, Blackhole bh) {
+	d.map.get(r.buf, r.nextPos(d), d.readSize);
+	bh.consume(r.buf);
+    }
+
+    @Benchmark
+    public void lockedGet(Data d, Reader r, Blackhole bh) {
+	int pos = (int)r.nextPos(d);
+	synchronized(d.shared) {
+	    d.shared.position(pos);
+	    d.shared.get(r.buf, 0, d.readSize);
+	}
+	bh.consume(r.buf);
+    }
+}
@@ -0,0 +1,75 @@
+package iota.bench;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import iota.Scanner;
+
+/*
+ * Separator scanning over a mapped file; Scanner's word at a time search
+ * against the byte at a time loops it replaced.
+ *
+ *   lein with-profile +bench run ScannerBench -p lineLength=10,80,1000
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScannerBench {
+
+    public int              fileSize;
+    public byte             sep;
+    public FileInputStream  fis;
+    public MappedByteBuffer mb;
+
+    @Setup
+    public void setup(DataFile d) throws IOException {
+	fileSize = (int)Math.min( d.fileSize, (long)Integer.MAX_VALUE );
+	sep      = d.separator;
+	fis      = new FileInputStream(d.file);
+	mb       = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	fis.close();
+    }
+
+    @Benchmark
+    public long countSwar() {
+	return Scanner.count(mb, 0, fileSize, sep);
+    }
+
+    @Benchmark
+    public long countBytewise() {
+	long n = 0;
+	for(int i = 0; i < fileSize; i++)
+	    if(mb.get(i) == sep)
+		n++;
+	return n;
+    }
+
+    // Walk every line, as the seq and index readers do
+    @Benchmark
+    public long indexOfSwar() {
+	long n = 0;
+	for(int i = Scanner.indexOf(mb, 0, fileSize, sep); i >= 0; i = Scanner.indexOf(mb, i + 1, fileSize, sep))
+	    n += i;
+	return n;
+    }
+
+    @Benchmark
+    public long indexOfBytewise() {
+	long n = 0;
+	for(int i = 0; i < fileSize; i++)
+	    if(mb.get(i) == sep)
+		n += i;
+	return n;
+    }
+}
@@ -0,0 +1,63 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import clojure.lang.ISeq;
+
+import iota.FileChunkSeq;
+import iota.FileRecordSeq;
+import iota.FileSeq;
+
+/*
+ * Walking each seq type with first/next, against clojure.core/line-seq.
+ *
+ *   lein with-profile +bench run SeqBench
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeqBench {
+
+    @Param({"262144"}) // 256KB
+    public int bufsize;
+
+    static void walk(ISeq s, Blackhole bh) {
+	for(; s != null; s = s.next())
+	    bh.consume(s.first());
+    }
+
+    @Benchmark
+    public void fileSeq(DataFile d, Blackhole bh) throws IOException {
+	walk(new FileSeq(d.path, bufsize, d.separator), bh);
+    }
+
+    @Benchmark
+    public void fileRecordSeq(DataFile d, Blackhole bh) throws IOException {
+	walk(new FileRecordSeq(d.path, bufsize, new byte[]{d.separator}), bh);
+    }
+
+    @Benchmark
+    public void fileChunkSeq(DataFile d, Blackhole bh) throws IOException {
+	for(ISeq s = new FileChunkSeq(new FileRecordSeq(d.path, bufsize, new byte[]{d.separator})); s != null; s = s.next())
+	    for(Object line : (Object[])s.first())
+		bh.consume(line);
+    }
+
+    // Baseline; only meaningful for the default newline separator
+    @Benchmark
+    public void lineSeq(DataFile d, Blackhole bh) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(d.file), "UTF-8"));
+	try {
+	    walk((ISeq)Clj.LINE_SEQ.invoke(r), bh);
+	} finally {
+	    r.close();
+	}
+    }
+}
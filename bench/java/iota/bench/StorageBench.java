@@ -0,0 +1,73 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import clojure.lang.AFn;
+
+import iota.ByteRecord;
+import iota.Charsets;
+import iota.FileSeq;
+import iota.FileVector;
+import iota.Mmap;
+
+/*
+ * Each way of reading a file, mapped or with positional reads: a single
+ * pass reduce over every line, and random lines from a vec.  Run on the
+ * filesystem and under the memory limits of the deployment to pick one, e.g.
+ *   lein with-profile +bench run StorageBench -t 8 -p fileSize=4294967296
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StorageBench {
+
+    @State(Scope.Benchmark)
+    public static class Data {
+	@Param({"false", "true"})
+	public boolean pread;
+
+	public FileVector v;
+
+	@Setup
+	public void setup(DataFile d) throws IOException {
+	    v = new FileVector(Mmap.open(d.path, pread), 10, d.separator, null, 64, Charsets.UTF8, false);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+	    v.close();
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+	public Random rand = new Random();
+    }
+
+    @Benchmark
+    public Object reduce(Data data, DataFile d) throws IOException {
+	FileSeq s = new FileSeq(Mmap.open(d.path, data.pread), 262144, d.separator, Charsets.UTF8);
+	try {
+	    return s.reduceBytes(new AFn() {
+		    public Object invoke(Object acc, Object rec) {
+			return (Long)acc + ((ByteRecord)rec).length();
+		    }
+		}, 0L);
+	} finally {
+	    s.close();
+	}
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void nth(Data data, Reader r, Blackhole bh) {
+	bh.consume(data.v.getRecord(r.rand.nextInt(data.v.count())).getBytes());
+    }
+}
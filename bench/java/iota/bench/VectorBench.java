@@ -0,0 +1,59 @@
+package iota.bench;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import iota.FileVector;
+
+/*
+ * Sequential and random nth over a FileVector.  Random lookups are per
+ * operation, so run with -t N to measure concurrent readers.
+ *
+ *   lein with-profile +bench run VectorBench -t 8
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VectorBench {
+
+    @State(Scope.Benchmark)
+    public static class Vec {
+	@Param({"10"})
+	public int chunkSize;
+
+	@Param({"64"})
+	public int cacheSize;
+
+	public FileVector v;
+
+	@Setup(Level.Trial)
+	public void setup(DataFile d) throws IOException {
+	    v = new FileVector(d.path, chunkSize, d.separator, null, cacheSize);
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+	public Random rand = new Random();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sequentialNth(Vec s, Blackhole bh) {
+	FileVector v = s.v;
+	for(int i = 0, n = v.count(); i < n; i++)
+	    bh.consume(v.nth(i));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String randomNth(Vec s, Reader r) {
+	return s.v.nth(r.rand.nextInt(s.v.count()));
+    }
+}
@@ -3,10 +3,14 @@
   :url                "https://github.com/thebusby/iota"
   :license            {:name "MIT"
                        :url "http://opensource.org/licenses/MIT"}
-  :dependencies       [[org.clojure/clojure "1.5.1"]
-                       [org.codehaus.jsr166-mirror/jsr166y "1.7.0"] ;; To support reducers on Java 1.6
-                       ]
+  :dependencies       [[org.clojure/clojure "1.5.1"]]
   :source-paths       ["src/clj"]
   :java-source-paths  ["src/java"]
+  :javac-options      ["-source" "1.8" "-target" "1.8"] ;; Spliterators for java.util.stream
   :source-path        "src/clj"
-  :java-source-path   "src/java")
+  :java-source-path   "src/java"
+  :profiles           {:bench {:dependencies      [[org.openjdk.jmh/jmh-core "1.37"]
+                                                   [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]
+                               :java-source-paths ["bench/java"]
+                               :javac-options     ^:replace ["-source" "1.8" "-target" "1.8"] ;; JMH requires Java 8
+                               :main              org.openjdk.jmh.Main}})
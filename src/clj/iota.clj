@@ -1,7 +1,9 @@
 (ns iota
   "A set of tools for using reducers over potentially very large text files."
-  (:require [clojure.core.reducers :as r])
-  (:import (iota FileVector NumberedFileVector FileSeq FileRecordSeq FileChunkSeq))
+  (:require [clojure.core.reducers :as r]
+            [clojure.core.protocols :as p])
+  (:import (iota FileVector NumberedFileVector FileSeq FileRecordSeq FileChunkSeq ByteReducible
+                 MultiFileVector MultiFileSeq GzipSeq GzipVector MatchVector))
   (:refer-clojure :exclude [vec subvec seq]))
 
 (set! *warn-on-reflection* true)
@@ -11,60 +13,571 @@
 ;; Public functions
 ;; ;;; ;; ;;; ;; ;;; ;; ;;; ;; ;;; ;; ;;; ;; ;;; ;; ;;; ;; ;;;
 
-(defn ^iota.FileSeq seq
+(defn- ^java.nio.charset.Charset charset
+  "Coerce a Charset, or the name of one as a String or keyword, to a Charset."
+  [cs]
+  (if (instance? java.nio.charset.Charset cs)
+    cs
+    (java.nio.charset.Charset/forName (name cs))))
+
+(defn- ^"[B" separator-bytes
+  "Coerce a byte, or a sequence of them, to a byte array."
+  [separator]
+  (if (sequential? separator)
+    (byte-array (map byte separator))
+    (byte-array [(byte separator)])))
+
+(defn- files
+  "Return the files to open for a path or paths: nil for a single file, or
+   else every file given, with each directory replaced by the files in it
+   (excluding hidden ones) sorted by name."
+  [paths]
+  (let [dir (fn [^java.io.File d]
+              (->> (.listFiles d)
+                   (filter #(and (.isFile ^java.io.File %) (not (.isHidden ^java.io.File %))))
+                   (sort-by #(.getName ^java.io.File %))
+                   (map #(.getPath ^java.io.File %))))
+        expand (fn [path]
+                 (let [f (java.io.File. (str path))]
+                   (if (.isDirectory f) (dir f) [(str path)])))]
+    (cond
+      (sequential? paths) (clojure.core/vec (mapcat expand paths))
+      (.isDirectory (java.io.File. (str paths))) (clojure.core/vec (expand paths)))))
+
+(defn- pread?
+  "Whether options ask for the file to be read with positional reads, :io
+   :pread, rather than mapped, :io :mmap (the default)."
+  [opts]
+  (case (:io opts :mmap)
+    :mmap false
+    :pread true
+    (throw (IllegalArgumentException. (str "Unknown :io " (:io opts) ", use :mmap or :pread")))))
+
+(defn- open-seq
+  [filename buffer-size byte-separator encoding pread]
+  (if-let [fs (files filename)]
+    (MultiFileSeq/open (into-array String fs) (int buffer-size) (byte byte-separator) (charset encoding) (boolean pread))
+    (FileSeq. (iota.Mmap/open ^String filename (boolean pread)) (int buffer-size) (byte byte-separator) (charset encoding))))
+
+(defn seq
   "Return a seq like structure over an mmap'd file on disk. Poor performance
    for typical ISeq access (first, next, etc), but fast when reduced over.
 
    You can provide a buffer size in *bytes*, which indicates the buffer size
    to read from disk from, as well as the smallest set of data to fork.
-   A byte can be provided to indicate separation between records.
+   A byte can be provided to indicate separation between records, and a
+   Charset (or its name) to decode them with.
+
+   Alternatively, provide a map of options with any of :buffer-size,
+   :separator, :charset, and :io. :io :pread reads the file with positional
+   reads through small direct buffers instead of mapping it, for
+   filesystems where page faults are slow or containers where mapped pages
+   count against memory.
 
-   Default values are a 256KB buffer, and separation on 10 (Newline in ASCII)."
-  ([^java.lang.String filename] (FileSeq. filename))
-  ([^java.lang.String filename buffer-size] (FileSeq. filename (int buffer-size)))
-  ([^java.lang.String filename buffer-size byte-separator] (FileSeq. filename (int buffer-size) (byte byte-separator))))
+   Default values are a 256KB buffer, separation on 10 (Newline in ASCII), and UTF-8.
+   Files known to be ASCII or ISO-8859-1 decode fastest given that charset.
 
-(defn ^iota.FileVector vec
+   In place of filename, a directory or a sequence of files and directories
+   may be given to treat all of their files, in order, as one seq. Folds over
+   it are split across the files by size. Empty files are skipped, and if
+   every file is empty the result is nil."
+  ([filename] (seq filename {}))
+  ([filename buffer-size]
+   (if (map? buffer-size)
+     (let [{:keys [buffer-size separator] :as opts
+            :or   {buffer-size 262144 separator 10}} buffer-size]
+       (open-seq filename buffer-size separator (:charset opts "UTF-8") (pread? opts)))
+     (seq filename buffer-size 10)))
+  ([filename buffer-size byte-separator] (seq filename buffer-size byte-separator "UTF-8"))
+  ([filename buffer-size byte-separator encoding]
+   (open-seq filename buffer-size byte-separator encoding false)))
+
+(defn vec
   "Return a vector like structure mmap'd over a file on disk.
 
    On creation, an index of the file will be constructed so random access will be O(1),
    similar to a normal Clojure vector. This is significantly more memory effecient than
    a vector of Strings.
 
-   You can provide the chunk size and a single char field delimiter as well."
-  ([^java.lang.String filename] (FileVector. filename))
-  ([^java.lang.String filename chunk-size] (new iota.FileVector filename (int chunk-size)))
-  ([^java.lang.String filename chunk-size byte-separator] (new iota.FileVector filename (int chunk-size) (byte byte-separator))))
+   You can provide the chunk size and a single char field delimiter as well.
+
+   If an index file path is provided, the index is read from it when it's still
+   valid for the file (same size, mtime, sampled checksum, chunk size and
+   separator), otherwise it's built as usual and written there for next time.
+
+   Alternatively, provide a map of options;
+     :chunk-size  lines decoded and cached together, and lines per entry
+                  in the index (default 10). 1 indexes every line, so
+                  reading any one line decodes just that line
+     :separator   byte separating lines (default 10, Newline in ASCII)
+     :index-file  path of a sidecar file to keep the index in (default none)
+     :cache-size  number of decoded chunks to cache, shared by subvecs (default 64)
+     :charset     Charset, or its name, to decode lines with (default UTF-8)
+     :off-heap    keep the index in direct buffers off the heap (default false)
+     :io          :mmap to map the file (default), or :pread to read it with
+                  positional reads, as with seq
+
+   The index is compressed to a little over the bits needed for the bytes
+   spanned by 64 entries per entry; see index-stats. Files may have more
+   lines than an int can count: count then throws, as Counted can't answer,
+   but seq, reduce, fold, and subvec reach every line, and longCount and
+   nth on a long give the rest.
+
+   In place of filename, a directory or a sequence of files and directories
+   may be given to treat all of their files, in order, as one vector, with
+   the files indexed concurrently. nth finds a line's file by binary search,
+   and folds split by line count however the lines are spread over the
+   files. Each file gets its own cache of :cache-size chunks, and an index
+   file can't be kept."
+  ([filename]
+   (if (files filename)
+     (vec filename {})
+     (FileVector. ^String filename)))
+  ([filename chunk-size]
+   (if (map? chunk-size)
+     (let [{:keys [chunk-size separator index-file cache-size off-heap] :as opts
+            :or   {chunk-size 10 separator 10 cache-size 64 off-heap false}} chunk-size]
+       (if-let [fs (files filename)]
+         (if index-file
+           (throw (IllegalArgumentException. "An index file can only be kept for a single file"))
+           (MultiFileVector/open (into-array String fs) (int chunk-size) (byte separator) (int cache-size)
+                                 (charset (:charset opts "UTF-8")) (boolean off-heap) (pread? opts)))
+         (new iota.FileVector (iota.Mmap/open ^String filename (pread? opts)) (int chunk-size) (byte separator)
+              ^String index-file (int cache-size) (charset (:charset opts "UTF-8")) (boolean off-heap))))
+     (if (files filename)
+       (vec filename {:chunk-size chunk-size})
+       (new iota.FileVector ^String filename (int chunk-size)))))
+  ([filename chunk-size byte-separator]
+   (if (files filename)
+     (vec filename {:chunk-size chunk-size :separator byte-separator})
+     (new iota.FileVector ^String filename (int chunk-size) (byte byte-separator))))
+  ([filename chunk-size byte-separator ^java.lang.String index-file]
+   (if (files filename)
+     (vec filename {:chunk-size chunk-size :separator byte-separator :index-file index-file})
+     (new iota.FileVector ^String filename (int chunk-size) (byte byte-separator) index-file))))
+
+(defn ^iota.SortedFileVector sorted-vec
+  "Return an iota vec over a file sorted by its first field, which lookup
+   and key-subvec can then binary search by that key without decoding
+   anything but the lines found. The file must be sorted by its keys'
+   bytes, as `LC_ALL=C sort` orders them.
+
+   Takes the same options as vec, and a :delimiter ending each line's key
+   (default \tab)."
+  ([^java.lang.String filename] (sorted-vec filename {}))
+  ([^java.lang.String filename opts]
+   (let [{:keys [chunk-size separator index-file cache-size delimiter] :as opts
+          :or   {chunk-size 10 separator 10 cache-size 64 delimiter 9}} opts]
+     (iota.SortedFileVector. filename (int chunk-size) (byte separator) ^String index-file (int cache-size)
+                             (charset (:charset opts "UTF-8"))
+                             (byte (if (char? delimiter) (int delimiter) delimiter))))))
+
+(defn ^iota.HashIndex hash-index
+  "Build a hash index over an iota vec or seq from the column'th field
+   (default 0) of each line to the line, for lookup and lookup-all to find
+   lines by key in constant time. The table is kept off the heap, and is
+   built in parallel. Lines without that field aren't indexed.
+
+   Takes a :delimiter between fields (default \tab) and an :index-file to
+   keep the table in, which is reused while it matches the file, the lines
+   of it indexed, and their charset, and built there otherwise. close releases the table, but not the file indexed."
+  ([coll] (hash-index coll 0 {}))
+  ([coll column] (hash-index coll column {}))
+  ([coll column opts]
+   (let [{:keys [delimiter index-file] :or {delimiter 9}} opts]
+     (iota.HashIndex/build coll (int column) (byte (if (char? delimiter) (int delimiter) delimiter))
+                           ^String index-file))))
+
+(defn lookup
+  "Return the first line of a sorted-vec or hash-index with the given key,
+   or nil."
+  [idx ^String key]
+  (if (instance? iota.HashIndex idx)
+    (.lookup ^iota.HashIndex idx key)
+    (.lookup ^iota.SortedFileVector idx key)))
+
+(defn lookup-all
+  "Return every line of a sorted-vec or hash-index with the given key, in
+   file order."
+  [idx ^String key]
+  (if (instance? iota.HashIndex idx)
+    (clojure.core/vec (.lookupAll ^iota.HashIndex idx key))
+    (into [] (.keySubvec ^iota.SortedFileVector idx key))))
+
+(defn ^iota.FileVector key-subvec
+  "Return the lines of a sorted-vec with the given key, or with keys from
+   from (inclusive) to to (exclusive), as a subvec to reduce or fold over.
+   Either bound may be nil to leave that end open."
+  ([^iota.SortedFileVector v ^String key] (.keySubvec v key))
+  ([^iota.SortedFileVector v ^String from ^String to] (.keySubvec v from to)))
 
 (defn ^iota.FileRecordSeq rec-seq
   "Almost same as FileSeq but record separator can be multibyte array and
-   it will *not* strip newlines or separators from output strings."
+   it will *not* strip newlines or separators from output strings.
+
+   Takes the same options as seq, where :separator may also be a sequence of bytes."
   ([^java.lang.String filename] (FileRecordSeq. filename))
-  ([^java.lang.String filename buffer-size] (FileRecordSeq. filename (int buffer-size)))
+  ([^java.lang.String filename buffer-size]
+   (if (map? buffer-size)
+     (let [{:keys [buffer-size separator] :as opts
+            :or   {buffer-size 262144 separator 10}} buffer-size]
+       (FileRecordSeq. (iota.Mmap/open filename (pread? opts)) (int buffer-size) (separator-bytes separator)
+                       (charset (:charset opts "UTF-8"))))
+     (FileRecordSeq. filename (int buffer-size))))
   ([^java.lang.String filename buffer-size separator]
-   (FileRecordSeq. filename (int buffer-size) (if (sequential? separator)
-                                                (byte-array (map byte separator))
-                                                (byte-array [(byte separator)])))))
+   (FileRecordSeq. filename (int buffer-size) (separator-bytes separator)))
+  ([^java.lang.String filename buffer-size separator encoding]
+   (FileRecordSeq. filename (int buffer-size) (separator-bytes separator) (charset encoding))))
+
+(defn ^iota.GzipSeq gzip-seq
+  "Return a seq like structure over the lines of a blocked gzip file: one
+   made of independently compressed gzip members, such as BGZF or gzip files
+   concatenated together. Folds decompress runs of members in parallel.
+
+   Takes the same options as seq, except that the buffer size is the least
+   number of compressed bytes to fork (default 1MB). A gzip file written as a
+   single member can be read, but not in parallel."
+  ([^java.lang.String filename] (GzipSeq. filename))
+  ([^java.lang.String filename opts]
+   (let [{:keys [buffer-size separator] :as opts
+          :or   {buffer-size 1048576 separator 10}} opts]
+     (GzipSeq. filename (int buffer-size) (byte separator) (charset (:charset opts "UTF-8"))))))
+
+(defn ^iota.GzipVector gzip-vec
+  "Return a vector like structure over the lines of a blocked gzip file, as
+   gzip-seq reads. On creation every member is decompressed in parallel to
+   index the lines starting in it; nth then decompresses just the member
+   holding the line, caching the decoded lines of the last :cache-size
+   members.
+
+   Takes :separator, :cache-size (default 64) and :charset options."
+  ([^java.lang.String filename] (GzipVector. filename))
+  ([^java.lang.String filename opts]
+   (let [{:keys [separator cache-size] :as opts
+          :or   {separator 10 cache-size 64}} opts]
+     (GzipVector. filename (byte separator) (int cache-size) (charset (:charset opts "UTF-8"))))))
 
 (defn ^iota.FileChunkSeq chunk-seq
   "Returns the sequence of arrays from underlying file seq.
-   Useful for iterable folds which don't support CollFold protocol."
+   Useful for iterable folds which don't support CollFold protocol.
+
+   Takes the same arguments as rec-seq."
   ([^java.lang.String filename] (FileChunkSeq. (rec-seq filename)))
   ([^java.lang.String filename buffer-size] (FileChunkSeq. (rec-seq filename buffer-size)))
-  ([^java.lang.String filename buffer-size separator] (FileChunkSeq. (rec-seq filename buffer-size separator))))
+  ([^java.lang.String filename buffer-size separator] (FileChunkSeq. (rec-seq filename buffer-size separator)))
+  ([^java.lang.String filename buffer-size separator encoding] (FileChunkSeq. (rec-seq filename buffer-size separator encoding))))
+
+(defn- line-count
+  "The number of lines in an iota vec, which unlike count may be more than
+   Integer/MAX_VALUE."
+  [v]
+  (cond
+    (instance? iota.FileVector v) (.longCount ^iota.FileVector v)
+    (instance? iota.MultiFileVector v) (.longCount ^iota.MultiFileVector v)
+    :else (long (count v))))
 
 (defn subvec
   "Return a subset of the provided flatfileclj vector.
-   If end not provided, defaults to (count v)."
-  ([^iota.FileVector v start] (subvec v start (count v)))
-  ([^iota.FileVector v start end] (.subvec v start end)))
+   If end not provided, defaults to the end of v. start and end may be past
+   Integer/MAX_VALUE."
+  ([v start] (subvec v start (line-count v)))
+  ([v start end]
+   (cond
+     (instance? iota.MultiFileVector v) (.subvec ^iota.MultiFileVector v (long start) (long end))
+     (instance? iota.MatchVector v) (.subvec ^iota.MatchVector v (int start) (int end))
+     :else (.subvec ^iota.FileVector v (long start) (long end)))))
+
+(defn cache-stats
+  "Return the hit, miss, and eviction counts of an iota vec's chunk cache,
+   which is shared by the vec and all of its subvecs. For a vec over several
+   files, they're summed over every file's cache."
+  [v]
+  (let [caches (if (instance? iota.MultiFileVector v)
+                 (map #(.cache ^iota.FileVector %) (.parts ^iota.MultiFileVector v))
+                 [(.cache ^iota.FileVector v)])
+        total (fn [f] (reduce + 0 (map f caches)))]
+    {:hits      (total #(.hits ^iota.ChunkCache %))
+     :misses    (total #(.misses ^iota.ChunkCache %))
+     :evictions (total #(.evictions ^iota.ChunkCache %))
+     :capacity  (total #(.capacity ^iota.ChunkCache %))}))
+
+(defn index-stats
+  "Return the number of lines in an iota vec, the entries in its index (one
+   per chunk, and one for EOF), and the bytes the index takes, in total and
+   per line. For a vec over several files, entries and bytes are summed over
+   every file's index."
+  [v]
+  (let [indexes (if (instance? iota.MultiFileVector v)
+                  (map #(.chunkIndex ^iota.FileVector %) (.parts ^iota.MultiFileVector v))
+                  [(.chunkIndex ^iota.FileVector v)])
+        indexes (remove nil? indexes)
+        lines (if (instance? iota.MultiFileVector v)
+                (.longCount ^iota.MultiFileVector v)
+                (.longCount ^iota.FileVector v))
+        bytes (reduce + 0 (map #(.bytes ^iota.LineIndex %) indexes))]
+    {:lines          lines
+     :entries        (reduce + 0 (map #(.size ^iota.LineIndex %) indexes))
+     :bytes          bytes
+     :bytes-per-line (if (pos? lines) (double (/ bytes lines)) 0.0)
+     :off-heap       (boolean (and (clojure.core/seq indexes) (every? #(.offHeap ^iota.LineIndex %) indexes)))}))
+
+(defn close
+  "Unmap and close the file under an iota vec, seq, or rec-seq straight away,
+   rather than leaving it to the garbage collector. This also closes every
+   subvec, rest, and split sharing that file, none of which may be used
+   afterwards. They're all Closeable, so with-open works as well:
+
+   (with-open [v (iota/vec filename)] (r/fold + (r/map count v)))"
+  [^java.io.Closeable coll]
+  (.close coll))
+
+(defn refresh
+  "Return an iota vec over the file as it is now, for files which are still
+   being appended to. Only the new data is indexed, so this costs time in
+   proportion to what was appended rather than to the size of the file.
+   Returns v itself if nothing was appended. A vec over several files has
+   each of them refreshed, though files added since aren't picked up. Not
+   supported on subvecs."
+  [v]
+  (if (instance? iota.MultiFileVector v)
+    (.refresh ^iota.MultiFileVector v)
+    (.refresh ^iota.FileVector v)))
 
 (defn numbered-vec
   "Return a NumberedFileVector, which has the line number appended to the
-   beginning of each line with the provided delimiter (default \tab)"
+   beginning of each line with the provided delimiter (default \tab), and
+   optionally the Charset (or its name) to decode lines with."
   ([^java.lang.String filename] (numbered-vec filename 10))
   ([^java.lang.String filename chunk-size] (numbered-vec filename chunk-size "\t"))
-  ([^java.lang.String filename chunk-size delim] (new iota.NumberedFileVector filename (int chunk-size) delim)))
+  ([^java.lang.String filename chunk-size delim] (new iota.NumberedFileVector filename (int chunk-size) delim))
+  ([^java.lang.String filename chunk-size delim encoding]
+   (new iota.NumberedFileVector filename (int chunk-size) ^String delim (charset encoding))))
+
+
+
+(defn reduce-bytes
+  "Reduce f over the records of an iota seq, vec, or rec-seq without decoding
+   them. Each record is passed to f as an iota.ByteRecord, a view over the
+   mmap'd file that is reused for every record, so it's only valid until f
+   returns; call .toString or .getBytes on it to keep anything around.
+
+   Empty lines are passed as empty records rather than nil, and numbered-vec's
+   line numbers aren't included."
+  [f init ^iota.ByteReducible coll]
+  (.reduceBytes coll f init))
+
+(declare foldbytes)
+
+(def ^:dynamic *prefetch*
+  "When true, folds over iota collections read ahead: as each range is
+   reduced, the range after it is faulted in by a background thread so
+   workers don't stall on page faults in cold files. Off by default, since
+   it only helps when the file isn't already in the page cache.
+
+   (binding [iota/*prefetch* true] (r/fold + (r/map count (iota/seq filename))))"
+  false)
+
+(defn prefetch-stats
+  "Return the number of ranges requested and dropped (when the prefetch
+   threads fell behind), and the bytes and nanoseconds spent faulting them
+   in ahead of the folds, across every fold with *prefetch* on. The time is
+   an upper bound on the time folds would otherwise have stalled."
+  []
+  {:requested (iota.Prefetcher/requested)
+   :dropped   (iota.Prefetcher/dropped)
+   :bytes     (iota.Prefetcher/bytes)
+   :nanos     (iota.Prefetcher/nanos)})
+
+(defn metrics
+  "Return what iota has counted since metrics were last reset, while they
+   were enabled: bytes and records read in place, records decoded and the
+   time spent decoding chunks, chunk cache hits, misses, and evictions across
+   every vec, index builds, fold leaves, and waits on mapped files' locks.
+   :leaf-bytes and :leaf-nanos are histograms of the leaves, where element i
+   counts those with values in [2^(i-1), 2^i)."
+  []
+  (let [^iota.MetricsMXBean m (iota.Metrics/snapshot)]
+    {:enabled         (.isEnabled m)
+     :bytes-read      (.getBytesRead m)
+     :records-read    (.getRecordsRead m)
+     :records-decoded (.getRecordsDecoded m)
+     :decode-nanos    (.getDecodeNanos m)
+     :cache-hits      (.getCacheHits m)
+     :cache-misses    (.getCacheMisses m)
+     :cache-evictions (.getCacheEvictions m)
+     :index-builds    (.getIndexBuilds m)
+     :index-bytes     (.getIndexBytes m)
+     :index-nanos     (.getIndexNanos m)
+     :leaves          (.getLeaves m)
+     :leaf-bytes      (clojure.core/vec (.getLeafBytes m))
+     :leaf-nanos      (clojure.core/vec (.getLeafNanos m))
+     :lock-waits      (.getLockWaits m)
+     :lock-wait-nanos (.getLockWaitNanos m)}))
+
+(defn set-metrics!
+  "Turn metrics on or off; they're off by default, costing a branch at each
+   hook. Turning them on also registers them with JMX as iota:type=Metrics."
+  [on?]
+  (iota.Metrics/setEnabled (boolean on?)))
+
+(defn reset-metrics!
+  "Zero every count in metrics."
+  []
+  (iota.Metrics/reset))
+
+(defn ^iota.MetricsListener add-metrics-listener
+  "Call f with a map of :type (:chunk, :index, :leaf, or :lock), :source,
+   :bytes, and :nanos for each of those events while metrics are enabled.
+   f is called on the thread doing the work, so keep it quick. Returns the
+   listener, for remove-metrics-listener."
+  [f]
+  (let [l (reify iota.MetricsListener
+            (event [_ type source bytes nanos]
+              (f {:type (keyword type) :source source :bytes bytes :nanos nanos})))]
+    (iota.Metrics/addListener l)
+    l))
+
+(defn remove-metrics-listener
+  "Stop calling a listener returned by add-metrics-listener."
+  [^iota.MetricsListener l]
+  (iota.Metrics/removeListener l))
+
+(defn fold-bytes
+  "Like clojure.core.reducers/fold, but over the iota.ByteRecord's of an
+   iota seq, vec, or rec-seq as with reduce-bytes. The records themselves must
+   not escape reducef."
+  ([reducef coll] (fold-bytes reducef reducef coll))
+  ([combinef reducef coll] (fold-bytes 512 combinef reducef coll))
+  ([n combinef reducef coll] (foldbytes coll n combinef reducef)))
+
+(defn- ^java.nio.charset.Charset coll-charset
+  "Return the Charset an iota collection decodes its lines with."
+  [coll]
+  (cond
+    (instance? iota.FileVector coll) (.charset ^iota.FileVector coll)
+    (instance? iota.FileSeq coll) (.charset ^iota.FileSeq coll)
+    (instance? iota.FileRecordSeq coll) (.charset ^iota.FileRecordSeq coll)
+    (instance? iota.MatchVector coll) (.charset ^iota.MatchVector coll)
+    (instance? iota.MultiFileSeq coll) (.charset ^iota.FileSeq (.head ^iota.MultiFileSeq coll))
+    (instance? iota.GzipSeq coll) (.charset ^iota.GzipSeq coll)
+    (instance? iota.GzipVector coll) (.charset ^iota.GzipVector coll)
+    :else (if-let [^iota.FileVector p (first (.parts ^iota.MultiFileVector coll))]
+            (.charset p)
+            iota.Charsets/UTF8)))
+
+(defn- reduce-first
+  "Reduce with f and no init as clojure.core/reduce does, seeding it with
+   the first element, or returning (f) if there are none. reduce-with is
+   called with a reducing function and an init to do the reduce."
+  [reduce-with f]
+  (let [none (Object.)
+        rv (reduce-with (fn [acc x] (if (identical? acc none) x (f acc x))) none)]
+    (if (identical? rv none) (f) rv)))
+
+(defn fields
+  "Return a view over an iota vec or seq of delimited lines which yields,
+   for each line, a vector of just the given columns (0 based, in the order
+   given). Columns are located in the line's bytes and only those requested
+   are decoded. Lines too short to have a column give nil in its place, and
+   empty lines give nil as they do elsewhere in iota.
+
+   The view can be reduced and folded like the collection it's over, and
+   when over a vec also supports count and nth.
+
+   e.g. (r/fold + (r/map #(Long/parseLong (first %)) (iota/fields v \tab [3])))"
+  [coll delim columns]
+  (let [delim (byte (if (char? delim) (int delim) delim))
+        proj (iota.Fields. delim (int-array columns) (coll-charset coll))]
+    (if (or (instance? iota.FileVector coll) (instance? iota.MultiFileVector coll) (instance? iota.MatchVector coll))
+      (let [^iota.ByteReducible v coll
+            record (cond
+                     (instance? iota.MultiFileVector coll) #(.getRecord ^iota.MultiFileVector coll (long %))
+                     (instance? iota.MatchVector coll) #(.getRecord ^iota.MatchVector coll (int %))
+                     :else #(.getRecord ^iota.FileVector coll (long %)))
+            n (line-count coll)]
+        (reify
+          clojure.lang.Counted
+          (count [_] (int n))
+          clojure.lang.Indexed
+          (nth [_ i] (.project proj (record i)))
+          (nth [this i not-found] (if (< -1 i n) (nth this i) not-found))
+          clojure.lang.Seqable
+          (seq [this] (clojure.core/seq (map #(.project proj (record %)) (range n))))
+          p/CollReduce
+          (coll-reduce [_ f] (reduce-first #(.reduceBytes v (.projecting proj %1) %2) f))
+          (coll-reduce [_ f init] (.reduceBytes v (.projecting proj f) init))
+          r/CollFold
+          (coll-fold [_ n combinef reducef]
+            (foldbytes v n combinef (.projecting proj reducef)))))
+      (let [^iota.ByteReducible s coll]
+        (reify
+          p/CollReduce
+          (coll-reduce [_ f] (reduce-first #(.reduceBytes s (.projecting proj %1) %2) f))
+          (coll-reduce [_ f init] (.reduceBytes s (.projecting proj f) init))
+          r/CollFold
+          (coll-fold [_ n combinef reducef]
+            (foldbytes s n combinef (.projecting proj reducef))))))))
+
+(defn- ^iota.Match byte-match
+  "Return the iota.Match for a map of :prefix, :contains, and :any-of, as
+   where takes, over the lines of coll."
+  [coll match]
+  (let [cs (coll-charset coll)
+        bs (fn [x] (when x (if (string? x) (.getBytes ^String x cs) (byte-array (map byte x)))))]
+    (iota.Match. (bs (:prefix match)) (bs (:contains match)) (bs (:any-of match)))))
+
+(defn where
+  "Return a view over an iota vec, seq, or rec-seq of just the lines whose
+   bytes match, which is tested before anything is decoded: lines which
+   don't match are never turned into Strings nor passed to the reducing
+   function. match is a map of any of
+
+     :prefix    the line starts with this
+     :contains  the line contains this
+     :any-of    the line contains at least one of these bytes
+
+   each given as a String (encoded with the collection's charset) or a
+   sequence of bytes, and a line must match all of those given. The view
+   reduces and folds like the collection it's over.
+
+   e.g. (r/fold + (r/map count (iota/where (iota/seq filename) {:contains \"ERROR\"})))"
+  [coll match]
+  (let [cs (coll-charset coll)
+        m (byte-match coll match)
+        decode (fn [f] (.filtering m (iota.ByteRecord/decoding f true cs)))
+        ^iota.ByteReducible c coll]
+    (reify
+      p/CollReduce
+      (coll-reduce [_ f] (reduce-first #(.reduceBytes c (decode %1) %2) f))
+      (coll-reduce [_ f init] (.reduceBytes c (decode f) init))
+      r/CollFold
+      (coll-fold [_ n combinef reducef]
+        (foldbytes c n combinef (decode reducef))))))
+
+
+
+(defn ^iota.MatchVector match-vec
+  "Scan an iota vec or seq once, in parallel, for the lines matching match,
+   and return them as a vector backed by just their offsets in the file,
+   compressed. nth and count are O(1), subvec shares the offsets, and reduces
+   and folds read only the matching lines.
+
+   match is either a map as where takes, tested on the lines' bytes, or a
+   predicate on each line as a String (nil if empty). A match-vec may itself
+   be matched again to narrow it further.
+
+   Takes an :index-file to save the offsets to, which is loaded instead of
+   scanning while it still matches the file and the part of it scanned. The
+   query isn't recorded in it, so each query needs its own index file."
+  ([coll match] (match-vec coll match {}))
+  ([coll match opts]
+   (let [{:keys [index-file]} opts]
+     (or (when index-file (iota.MatchVector/read index-file coll))
+         (let [v (if (map? match)
+                   (iota.MatchVector/build coll (byte-match coll match) nil)
+                   (iota.MatchVector/build coll nil match))]
+           (when index-file (.write v index-file coll))
+           v)))))
 
 
 
@@ -78,59 +591,243 @@
 (def fjjoin #'r/fjjoin)
 
 
+(defn- leaf
+  "Reduce coll directly with (f), recording it as a fold leaf while metrics
+   are enabled."
+  [coll f]
+  (if (iota.Metrics/enabled)
+    (let [t0 (System/nanoTime)
+          rv (f)]
+      (iota.Metrics/leaf coll (- (System/nanoTime) t0))
+      rv)
+    (f)))
+
 ;; Implement CollFold for FileVector
 ;; Note: copied+modified from clojure.core.reducers/foldvec
 (defn- foldvec
   "Utility function to enable reducers for Itoa Vector's"
-  [^iota.FileVector v n combinef reducef]
-  (cond
-    (empty? v) (combinef)
-    (<= (count v) n) (reduce reducef (combinef) v)
-    :else
-    (let [split (quot (count v) 2)
+  [^iota.FileVector v n combinef reducef prefetch?]
+  (let [c (.longCount v)]
+    (cond
+      (zero? c) (combinef)
+      (<= c n) (do (when prefetch? (iota.Prefetcher/ahead v))
+                   (leaf v #(reduce reducef (combinef) v)))
+      :else
+      (let [split (.splitPoint v 0 c)
+            v1 (.subvec v 0 split)
+            v2 (.subvec v split c)
+            fc (fn [child] #(foldvec child n combinef reducef prefetch?))]
+        (fjinvoke
+          #(let [f1 (fc v1)
+                 t2 (r/fjtask (fc v2))]
+            (fjfork t2)
+            (combinef (f1) (fjjoin t2))))))))
+
+(defn- fjboth
+  "Run thunks f1 and f2 in parallel, combining their results with combinef."
+  [combinef f1 f2]
+  (fjinvoke
+    #(let [t2 (r/fjtask f2)]
+      (fjfork t2)
+      (combinef (f1) (fjjoin t2)))))
+
+(defn- idle?
+  "True when this fork join worker has nothing queued for others to steal,
+   a sign they've run out of work."
+  []
+  (and (java.util.concurrent.ForkJoinTask/inForkJoinPool)
+       (<= (java.util.concurrent.ForkJoinTask/getSurplusQueuedTaskCount) 0)))
+
+(defn- foldplan
+  "Fold over ranges planned up front by SplitPlanner, forking them as a
+   balanced tree. Each range is reduced with reduce-range, unless other
+   workers are idle by the time it's reached, in which case it's split in
+   two again with split-range."
+  [ranges combinef reduce-range split-range]
+  (let [ranges (object-array ranges)
+        fr (fn fr [coll]
+             (if-let [[c1 c2] (and (idle?) (split-range coll))]
+               (fjboth combinef #(fr c1) #(fr c2))
+               (reduce-range coll)))
+        ft (fn ft [lo hi]
+             (if (= 1 (- hi lo))
+               (fr (aget ranges lo))
+               (let [mid (quot (+ lo hi) 2)]
+                 (fjboth combinef #(ft lo mid) #(ft mid hi)))))]
+    (ft 0 (alength ranges))))
+
+(defn- foldseq
+  "Utility function to enable reducers for Iota Seq's"
+  [^iota.FileSeq s n combinef reducef prefetch?]
+  (foldplan (.plan s) combinef
+            (fn [^iota.FileSeq s]
+              (when prefetch? (iota.Prefetcher/ahead s))
+              (leaf s #(.reduceRecords s reducef (combinef))))
+            #(.split ^iota.FileSeq %)))
+
+(defn- foldmultivec
+  "Utility function to enable reducers for vec's over several files"
+  [^iota.MultiFileVector v n combinef reducef prefetch?]
+  (if (<= (.longCount v) n)
+    (do (when prefetch? (iota.Prefetcher/ahead v))
+        (leaf v #(reduce reducef (combinef) v)))
+    (let [c (.longCount v)
+          split (quot c 2)
           v1 (.subvec v 0 split)
-          v2 (.subvec v split (count v))
-          fc (fn [child] #(foldvec child n combinef reducef))]
+          v2 (.subvec v split c)
+          fc (fn [child]
+               (if (instance? iota.MultiFileVector child)
+                 #(foldmultivec child n combinef reducef prefetch?)
+                 #(foldvec child n combinef reducef prefetch?)))]
       (fjinvoke
         #(let [f1 (fc v1)
                t2 (r/fjtask (fc v2))]
           (fjfork t2)
           (combinef (f1) (fjjoin t2)))))))
 
-(defn- foldseq
-  "Utility function to enable reducers for Iota Seq's"
-  [^iota.FileSeq s n combinef reducef]
+(defn- foldmultiseq
+  "Utility function to enable reducers for seq's over several files"
+  [^iota.MultiFileSeq s n combinef reducef prefetch?]
+  (let [[v1 v2] (.split s)
+        fc (fn [child]
+             (if (instance? iota.MultiFileSeq child)
+               #(foldmultiseq child n combinef reducef prefetch?)
+               #(foldseq child n combinef reducef prefetch?)))]
+    (fjinvoke
+      #(let [f1 (fc v1)
+             t2 (r/fjtask (fc v2))]
+        (fjfork t2)
+        (combinef (f1) (fjjoin t2))))))
+
+(defn- foldgzip
+  "Utility function to enable reducers for Iota GzipSeq's. n is ignored:
+   how many lines a run of members holds isn't known until it's been
+   decompressed, so runs are split by their compressed bytes instead, down
+   to the seq's buffer size."
+  [^iota.GzipSeq s n combinef reducef prefetch?]
   (if-let [[v1 v2] (.split s)]
-    (let [fc (fn [child] #(foldseq child n combinef reducef))]
+    (let [fc (fn [child] #(foldgzip child n combinef reducef prefetch?))]
       (fjinvoke
         #(let [f1 (fc v1)
                t2 (r/fjtask (fc v2))]
           (fjfork t2)
           (combinef (f1) (fjjoin t2)))))
-    (reduce reducef (combinef) (.toArray s))))
+    (do (when prefetch? (iota.Prefetcher/ahead s))
+        (leaf s #(.reduceRecords s reducef (combinef))))))
 
 (defn- foldrecseq
   "Utility function to enable reducers for Iota RecordSeq's"
-  [^iota.FileRecordSeq s n combinef reducef]
-  (if-let [[v1 v2] (.split s)]
-    (let [fc (fn [child] #(foldrecseq child n combinef reducef))]
-      (fjinvoke
-        #(let [f1 (fc v1)
-               t2 (r/fjtask (fc v2))]
-          (fjfork t2)
-          (combinef (f1) (fjjoin t2)))))
-    (reduce reducef (combinef) (.toArray s))))
+  [^iota.FileRecordSeq s n combinef reducef prefetch?]
+  (foldplan (.plan s) combinef
+            (fn [^iota.FileRecordSeq s]
+              (when prefetch? (iota.Prefetcher/ahead s))
+              (leaf s #(.reduce s ^clojure.lang.IFn reducef (combinef))))
+            #(.split ^iota.FileRecordSeq %)))
+
+(defn- split-bytes
+  "Split an iota collection in two for fold-bytes, or nil if it's small enough
+   to reduce directly."
+  [coll n]
+  (cond
+    (instance? iota.FileVector coll) (let [^iota.FileVector v coll
+                                           c (.longCount v)]
+                                       (when (> c n)
+                                         (let [m (.splitPoint v 0 c)]
+                                           [(.subvec v 0 m) (.subvec v m c)])))
+    (instance? iota.MultiFileVector coll) (let [^iota.MultiFileVector v coll
+                                                c (.longCount v)]
+                                            (when (> c n)
+                                              [(.subvec v 0 (quot c 2)) (.subvec v (quot c 2) c)]))
+    (instance? iota.MatchVector coll) (let [^iota.MatchVector v coll
+                                            c (count v)]
+                                        (when (> c n)
+                                          [(.subvec v 0 (quot c 2)) (.subvec v (quot c 2) c)]))
+    (instance? iota.FileSeq coll) (.split ^iota.FileSeq coll)
+    (instance? iota.MultiFileSeq coll) (.split ^iota.MultiFileSeq coll)
+    (instance? iota.FileRecordSeq coll) (.split ^iota.FileRecordSeq coll)
+    (instance? iota.GzipSeq coll) (.split ^iota.GzipSeq coll)
+    (instance? iota.GzipVector coll) (.split (.toSeq ^iota.GzipVector coll 1048576))))
+
+(defn- foldbytes
+  "Utility function to fold over the ByteRecord's of an iota collection"
+  ([coll n combinef reducef] (foldbytes coll n combinef reducef *prefetch*))
+  ([^iota.ByteReducible coll n combinef reducef prefetch?]
+   (if-let [[v1 v2] (split-bytes coll n)]
+     (let [fc (fn [child] #(foldbytes child n combinef reducef prefetch?))]
+       (fjinvoke
+         #(let [f1 (fc v1)
+                t2 (r/fjtask (fc v2))]
+           (fjfork t2)
+           (combinef (f1) (fjjoin t2)))))
+     (do (when prefetch? (iota.Prefetcher/ahead coll))
+         (leaf coll #(.reduceBytes coll reducef (combinef)))))))
 
 (extend-protocol r/CollFold
   iota.FileVector
   (coll-fold
     [v n combinef reducef]
-    (foldvec v n combinef reducef))
+    (foldvec v n combinef reducef *prefetch*))
   iota.FileSeq
   (coll-fold
     [v n combinef reducef]
-    (foldseq v n combinef reducef))
+    (foldseq v n combinef reducef *prefetch*))
   iota.FileRecordSeq
   (coll-fold
     [v n combinef reducef]
-    (foldrecseq v n combinef reducef)))
\ No newline at end of file
+    (foldrecseq v n combinef reducef *prefetch*))
+  iota.MultiFileVector
+  (coll-fold
+    [v n combinef reducef]
+    (foldmultivec v n combinef reducef *prefetch*))
+  iota.MultiFileSeq
+  (coll-fold
+    [v n combinef reducef]
+    (foldmultiseq v n combinef reducef *prefetch*))
+  iota.MatchVector
+  (coll-fold
+    [v n combinef reducef]
+    (foldbytes v n combinef (iota.ByteRecord/decoding reducef true (.charset v))))
+  iota.GzipSeq
+  (coll-fold
+    [s n combinef reducef]
+    (foldgzip s n combinef reducef *prefetch*))
+  iota.GzipVector
+  (coll-fold
+    [v n combinef reducef]
+    (foldgzip (.toSeq v 1048576) n combinef reducef *prefetch*)))
+
+;; Clojure 1.7+ reduces over IReduce directly, this gives older versions the
+;; same single pass reduce in place of walking the seq
+(extend-protocol p/CollReduce
+  iota.FileVector
+  (coll-reduce
+    ([v f] (.reduce v ^clojure.lang.IFn f))
+    ([v f init] (.reduce v ^clojure.lang.IFn f init)))
+  iota.FileSeq
+  (coll-reduce
+    ([s f] (.reduce s ^clojure.lang.IFn f))
+    ([s f init] (.reduce s ^clojure.lang.IFn f init)))
+  iota.FileRecordSeq
+  (coll-reduce
+    ([s f] (.reduce s ^clojure.lang.IFn f))
+    ([s f init] (.reduce s ^clojure.lang.IFn f init)))
+  iota.MultiFileVector
+  (coll-reduce
+    ([v f] (.reduce v ^clojure.lang.IFn f))
+    ([v f init] (.reduce v ^clojure.lang.IFn f init)))
+  iota.MultiFileSeq
+  (coll-reduce
+    ([s f] (.reduce s ^clojure.lang.IFn f))
+    ([s f init] (.reduce s ^clojure.lang.IFn f init)))
+  iota.MatchVector
+  (coll-reduce
+    ([v f] (.reduce v ^clojure.lang.IFn f))
+    ([v f init] (.reduce v ^clojure.lang.IFn f init)))
+  iota.GzipSeq
+  (coll-reduce
+    ([s f] (.reduce s ^clojure.lang.IFn f))
+    ([s f init] (.reduce s ^clojure.lang.IFn f init)))
+  iota.GzipVector
+  (coll-reduce
+    ([v f] (.reduce v ^clojure.lang.IFn f))
+    ([v f init] (.reduce v ^clojure.lang.IFn f init))))
@@ -0,0 +1,231 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.Reduced;
+
+/*
+ * A record viewed in place over the mapped file, without copying it out.
+ *
+ * While reducing, a single ByteRecord is reused and repointed at each
+ * record in turn, so it's only valid for the duration of the call it was
+ * passed to.  Use getBytes() or toString() to keep a record around.
+ *
+ * Records which straddle two of Mmap's buffers (every 2GB) are copied
+ * into a scratch buffer instead.
+ */
+public class ByteRecord {
+
+    // Static Variables
+    final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // Member Variables
+    ByteBuffer buf;
+    int        offset;
+    int        length;
+    long       position;
+    byte[]     scratch;
+    byte[]     decodeBuf;
+
+    // Point this record at [from, to) of map
+    ByteRecord set(Mmap map, long from, long to) {
+	this.position = from;
+	this.length   = (int)(to - from);
+
+	if(length == 0) {
+	    this.buf    = EMPTY;
+	    this.offset = 0;
+	    return this;
+	}
+
+	ByteBuffer bb = map.shared(from, to);
+	if(bb != null) {
+	    this.buf    = bb;
+	    this.offset = (int)(from % Mmap.MAP_SIZE);
+	    return this;
+	}
+
+	// Straddles a buffer boundary
+	if(scratch == null || scratch.length < length)
+	    scratch = new byte[length];
+	map.get(scratch, from, length);
+	this.buf    = ByteBuffer.wrap(scratch);
+	this.offset = 0;
+	return this;
+    }
+
+    // Point this record at [from, to) of buf, which isn't from a mapped file
+    ByteRecord set(byte[] buf, int from, int to) {
+	if(this.buf == null || !this.buf.hasArray() || this.buf.array() != buf)
+	    this.buf = ByteBuffer.wrap(buf);
+	this.position = -1;
+	this.offset   = from;
+	this.length   = to - from;
+	return this;
+    }
+
+    // Position of this record's first byte in the file, or -1 if it was decompressed
+    public long position() {
+	return position;
+    }
+
+    public int length() {
+	return length;
+    }
+
+    public boolean isEmpty() {
+	return length == 0;
+    }
+
+    public byte byteAt(int i) {
+	if(i < 0 || i >= length)
+	    throw new IndexOutOfBoundsException(i + " is not within 0..." + length);
+	return buf.get(offset + i);
+    }
+
+    // Index of the first b in this record at or after from, or -1
+    public int indexOf(byte b, int from) {
+	int i = Scanner.indexOf(buf, offset + Math.max(from, 0), offset + length, b);
+	return (i < 0) ? -1 : i - offset;
+    }
+
+    // Index of the first occurrence of sub in this record at or after from, or -1
+    public int indexOf(byte[] sub, int from) {
+	if(sub.length == 0)
+	    return (from <= length) ? Math.max(from, 0) : -1;
+	int i = Scanner.indexOf(buf, offset + Math.max(from, 0), offset + length, sub);
+	return (i < 0) ? -1 : i - offset;
+    }
+
+    public boolean startsWith(byte[] prefix) {
+	if(prefix.length > length)
+	    return false;
+	for(int i = 0; i < prefix.length; i++)
+	    if(buf.get(offset + i) != prefix[i])
+		return false;
+	return true;
+    }
+
+    /* A read only ByteBuffer over just this record, valid as long as the
+     * record is; buf may be shared, so callers get their own view of it */
+    public ByteBuffer buffer() {
+	ByteBuffer bb = buf.duplicate();
+	bb.limit(offset + length);
+	bb.position(offset);
+	return bb.slice().asReadOnlyBuffer();
+    }
+
+    public void getBytes(byte[] dst, int dstOffset) {
+	ByteBuffer bb = buf.duplicate();
+	bb.position(offset);
+	bb.get(dst, dstOffset, length);
+    }
+
+    public byte[] getBytes() {
+	byte[] rv = new byte[length];
+	getBytes(rv, 0);
+	return rv;
+    }
+
+    public String toString(Charset cs) {
+	return toString(0, length, cs);
+    }
+
+    // Decode len bytes of this record starting at from
+    public String toString(int from, int len, Charset cs) {
+	if(from < 0 || len < 0 || from + len > length)
+	    throw new IndexOutOfBoundsException("[" + from + ", " + (from + len) + ") is not within 0..." + length);
+
+	if(buf.hasArray())
+	    return Charsets.decode(buf.array(), buf.arrayOffset() + offset + from, len, cs);
+
+	// Copy out of the mapped buffer through an array reused across records
+	if(decodeBuf == null || decodeBuf.length < len)
+	    decodeBuf = new byte[Math.max(len, 256)];
+	ByteBuffer bb = buf.duplicate();
+	bb.position(offset + from);
+	bb.get(decodeBuf, 0, len);
+	return Charsets.decode(decodeBuf, 0, len, cs);
+    }
+
+    public String toString() {
+	return toString(Charsets.UTF8);
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Reducing over records
+     *  **  **  **  **  **  **  **  **/
+
+    /* Reduce over at most max records separated by sep, starting at start.
+     * A record ends at the next sep or at end, whichever comes first; the
+     * separator isn't included. */
+    public static Object reduce(Mmap map, long start, long end, byte sep, long max, IFn f, Object init) {
+	ByteRecord rec  = new ByteRecord();
+	Object     acc  = init;
+	long       from = start;
+	long       n    = 0;
+	long       eol  = start;
+
+	while(n < max) {
+	    eol = map.indexOf(sep, start, end);
+	    if(eol < 0)
+		eol = end;
+
+	    n++;
+	    acc = f.invoke(acc, rec.set(map, start, eol));
+	    if(acc instanceof Reduced) {
+		acc = ((Reduced)acc).deref();
+		break;
+	    }
+
+	    if(eol >= end)
+		break;
+	    start = eol + 1;
+	}
+	if(Metrics.enabled)
+	    Metrics.read(eol - from, n);
+	return acc;
+    }
+
+    // Wrap f so it's passed each record decoded to a String, with empty records as nil if emptyAsNil
+    public static IFn decoding(final IFn f, final boolean emptyAsNil, final Charset cs) {
+	return new AFn() {
+	    public Object invoke(Object acc, Object o) {
+		ByteRecord rec = (ByteRecord)o;
+		return f.invoke(acc, (emptyAsNil && rec.isEmpty()) ? null : rec.toString(cs));
+	    }
+	};
+    }
+
+    /* Reduce over the records in [start, end) terminated by the multibyte
+     * separator sep, which is kept at the end of each record. */
+    public static Object reduce(Mmap map, long start, long end, byte[] sep, IFn f, Object init) {
+	ByteRecord rec = new ByteRecord();
+	Object     acc = init;
+	long       pos = start;
+	long       n   = 0;
+
+	do {
+	    long eor = map.indexOf(sep, pos, end);
+	    eor = (eor < 0) ? end : eor + sep.length;
+
+	    n++;
+	    acc = f.invoke(acc, rec.set(map, pos, eor));
+	    pos = eor;
+	    if(acc instanceof Reduced) {
+		acc = ((Reduced)acc).deref();
+		break;
+	    }
+	} while(pos < end);
+
+	if(Metrics.enabled)
+	    Metrics.read(pos - start, n);
+	return acc;
+    }
+}
@@ -0,0 +1,15 @@
+package iota;
+
+/* Grab Clojure */
+import clojure.lang.IFn;
+
+/*
+ * Collections whose records can be reduced over in place as ByteRecord's,
+ * without decoding them to Strings.
+ */
+public interface ByteReducible {
+
+    /* Reduce f over every record, starting from init.  The ByteRecord
+     * passed to f is reused, and only valid until f returns. */
+    Object reduceBytes(IFn f, Object init);
+}
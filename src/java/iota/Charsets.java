@@ -0,0 +1,48 @@
+package iota;
+
+import java.nio.charset.Charset;
+
+/*
+ * Decoding bytes from the file into Strings.
+ *
+ * ISO-8859-1 maps every byte straight to the char of the same value, so
+ * it's decoded with String's (deprecated, but still fastest) hibyte
+ * constructor.  It skips the charset machinery entirely, and on JDK 9+
+ * copies the bytes into a compact string as is.  UTF-8 and US-ASCII
+ * records take the same path once they're found to be pure ASCII; any
+ * other byte is left to the charset, which for US-ASCII means U+FFFD.
+ */
+public class Charsets {
+
+    // Static Variables
+    public final static Charset UTF8    = Charset.forName("UTF-8");
+    public final static Charset LATIN1  = Charset.forName("ISO-8859-1");
+    public final static Charset ASCII   = Charset.forName("US-ASCII");
+
+    // True when every byte decodes to the char with the same value
+    public static boolean isSingleByte(Charset cs) {
+	return LATIN1.equals(cs);
+    }
+
+    // True when decoding ASCII bytes gives the char with the same value
+    static boolean isAsciiCompatible(Charset cs) {
+	return UTF8.equals(cs) || ASCII.equals(cs);
+    }
+
+    // True when none of buf's [from, to) have the high bit set
+    public static boolean isAscii(byte[] buf, int from, int to) {
+	int or = 0;
+	for(int i = from; i < to; i++)
+	    or |= buf[i];
+	return or >= 0;
+    }
+
+    @SuppressWarnings("deprecation")
+    public static String decode(byte[] buf, int offset, int length, Charset cs) {
+	if(Metrics.enabled)
+	    Metrics.decoded(1);
+	if(isSingleByte(cs) || (isAsciiCompatible(cs) && isAscii(buf, offset, offset + length)))
+	    return new String(buf, 0, offset, length);
+	return new String(buf, offset, length, cs);
+    }
+}
@@ -0,0 +1,158 @@
+package iota;
+
+/*
+ * Cache of decoded chunks for a FileVector and all of its subvecs.
+ *
+ * The cache is split into stripes, each guarded by its own lock, and
+ * consecutive chunk ids land in different stripes so threads reading
+ * different parts of a file rarely contend.  Each stripe is a small fixed
+ * set of slots with CLOCK (second chance) eviction; lookups are a linear
+ * scan of a long[] and allocate nothing.
+ */
+public class ChunkCache {
+
+    // Static Variables
+    final static int DEFAULT_CAPACITY = 64; // chunks
+    final static int STRIPES_PER_CORE = 4;
+
+    // Member Variables
+    final Stripe[] stripes;
+    final int      mask;
+
+    public ChunkCache() {
+	this(ChunkCache.DEFAULT_CAPACITY);
+    }
+
+    // Holds at most capacity chunks in total
+    public ChunkCache(int capacity) {
+	int cores = Runtime.getRuntime().availableProcessors();
+	int n     = Integer.highestOneBit( Math.max(1, Math.min(capacity, cores * STRIPES_PER_CORE)) );
+
+	this.stripes = new Stripe[n];
+	this.mask    = n - 1;
+	for(int i = 0; i < n; i++)
+	    stripes[i] = new Stripe( Math.max(1, (capacity + n - 1) / n) );
+    }
+
+    // Return the cached chunk, or null
+    public String[] get(long chunk) {
+	Stripe s = stripes[(int)(chunk & mask)];
+	String[] rv;
+	synchronized(s) {
+	    rv = s.get(chunk);
+	}
+	if(Metrics.enabled)
+	    Metrics.cache(rv != null);
+	return rv;
+    }
+
+    public void put(long chunk, String[] lines) {
+	Stripe s = stripes[(int)(chunk & mask)];
+	boolean evicted;
+	synchronized(s) {
+	    evicted = s.put(chunk, lines);
+	}
+	if(evicted && Metrics.enabled)
+	    Metrics.evicted();
+    }
+
+    public void clear() {
+	for(Stripe s : stripes)
+	    synchronized(s) {
+		s.clear();
+	    }
+    }
+
+    public long hits() {
+	long n = 0;
+	for(Stripe s : stripes)
+	    synchronized(s) {
+		n += s.hits;
+	    }
+	return n;
+    }
+
+    public long misses() {
+	long n = 0;
+	for(Stripe s : stripes)
+	    synchronized(s) {
+		n += s.misses;
+	    }
+	return n;
+    }
+
+    public long evictions() {
+	long n = 0;
+	for(Stripe s : stripes)
+	    synchronized(s) {
+		n += s.evictions;
+	    }
+	return n;
+    }
+
+    public int capacity() {
+	return stripes.length * stripes[0].ids.length;
+    }
+
+
+    static final class Stripe {
+	final long[]     ids;
+	final String[][] chunks;
+	final boolean[]  referenced;
+	int              hand;
+	long             hits;
+	long             misses;
+	long             evictions;
+
+	Stripe(int capacity) {
+	    this.ids        = new long[capacity];
+	    this.chunks     = new String[capacity][];
+	    this.referenced = new boolean[capacity];
+	    java.util.Arrays.fill(ids, -1);
+	}
+
+	String[] get(long chunk) {
+	    for(int i = 0; i < ids.length; i++) {
+		if(ids[i] == chunk) {
+		    referenced[i] = true;
+		    hits++;
+		    return chunks[i];
+		}
+	    }
+	    misses++;
+	    return null;
+	}
+
+	// Returns whether another chunk was evicted to make room
+	boolean put(long chunk, String[] lines) {
+	    for(int i = 0; i < ids.length; i++) {
+		if(ids[i] == chunk) {
+		    chunks[i]     = lines;
+		    referenced[i] = true;
+		    return false;
+		}
+	    }
+
+	    // Sweep until we find an empty slot, or one not referenced since the last sweep
+	    while(ids[hand] != -1 && referenced[hand]) {
+		referenced[hand] = false;
+		hand = (hand + 1) % ids.length;
+	    }
+	    boolean evicted = ids[hand] != -1;
+	    if(evicted)
+		evictions++;
+
+	    ids[hand]        = chunk;
+	    chunks[hand]     = lines;
+	    referenced[hand] = false;
+	    hand = (hand + 1) % ids.length;
+	    return evicted;
+	}
+
+	void clear() {
+	    java.util.Arrays.fill(ids, -1);
+	    java.util.Arrays.fill(chunks, null);
+	    java.util.Arrays.fill(referenced, false);
+	}
+    }
+}
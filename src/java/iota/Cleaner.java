@@ -0,0 +1,69 @@
+package iota;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/*
+ * Closes resources whose owner was dropped without being closed.
+ *
+ * A stand in for java.lang.ref.Cleaner (Java 9+): each owner is tracked by a
+ * PhantomReference, and a daemon thread closes the owner's resource once the
+ * reference is enqueued.  Unlike finalize() this never resurrects the owner,
+ * and costs the collector nothing beyond the reference itself.  The resource
+ * must not refer back to its owner, or the owner will never be collected.
+ */
+public class Cleaner {
+
+    // Static Variables
+    final static ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+    final static Set<Cleanable>         LIVE  = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Cleanable, Boolean>()));
+
+    static {
+	Thread t = new Thread("iota-cleaner") {
+		public void run() {
+		    while(true) {
+			try {
+			    ((Cleanable)QUEUE.remove()).clean();
+			} catch(Throwable e) {
+			    // Keep cleaning up after everything else
+			}
+		    }
+		}
+	    };
+	t.setDaemon(true);
+	t.start();
+    }
+
+    // Close resource once owner is unreachable, unless the returned Cleanable is cleaned first
+    public static Cleanable register(Object owner, Closeable resource) {
+	Cleanable c = new Cleanable(owner, resource);
+	LIVE.add(c);
+	return c;
+    }
+
+    public static final class Cleanable extends PhantomReference<Object> {
+	private Closeable resource;
+
+	Cleanable(Object owner, Closeable resource) {
+	    super(owner, QUEUE);
+	    this.resource = resource;
+	}
+
+	// Close the resource now, at most once
+	public void clean() throws java.io.IOException {
+	    Closeable r;
+	    synchronized(this) {
+		r        = resource;
+		resource = null;
+	    }
+	    LIVE.remove(this);
+	    clear();
+	    if(r != null)
+		r.close();
+	}
+    }
+}
@@ -0,0 +1,74 @@
+package iota;
+
+import java.nio.charset.Charset;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.LazilyPersistentVector;
+
+/*
+ * Projects a few columns out of delimited records.
+ *
+ * Field boundaries are found in the record's bytes, and only the requested
+ * columns are decoded, so the rest of a wide line never becomes a String.
+ */
+public class Fields {
+
+    // Member Variables
+    public final byte    delim;
+    public final int[]   columns;
+    public final Charset charset;
+    final boolean[]      wanted;
+
+    public Fields(byte delim, int[] columns, Charset charset) {
+	int max = -1;
+	for(int c : columns) {
+	    if(c < 0)
+		throw new IllegalArgumentException("Column " + c + " is negative");
+	    max = Math.max(max, c);
+	}
+
+	this.delim   = delim;
+	this.columns = columns;
+	this.charset = charset;
+	this.wanted  = new boolean[max + 1];
+	for(int c : columns)
+	    wanted[c] = true;
+    }
+
+    /* Return a vector of the requested columns in the order they were given,
+     * with nil for any the record is too short to have, or nil for an
+     * empty record. */
+    public Object project(ByteRecord rec) {
+	if(rec.isEmpty())
+	    return null;
+
+	Object[] rv  = new Object[columns.length];
+	int      pos = 0;
+
+	for(int col = 0; col < wanted.length && pos <= rec.length(); col++) {
+	    int end = rec.indexOf(delim, pos);
+	    if(end < 0)
+		end = rec.length();
+
+	    if(wanted[col]) {
+		String field = rec.toString(pos, end - pos, charset);
+		for(int k = 0; k < columns.length; k++)
+		    if(columns[k] == col)
+			rv[k] = field;
+	    }
+	    pos = end + 1;
+	}
+	return LazilyPersistentVector.createOwning(rv);
+    }
+
+    // Wrap f so it's passed each record's projection instead of the record
+    public IFn projecting(final IFn f) {
+	return new AFn() {
+	    public Object invoke(Object acc, Object rec) {
+		return f.invoke(acc, project((ByteRecord)rec));
+	    }
+	};
+    }
+}
@@ -6,7 +6,6 @@ import clojure.lang.ISeq;
 import clojure.lang.Obj;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
 /*
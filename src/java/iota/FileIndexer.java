@@ -0,0 +1,225 @@
+package iota;
+
+import java.io.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Builds the chunk index used by FileVector.
+ *
+ * The mapped file is divided into ranges which are scanned in parallel on a
+ * ForkJoinPool.  A first pass counts separators per range, a prefix sum gives
+ * each range its starting line number, and a second pass compresses each
+ * range's chunk offsets into a LineIndex of its own as they're found, which
+ * are then joined block by block.  The offsets are never all held
+ * uncompressed, and the result is identical to a single threaded scan of
+ * the file.
+ */
+public class FileIndexer {
+
+    // Static Variables
+    final static int  BUFSIZE          = 4096;
+    final static long MIN_RANGE_SIZE   = 4194304; // 4MB, smaller files are indexed serially
+    final static int  RANGES_PER_CORE  = 4;
+
+    // Results
+    public final LineIndex chunkIndex;
+    public final long      lineCount;
+
+    public FileIndexer(Mmap map, int chunkSize, byte sep) throws IOException {
+	this(map, chunkSize, sep, null, false);
+    }
+
+    /* Extend prior, the index of a file which has since been appended to, to
+     * cover all of map.  Every chunk before prior's last is kept as is, and
+     * only the bytes from the start of its last chunk on are scanned.  With
+     * offHeap the index is kept in direct buffers. */
+    public FileIndexer(Mmap map, int chunkSize, byte sep, LineIndex prior, boolean offHeap) throws IOException {
+	long fileSize = map.size();
+
+	if(fileSize == 0) {
+	    this.chunkIndex = LineIndex.of(new long[]{0, 0}, offHeap);
+	    this.lineCount  = 0;
+	    return;
+	}
+
+	if(prior == null)
+	    prior = LineIndex.of(new long[]{0, 0}, false);
+	if(prior.last() > fileSize)
+	    throw new IllegalArgumentException("Index covers " + prior.last() + "B, but the file is only " + fileSize + "B");
+
+	// Keep prior up to and including the start of its last chunk
+	long keep  = prior.size() - 1;
+	long start = prior.get(keep - 1);
+	long lines = (keep - 1) * chunkSize;
+
+	// Divide the rest of the file into ranges
+	long   t0      = Metrics.enabled ? System.nanoTime() : 0;
+	long   length  = fileSize - start;
+	int    cores   = Runtime.getRuntime().availableProcessors();
+	long   nRanges = Math.max(1, Math.min( (long)cores * RANGES_PER_CORE, length / MIN_RANGE_SIZE ));
+	long   step    = Math.max(1, (length + nRanges - 1) / nRanges);
+	int    n       = (int)((length + step - 1) / step);
+	long[] bounds  = new long[n + 1];
+	for(int r = 0; r < n; r++)
+	    bounds[r] = start + (r * step);
+	bounds[n] = fileSize;
+
+	// Pass 1: count separators in every range
+	long[] counts = new long[n];
+	if(n > 0)
+	    run( new RangeTask(map, bounds, 0, n, sep, chunkSize, counts, null, null, offHeap) );
+
+	// Prefix sum to find the first line number of each range
+	long[] base  = new long[n];
+	long   total = lines;
+	for(int r = 0; r < n; r++) {
+	    base[r] = total;
+	    total  += counts[r];
+	}
+
+	// Pass 2: compress each range's chunk offsets
+	Fragment[] parts = new Fragment[n];
+	if(n > 0)
+	    run( new RangeTask(map, bounds, 0, n, sep, chunkSize, null, base, parts, offHeap) );
+
+	// Join them, framed by start of file and EOF
+	LineIndex.Builder index = new LineIndex.Builder(offHeap);
+	index.append(prior, keep);
+	for(Fragment f : parts)
+	    f.appendTo(index);
+	index.add(fileSize);
+
+	// Handle trailing text between byte sep and EOF
+	byte[] buf = new byte[1];
+	map.get(buf, fileSize - 1, 1);
+	if(buf[0] != sep)
+	    total++;
+
+	this.chunkIndex = index.build();
+	this.lineCount  = total;
+	if(t0 != 0)
+	    Metrics.indexBuilt(map, length, System.nanoTime() - t0);
+    }
+
+    public FileIndexer(LineIndex chunkIndex, long lineCount) {
+	this.chunkIndex = chunkIndex;
+	this.lineCount  = lineCount;
+    }
+
+    static void run(ForkJoinTask<?> task) {
+	if(ForkJoinTask.inForkJoinPool())
+	    task.invoke();
+	else
+	    PoolHolder.POOL.invoke(task);
+    }
+
+    private static class PoolHolder {
+	static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    // Count separators in [start, end)
+    static long count(Mmap map, long start, long end, byte sep) {
+	return map.count(sep, start, end);
+    }
+
+    /* The chunk offsets found in one range.  Those before the range's first
+     * block boundary (by entry number) are kept aside to finish the block
+     * before it, so that body starts on a boundary and its blocks can be
+     * copied as they are. */
+    static final class Fragment {
+	final long[]            head;
+	int                     nhead;
+	final LineIndex.Builder body;
+	LineIndex               built;
+
+	Fragment(long first, boolean offHeap) {
+	    this.head = new long[(int)((LineIndex.BLOCK - (first % LineIndex.BLOCK)) % LineIndex.BLOCK)];
+	    this.body = new LineIndex.Builder(offHeap);
+	}
+
+	void add(long offset) {
+	    if(nhead < head.length)
+		head[nhead++] = offset;
+	    else
+		body.add(offset);
+	}
+
+	void appendTo(LineIndex.Builder index) {
+	    for(int i = 0; i < nhead; i++)
+		index.add(head[i]);
+	    index.append(built, built.size());
+	}
+    }
+
+    /* Record the start of every chunk in [start, end), given the line count at start.
+     * Whole blocks are skipped with a popcount until one contains a chunk boundary,
+     * which is then located by walking the separators in that block. */
+    static void mark(Mmap map, long start, long end, byte sep, int chunkSize, long lc, Fragment index) {
+	for(long pos = start; pos < end; pos += BUFSIZE) {
+	    long lim = Math.min( end, pos + BUFSIZE );
+	    long c   = map.count(sep, pos, lim);
+
+	    // Next boundary isn't in this block
+	    if((lc % chunkSize) + c < chunkSize) {
+		lc += c;
+		continue;
+	    }
+
+	    for(long i = map.indexOf(sep, pos, lim); i >= 0; i = map.indexOf(sep, i + 1, lim)) {
+		lc++;
+		if((lc % chunkSize) == 0)
+		    index.add(i + 1);
+	    }
+	}
+	index.built = index.body.build();
+    }
+
+    /*
+     * Splits the set of ranges in half until a single range remains, then
+     * either counts (pass 1) or marks (pass 2) it.
+     */
+    static class RangeTask extends RecursiveAction {
+	final Mmap       map;
+	final long[]     bounds;
+	final int        lo;
+	final int        hi;
+	final byte       sep;
+	final int        chunkSize;
+	final long[]     counts;
+	final long[]     base;
+	final Fragment[] parts;
+	final boolean    offHeap;
+
+	RangeTask(Mmap map, long[] bounds, int lo, int hi, byte sep, int chunkSize, long[] counts, long[] base, Fragment[] parts, boolean offHeap) {
+	    this.map       = map;
+	    this.bounds    = bounds;
+	    this.lo        = lo;
+	    this.hi        = hi;
+	    this.sep       = sep;
+	    this.chunkSize = chunkSize;
+	    this.counts    = counts;
+	    this.base      = base;
+	    this.parts     = parts;
+	    this.offHeap   = offHeap;
+	}
+
+	protected void compute() {
+	    if(hi - lo > 1) {
+		int mid = (lo + hi) >>> 1;
+		invokeAll( new RangeTask(map, bounds, lo, mid, sep, chunkSize, counts, base, parts, offHeap),
+			   new RangeTask(map, bounds, mid, hi, sep, chunkSize, counts, base, parts, offHeap) );
+		return;
+	    }
+
+	    if(counts != null) {
+		counts[lo] = count(map, bounds[lo], bounds[lo + 1], sep);
+	    } else {
+		// Entry number of the first chunk starting in this range
+		parts[lo] = new Fragment((base[lo] / chunkSize) + 1, offHeap);
+		mark(map, bounds[lo], bounds[lo + 1], sep, chunkSize, base[lo], parts[lo]);
+	    }
+	}
+    }
+}
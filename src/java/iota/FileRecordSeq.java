@@ -1,13 +1,17 @@
 package iota;
 
 import clojure.lang.ASeq;
+import clojure.lang.IFn;
+import clojure.lang.IReduce;
 import clojure.lang.IPersistentMap;
 import clojure.lang.ISeq;
 import clojure.lang.Obj;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Spliterator;
 
 /*
 * Variation of FileSeq with multibyte split separator.
@@ -15,7 +19,7 @@ import java.util.ArrayList;
 * */
 
 
-public class FileRecordSeq extends ASeq {
+public class FileRecordSeq extends ASeq implements ByteReducible, IReduce, Closeable {
 
     // Static Variables
     final static int DEFAULT_BUFSIZE = 262144; // 256KB
@@ -27,6 +31,7 @@ public class FileRecordSeq extends ASeq {
     public final long end;
     public final int bufsize;
     public final byte[] splitsep;
+    public final Charset charset;
 
     public FileRecordSeq(String filename) throws IOException {
         this(filename, FileRecordSeq.DEFAULT_BUFSIZE, FileRecordSeq.DEFAULT_SPLIT_SEP);
@@ -37,99 +42,56 @@ public class FileRecordSeq extends ASeq {
     }
 
     public FileRecordSeq(String filename, int bufsize, byte[] splitsep) throws IOException {
-        Mmap map = new Mmap(filename);
+        this(filename, bufsize, splitsep, Charsets.UTF8);
+    }
+
+    public FileRecordSeq(String filename, int bufsize, byte[] splitsep, Charset charset) throws IOException {
+        this(new Mmap(filename), bufsize, splitsep, charset);
+    }
 
+    // Over a file already opened, e.g. by Mmap.open() to choose how it's read
+    public FileRecordSeq(Mmap map, int bufsize, byte[] splitsep, Charset charset) throws IOException {
         this.map = map;
         this.start = 0;
         this.bufsize = bufsize;
         this.splitsep = splitsep;
+        this.charset = charset;
         this.end = map.size();
     }
 
     public FileRecordSeq(Mmap map, long start, long end, int bufsize, byte[] splitsep) {
+        this(map, start, end, bufsize, splitsep, Charsets.UTF8);
+    }
+
+    public FileRecordSeq(Mmap map, long start, long end, int bufsize, byte[] splitsep, Charset charset) {
         this.map = map;
         this.start = start;
         this.end = end;
         this.bufsize = bufsize;
         this.splitsep = splitsep;
+        this.charset = charset;
     }
 
-    private static class Chunk {
-        public int start;
-        public int end;
-        public byte[] buf;
-        public boolean foundSplit;
-        public int matchIndex;
-
-        public Chunk(byte[] buf) {
-            this.buf = buf;
-            setValues(0, 0, false, 0);
-        }
-
-        public Chunk resetPosition() {
-            start = 0;
-            end = 0;
-            return this;
-        }
-
-        public Chunk setValues(int start, int end, boolean foundSplit, int matchIndex) {
-            this.start = start;
-            this.end = end;
-            this.foundSplit = foundSplit;
-            this.matchIndex = matchIndex;
-            return this;
-        }
+    // End of the next record in [start, end), just past its separator, or -1
+    private long nextChunkEnd(long start, long end, byte[] sep) {
+        long i = map.indexOf(sep, start, end);
+        return (i < 0) ? -1 : i + sep.length;
     }
 
-    private Chunk nextSplit(Chunk chunk, int end, byte[] sep) {
-        // need to match separators also on the border of chunks
-        int matchIndex = chunk.matchIndex;
-        boolean lastMatch;
-        byte[] buf = chunk.buf;
-
-        for (int x = chunk.end; x < end; x++) {
-
-            if (buf[x] == sep[matchIndex]) {
-                lastMatch = true;
-            } else {
-                lastMatch = false;
-                matchIndex = 0;
-            }
-
-            if (lastMatch && matchIndex == sep.length - 1) {
-                return chunk.setValues(chunk.end, x + 1, true, 0);
-            } else if (lastMatch) {
-                matchIndex++;
-            }
-        }
-        // separator not found, return the whole remaining chunk
-        return chunk.setValues(chunk.end, end, false, matchIndex);
+    public FileRecordSeq[] split() {
+        // Find midpoint, or a buffer boundary near it
+        return split(SplitPlanner.midpoint(start, end));
     }
 
-    private long nextChunkEnd(long start, long end, byte[] sep) {
-
-        byte[] buf = new byte[bufsize];
-        Chunk chunk = new Chunk(buf);
-        for (long i = start; i < end; i += bufsize) {
-            int remsize = bufsize;
-            if (end - i < remsize) {
-                remsize = (int) (end - i);
-            }
-
-            map.get(buf, i, remsize);
-
-            chunk = nextSplit(chunk.resetPosition(), remsize, sep);
-            if (chunk.foundSplit) {
-                return i + chunk.end;
-            }
+    /* Divide this seq into ranges of about the same number of bytes for a
+     * fold, a few per core and none much smaller than bufsize. */
+    public FileRecordSeq[] plan() {
+        long[] cuts = SplitPlanner.plan(map, start, end, splitsep, SplitPlanner.parts(end - start, bufsize));
+        FileRecordSeq[] rv = new FileRecordSeq[cuts.length - 1];
+        for (int i = 0; i < rv.length; i++) {
+            rv[i] = new FileRecordSeq(map, cuts[i], cuts[i + 1], bufsize, splitsep, charset);
         }
-
-        return -1;
-    }
-
-    public FileRecordSeq[] split() {
-        // Find midpoint
-        return split((((end - start) / 2) + start));
+        return rv;
     }
 
     public FileRecordSeq[] split(long loc) {
@@ -146,8 +108,8 @@ public class FileRecordSeq extends ASeq {
 
         FileRecordSeq[] rv = new FileRecordSeq[2];
         // Create new for left and right
-        rv[0] = new FileRecordSeq(map, start, eor, bufsize, splitsep);
-        rv[1] = new FileRecordSeq(map, eor, end, bufsize, splitsep);
+        rv[0] = new FileRecordSeq(map, start, eor, bufsize, splitsep, charset);
+        rv[1] = new FileRecordSeq(map, eor, end, bufsize, splitsep, charset);
         return rv;
     }
 
@@ -157,16 +119,8 @@ public class FileRecordSeq extends ASeq {
         int size = (int) (eor - start);
         byte[] buf = new byte[size];
         map.get(buf, start, size);
-        String rv = null;
 
-        try {
-            rv = new String(buf, 0, size, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // DEBUG / ERROR / ETC
-            // Not handling encoding exceptions properly!!!
-        }
-
-        return rv;
+        return Charsets.decode(buf, 0, size, charset);
     }
 
     public ISeq next() {
@@ -176,7 +130,7 @@ public class FileRecordSeq extends ASeq {
             return null;
         }
 
-        return new FileRecordSeq(this.map, eor, end, bufsize, splitsep);
+        return new FileRecordSeq(this.map, eor, end, bufsize, splitsep, charset);
     }
 
     public Object[] toArray() {
@@ -185,22 +139,51 @@ public class FileRecordSeq extends ASeq {
         map.get(buf, start, size);
         ArrayList<String> rv = new ArrayList<String>();
 
-        try {
-            Chunk chunk = new Chunk(buf);
-            do {
-                chunk = nextSplit(chunk, size, splitsep);
-                String chunkStr = new String(chunk.buf, chunk.start, chunk.end - chunk.start, "UTF-8");
-                rv.add(chunkStr);
-            } while (chunk.end < size);
-
-        } catch (UnsupportedEncodingException e) {
-            // DEBUG / ERROR / ETC
-            // Not handling encoding exceptions properly!!!
-        }
+        int pos = 0;
+        do {
+            int eor = Scanner.indexOf(buf, pos, size, splitsep);
+            eor = eor < 0 ? size : eor + splitsep.length;
+            rv.add(Charsets.decode(buf, pos, eor - pos, charset));
+            pos = eor;
+        } while (pos < size);
 
         return rv.toArray();
     }
 
+    public Object reduceBytes(IFn f, Object init) {
+        return ByteRecord.reduce(map, start, end, splitsep, f, init);
+    }
+
+    // Unmap and close the file, which is shared with every rest and split of this seq
+    public void close() throws IOException {
+        map.close();
+    }
+
+    /* Reduce over every record in a single pass over the mapped file, rather
+     * than walking first/next. */
+    public Object reduce(IFn f, Object init) {
+        return ByteRecord.reduce(map, start, end, splitsep, ByteRecord.decoding(f, false, charset), init);
+    }
+
+    public Object reduce(IFn f) {
+        long eor = nextChunkEnd(start, end, splitsep);
+        if (eor == -1 || eor >= end) {
+            return first();
+        }
+        return new FileRecordSeq(map, eor, end, bufsize, splitsep, charset).reduce(f, first());
+    }
+
+    /* For java.util.Collection's stream() and parallelStream(), which get
+     * each record as a String ending with its separator */
+    public Spliterator<String> spliterator() {
+        return RecordSpliterator.strings(map, start, end, splitsep, true, bufsize, charset);
+    }
+
+    // Each record as a ByteRecord reused for every record, see RecordSpliterator
+    public Spliterator<ByteRecord> byteSpliterator() {
+        return RecordSpliterator.bytes(map, start, end, splitsep, true, bufsize);
+    }
+
     public Obj withMeta(IPersistentMap meta) {
         throw new UnsupportedOperationException();
     }
@@ -1,15 +1,19 @@
 package iota;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Spliterator;
 
 /* Grab Clojure */
 import clojure.lang.ASeq;
+import clojure.lang.IFn;
+import clojure.lang.IReduce;
 import clojure.lang.ISeq;
 import clojure.lang.IPersistentMap;
 import clojure.lang.Obj;
 
 
-public class FileSeq extends ASeq {
+public class FileSeq extends ASeq implements ByteReducible, IReduce, Closeable {
 
     // Static Variables
     final static int  DEFAULT_BUFSIZE = 262144; // 256KB
@@ -21,6 +25,7 @@ public class FileSeq extends ASeq {
     public final long end;
     public final int  bufsize;
     public final byte linesep;
+    public final Charset charset;
 
     public FileSeq(String filename) throws IOException {
 	this(filename, FileSeq.DEFAULT_BUFSIZE, FileSeq.DEFAULT_LINESEP);
@@ -31,14 +36,23 @@ public class FileSeq extends ASeq {
     }
 
     public FileSeq(String filename, int bufsize, byte sep) throws IOException {
+	this(filename, bufsize, sep, Charsets.UTF8);
+    }
+
+    public FileSeq(String filename, int bufsize, byte sep, Charset charset) throws IOException {
+	this(new Mmap(filename), bufsize, sep, charset);
+    }
+
+    // Over a file already opened, e.g. by Mmap.open() to choose how it's read
+    public FileSeq(Mmap map, int bufsize, byte sep, Charset charset) throws IOException {
 	long   end = 0;
 	byte[] buf = new byte[1];
-	Mmap   map = new Mmap(filename);
-	
+
 	this.map     = map;
 	this.start   = 0;
 	this.bufsize = bufsize;
 	this.linesep = sep;
+	this.charset = charset;
 
 	// Handle trailing separator
 	end = map.size();
@@ -50,30 +64,22 @@ public class FileSeq extends ASeq {
     }
 
     public FileSeq(Mmap map, long start, long end, int bufsize, byte sep) {
+	this(map, start, end, bufsize, sep, Charsets.UTF8);
+    }
+
+    public FileSeq(Mmap map, long start, long end, int bufsize, byte sep, Charset charset) {
 	this.map     = map;
 	this.start   = start;
 	this.end     = end;
 	this.bufsize = bufsize;
 	this.linesep = sep;
+	this.charset = charset;
     }
 
-    // Fairly inefficient, hope this isn't used too much...
+    // Position of the next linesep in [start, end), or rv if there isn't one
     public long mapchr(long start, long end, byte b, long rv) {
-	byte[] buf = new byte[bufsize];
-
-	for(long i = start; i < end; i+=bufsize)
-	    {
-		int remsize = (int)Math.min( (long)(this.end - i), (long)bufsize );
-		map.get(buf, i, remsize);
-
-		for(int x=0; x < remsize; x++) {
-		    if (buf[x] == linesep) {
-			return (i+x);
-		    }
-		}
-	    }
-
-	return rv;
+	long i = map.indexOf(linesep, start, Math.min(end, this.end));
+	return (i < 0) ? rv : i;
     }
 
     public FileSeq[] split(){
@@ -84,15 +90,27 @@ public class FileSeq extends ASeq {
 	    return null;
 	}
 
-	// Find midpoint
-	long midpoint = mapchr((((end - start) / 2) + start), end, linesep, -2) + 1;
+	// Find midpoint, or a buffer boundary near it
+	long midpoint = mapchr(SplitPlanner.midpoint(start, end), end, linesep, -2) + 1;
 	if((midpoint < 0) || (midpoint >= end)) {
 	    return null;
 	}
 
 	// Create new for left and right
-	rv[0] = new FileSeq(map, start, (midpoint-1), bufsize, linesep); // minus one to remove newline
-	rv[1] = new FileSeq(map, midpoint, end,       bufsize, linesep);
+	rv[0] = new FileSeq(map, start, (midpoint-1), bufsize, linesep, charset); // minus one to remove newline
+	rv[1] = new FileSeq(map, midpoint, end,       bufsize, linesep, charset);
+	return rv;
+    }
+
+    /* Divide this seq into ranges of about the same number of bytes for a
+     * fold, a few per core and none much smaller than bufsize. */
+    public FileSeq[] plan() {
+	long[]    cuts = SplitPlanner.plan(map, start, end, new byte[]{linesep}, SplitPlanner.parts(end - start, bufsize));
+	FileSeq[] rv   = new FileSeq[cuts.length - 1];
+	for(int i = 0; i < rv.length; i++) {
+	    long to = (i == rv.length - 1) ? end : cuts[i + 1] - 1; // minus one to remove newline
+	    rv[i] = new FileSeq(map, cuts[i], to, bufsize, linesep, charset);
+	}
 	return rv;
     }
 
@@ -101,14 +119,7 @@ public class FileSeq extends ASeq {
 	int size = (int)(eol - start);
 	byte[] buf = new byte[size];
 	map.get(buf, start, size);
-	String rv = null;
-
-	try {
-	    rv = new String(buf, 0, size, "UTF-8");
-	} catch (UnsupportedEncodingException e)  {
-	    // DEBUG / ERROR / ETC
-	    // Not handling encoding exceptions properly!!!
-	}
+	String rv = Charsets.decode(buf, 0, size, charset);
 
 	// Convert "" to null
 	if(rv.isEmpty()) {
@@ -125,7 +136,7 @@ public class FileSeq extends ASeq {
 	    return null;
 	}
 
-	return new FileSeq(this.map, eol, end, bufsize, linesep);
+	return new FileSeq(this.map, eol, end, bufsize, linesep, charset);
     }
 
     public Object[] toArray() {
@@ -134,25 +145,65 @@ public class FileSeq extends ASeq {
 	String[] rv = null;
 
 	map.get(buf, start, size);
+	rv = Scanner.split(buf, 0, size, linesep, charset);
 
-	try {
-	    String sbuf = new String(buf, 0, size, "UTF-8");
-	    rv = sbuf.split("[" + new String(new byte[]{this.linesep}) + "]", -1);
-
-	    // Convert "" to null
-	    for(int i=0; i < rv.length; i++) {
-		if(rv[i].isEmpty()) {
-		    rv[i] = null;
-		}
+	// Convert "" to null
+	for(int i=0; i < rv.length; i++) {
+	    if(rv[i].isEmpty()) {
+		rv[i] = null;
 	    }
-	} catch (UnsupportedEncodingException e)  {
-	    // DEBUG / ERROR / ETC
-	    // Not handling encoding exceptions properly!!!
 	}
 
 	return rv;
     }
 
+    public Object reduceBytes(IFn f, Object init) {
+	return ByteRecord.reduce(map, start, end, linesep, Long.MAX_VALUE, f, init);
+    }
+
+    // Unmap and close the file, which is shared with every rest and split of this seq
+    public void close() throws IOException {
+	map.close();
+    }
+
+    /* Reduce over the same lines toArray() returns, decoding one at a time
+     * straight from the mapped file instead of materializing them all.
+     * This is what fold reduces each of its leaves with. */
+    public Object reduceRecords(IFn f, Object init) {
+	return ByteRecord.reduce(map, start, end, linesep, Long.MAX_VALUE, ByteRecord.decoding(f, true, charset), init);
+    }
+
+    /* Reduce over every line in a single pass over the mapped file, rather
+     * than walking first/next. */
+    public Object reduce(IFn f, Object init) {
+	return ByteRecord.reduce(map, start, last(), linesep, Long.MAX_VALUE, ByteRecord.decoding(f, true, charset), init);
+    }
+
+    public Object reduce(IFn f) {
+	long eol = mapchr(start, end, linesep, -1);
+	if(eol < 0)
+	    return first();
+	return new FileSeq(map, eol + 1, end, bufsize, linesep, charset).reduce(f, first());
+    }
+
+    /* For java.util.Collection's stream() and parallelStream(), which get
+     * the same lines as reduce(), with empty lines as "" rather than null */
+    public Spliterator<String> spliterator() {
+	return RecordSpliterator.strings(map, start, last(), new byte[]{linesep}, false, bufsize, charset);
+    }
+
+    // Each line as a ByteRecord reused for every line, see RecordSpliterator
+    public Spliterator<ByteRecord> byteSpliterator() {
+	return RecordSpliterator.bytes(map, start, last(), new byte[]{linesep}, false, bufsize);
+    }
+
+    // As with next(), a separator in the last byte doesn't start another line
+    long last() {
+	if((end > start) && (map.get(end - 1) == linesep))
+	    return end - 1;
+	return end;
+    }
+
     public Obj withMeta(IPersistentMap meta){
     	throw new UnsupportedOperationException();
     }
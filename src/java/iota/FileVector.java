@@ -1,8 +1,9 @@
 package iota;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.Spliterator;
 
 /* Grab Clojure */
 import clojure.lang.APersistentVector;
@@ -16,8 +17,11 @@ import clojure.lang.ASeq;
 import clojure.lang.ISeq;
 import clojure.lang.Obj;
 import clojure.lang.Associative;
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.IReduce;
 
-public class FileVector extends APersistentVector {
+public class FileVector extends APersistentVector implements ByteReducible, IReduce, Closeable {
 
     // Static Variables
     final static int  DEFAULT_CHUNK_SIZE = 10;
@@ -27,13 +31,12 @@ public class FileVector extends APersistentVector {
 
     // Member Variables
     public final Mmap             map;
-    public final long[]           chunkIndex;
+    public final LineIndex        chunkIndex;
     public final int              chunkSize;
-    public final int              lineCount;
+    public final long             lineCount;
     public final byte             sep;
-
-    public int                    cachedChunkId;
-    public String[]               cachedChunk;
+    public final ChunkCache       cache; // Shared with subvecs
+    public final Charset          charset;
 
 
 
@@ -49,113 +52,134 @@ public class FileVector extends APersistentVector {
     }
 
     public FileVector(String filename, int chunkSize, byte sep) throws IOException {
-	this.map           = new Mmap( filename );
+	this(filename, chunkSize, sep, null);
+    }
+
+    /* If indexFile is provided, the index is loaded from it when it's still
+     * valid for filename, and otherwise built and saved there for next time. */
+    public FileVector(String filename, int chunkSize, byte sep, String indexFile) throws IOException {
+	this(filename, chunkSize, sep, indexFile, ChunkCache.DEFAULT_CAPACITY);
+    }
+
+    // cacheSize is the number of decoded chunks to keep
+    public FileVector(String filename, int chunkSize, byte sep, String indexFile, int cacheSize) throws IOException {
+	this(filename, chunkSize, sep, indexFile, cacheSize, Charsets.UTF8);
+    }
+
+    public FileVector(String filename, int chunkSize, byte sep, String indexFile, int cacheSize, Charset charset) throws IOException {
+	this(filename, chunkSize, sep, indexFile, cacheSize, charset, false);
+    }
+
+    // With offHeap, the chunk index is kept in direct buffers rather than on the heap
+    public FileVector(String filename, int chunkSize, byte sep, String indexFile, int cacheSize, Charset charset, boolean offHeap) throws IOException {
+	this(new Mmap( filename ), chunkSize, sep, indexFile, cacheSize, charset, offHeap);
+    }
+
+    // Over a file already opened, e.g. by Mmap.open() to choose how it's read
+    public FileVector(Mmap map, int chunkSize, byte sep, String indexFile, int cacheSize, Charset charset, boolean offHeap) throws IOException {
+	String filename    = map.filename();
+	this.map           = map;
 	this.chunkSize     = chunkSize;
-	this.cachedChunkId = -1;
+	this.cache         = new ChunkCache( cacheSize );
 	this.sep           = sep;
+	this.charset       = charset;
 
-	ArrayList<Long> al = new ArrayList<Long>();
-	byte[]         buf = new byte[BUFSIZE];
-	long            lc = 0; // Line count
-	long           pos = 0; // Position in file
-	long      fileSize = map.size(); // Total bytes in file
-	int        remsize = 0; // Bytes remaining in buf
-
-	// Capture the start of the file
-	al.add( new Long(0) );
-
-	// Index file
-	while( pos < fileSize ) {
-
-	    // Populate buffer
-	    remsize = (int)Math.min( (long)(fileSize - pos), (long)BUFSIZE );
-	    map.get(buf, pos, remsize);
-
-	    // Iterate over every byte in the buffer
-	    for(int i=0; i < remsize; i++) {	 // Bytes
-		if(buf[i] == sep) {               // Newlines
-		    lc++;
-		    if ((lc % chunkSize) == 0) { // Chunks
-			al.add( new Long(pos + i + 1) );
-		    }
-		}
-	    }
-	    pos+=remsize;
-	}
-	al.add( new Long(pos) ); // Capture the EOF
+	FileIndexer idx = null;
+	if(indexFile != null)
+	    idx = IndexFile.read(indexFile, filename, map, chunkSize, sep, offHeap);
 
-	// Handle trailing text between byte sep and EOF
-	if(buf[remsize-1] != sep) {
-	    lc++;
+	if(idx == null) {
+	    // Index file in parallel
+	    idx = new FileIndexer(map, chunkSize, sep, null, offHeap);
+
+	    if(indexFile != null)
+		IndexFile.write(indexFile, filename, map, chunkSize, sep, idx);
 	}
 
 	// Record line count
-	this.lineCount = (int)lc;
-
-	// Convert to long
-	long[] tmp = new long[al.size()];
-	for(int i=0; i < al.size(); i++)
-	    tmp[i] = ((Long)al.get(i)).longValue();
+	this.lineCount  = idx.lineCount;
+	this.chunkIndex = idx.chunkIndex;
+    }
 
-	this.chunkIndex = tmp;
+    public FileVector(Mmap map, LineIndex chunkIndex, int chunkSize, long lineCount) {
+	this(map, chunkIndex, chunkSize, lineCount, FileVector.DEFAULT_SEP, new ChunkCache(), Charsets.UTF8);
     }
 
-    public FileVector(Mmap map, long[] chunkIndex, int chunkSize, int lineCount) {
+    public FileVector(Mmap map, LineIndex chunkIndex, int chunkSize, long lineCount, byte sep, ChunkCache cache, Charset charset) {
 	this.map           = map;
 	this.chunkSize     = chunkSize;
-	this.cachedChunkId = -1;
+	this.cache         = cache;
 	this.lineCount     = lineCount;
 	this.chunkIndex    = chunkIndex;
-	this.sep           = this.DEFAULT_SEP;
+	this.sep           = sep;
+	this.charset       = charset;
     }
 
 
-    public String[] getChunk(int i) {
-	long      pos = chunkIndex[i++];
-	int      size = (int)(chunkIndex[i] - pos);
-	byte[]    buf = new byte[size];
-	String[]   rv = null;
+    /* Return a vector over this file as it is now, for files which are
+     * appended to.  Only the appended data and the last chunk it continues are
+     * indexed; everything before is carried over.  Returns this if the file
+     * hasn't grown. */
+    public FileVector refresh() throws IOException {
+	Mmap m = map.extend();
+	if(m == map)
+	    return this;
+	return withIndex(m, new FileIndexer(m, chunkSize, sep, chunkIndex, chunkIndex.offHeap));
+    }
 
-	try {
-	    // Grab chunk from memory
-	    map.get(buf, pos, size);
+    /* Unmap and close the file, along with every subvec and refresh() of
+     * this vector; none of them may be read afterwards. */
+    public void close() throws IOException {
+	if(map != null)
+	    map.close();
+	cache.clear();
+    }
 
-	    // Convert to string and split on lines
-	    String sbuf = new String(buf, 0, size, "UTF-8");
-	    rv = sbuf.split("[" + new String(new byte[]{this.sep}) + "]", -1);
-	}
-	catch (UnsupportedEncodingException e)  {
-	    // DEBUG / ERROR / ETC
-	    // Not handling encoding exceptions properly!!!
-	}
+    // A vector like this one over map and idx, with its own cache
+    protected FileVector withIndex(Mmap map, FileIndexer idx) {
+	return new FileVector(map, idx.chunkIndex, chunkSize, idx.lineCount, sep, new ChunkCache(cache.capacity()), charset);
+    }
 
+    public String[] getChunk(long i) {
+	long     t0   = Metrics.enabled ? System.nanoTime() : 0;
+	long      pos = chunkIndex.get(i++);
+	int      size = (int)(chunkIndex.get(i) - pos);
+	byte[]    buf = new byte[size];
+
+	// Grab chunk from memory
+	map.get(buf, pos, size);
+
+	// Convert to string and split on lines
+	String[] rv = Scanner.split(buf, 0, size, this.sep, this.charset);
+	if(t0 != 0)
+	    Metrics.chunkDecoded(this, size, System.nanoTime() - t0);
 	return rv;
     }
 
     // Retrieve line
-    protected String getLine(int i) {
+    protected String getLine(long i) {
 	return getLine(this, i);
     }
 
-    protected String getLine(FileVector v, int i) {
-	int  chunk     = i / chunkSize;
-	int  chunk_n   = i % chunkSize;
+    protected String getLine(FileVector v, long i) {
+	long chunk     = i / chunkSize;
+	int  chunk_n   = (int)(i % chunkSize);
 	String   rv    = null;
 
-	if( (chunk < 0) || (chunk >= this.chunkIndex.length) )
-	    throw new IndexOutOfBoundsException("getLine() failure: " + chunk + " is not within  0..." + this.chunkIndex.length);
+	if( (chunk < 0) || (chunk >= this.chunkIndex.size()) )
+	    throw new IndexOutOfBoundsException("getLine() failure: " + chunk + " is not within  0..." + this.chunkIndex.size());
 
-	synchronized(v) {
-	    if(chunk != v.cachedChunkId) {
-		v.cachedChunk   = v.getChunk(chunk);
-		v.cachedChunkId = chunk;
-	    }
+	// Decoded outside of the cache's locks, so a racing reader may decode the same chunk
+	String[] lines = v.cache.get(chunk);
+	if(lines == null) {
+	    lines = v.getChunk(chunk);
+	    v.cache.put(chunk, lines);
+	}
 
-	    if(chunk_n >= v.cachedChunk.length)
-		throw new IndexOutOfBoundsException("getLine() failure: Chunk #" + chunk + "'s [" + chunk_n + "]  is not within  0..." + v.cachedChunk.length);
+	if(chunk_n >= lines.length)
+	    throw new IndexOutOfBoundsException("getLine() failure: Chunk #" + chunk + "'s [" + chunk_n + "]  is not within  0..." + lines.length);
 
-	    rv = v.cachedChunk[chunk_n];		
-	}
+	rv = lines[chunk_n];
 
 	if(rv.isEmpty())
 	    return null;
@@ -163,16 +187,131 @@ public class FileVector extends APersistentVector {
     }
 
 
+    // Byte offset in the file where line i starts
+    protected long lineStart(long i) {
+	long pos = chunkIndex.get(i / chunkSize);
+	long eof = chunkIndex.last();
+	for(long n = i % chunkSize; n > 0; n--)
+	    pos = map.indexOf(sep, pos, eof) + 1;
+	return pos;
+    }
+
+    // Reduce over lines [start, end) as ByteRecord's
+    protected Object reduceBytes(long start, long end, IFn f, Object init) {
+	if(start >= end)
+	    return init;
+	return ByteRecord.reduce(map, lineStart(start), chunkIndex.last(), sep, end - start, f, init);
+    }
+
+
+    // The file offsets of the chunks holding this vector's lines, as [from, to)
+    public long[] byteSpan() {
+	return byteSpan(0, count());
+    }
+
+    protected long[] byteSpan(long from, long to) {
+	if(chunkIndex == null)
+	    return new long[]{0, 0};
+	long last = chunkIndex.size() - 1;
+	return new long[]{ chunkIndex.get(Math.min(from / chunkSize, last)),
+			   chunkIndex.get(Math.min((to + chunkSize - 1) / chunkSize, last)) };
+    }
+
+    // Exactly the bytes [from, to) of the file holding this vector's lines
+    public long[] lineSpan() {
+	return lineSpan(0, longCount());
+    }
+
+    protected long[] lineSpan(long from, long to) {
+	long eof = (chunkIndex == null) ? 0 : chunkIndex.last();
+	return new long[]{ (from < lineCount) ? lineStart(from) : eof,
+			   (to < lineCount) ? lineStart(to) : eof };
+    }
+
+    /* Where to divide this vector in two for a fold: at the chunk boundary
+     * closest to halving its bytes, or to a buffer boundary in the middle
+     * half, rather than halving its lines. */
+    public int splitPoint() {
+	return (int)splitPoint(0, count());
+    }
+
+    // The same for lines [from, to), which may lie past Integer.MAX_VALUE
+    public long splitPoint(long from, long to) {
+	long mid = from + ((to - from) / 2);
+	long c0  = (from / chunkSize) + 1;  // First chunk starting after from
+	long c1  = (to - 1) / chunkSize;    // Last chunk starting before to
+	if(chunkIndex == null || c0 > c1)
+	    return mid;
+
+	long[] span   = byteSpan(from, to);
+	long   target = SplitPlanner.midpoint(span[0], span[1]);
+
+	// First chunk in [c0, c1] starting at or after target
+	long lo = c0, hi = c1;
+	while(lo < hi) {
+	    long m = (lo + hi) >>> 1;
+	    if(chunkIndex.get(m) < target)
+		lo = m + 1;
+	    else
+		hi = m;
+	}
+	if(lo > c0 && target - chunkIndex.get(lo - 1) < chunkIndex.get(lo) - target)
+	    lo--;
+	return lo * chunkSize;
+    }
+
+    // Line i's bytes in place, bypassing the cache
+    public ByteRecord getRecord(int i) {
+	return getRecord((long)i);
+    }
+
+    public ByteRecord getRecord(long i) {
+	if(i < 0 || i >= longCount())
+	    throw new IndexOutOfBoundsException("getRecord() failure: " + i + " is not within 0..." + longCount());
+	return recordAt(i);
+    }
+
+    protected ByteRecord recordAt(long i) {
+	long from = lineStart(i);
+	long eof  = chunkIndex.last();
+	long to   = map.indexOf(sep, from, eof);
+	return new ByteRecord().set(map, from, (to < 0) ? eof : to);
+    }
+
+    // Reduce over lines [start, end) of this vector in a single pass, bypassing the cache
+    protected Object reduce(final long start, long end, final IFn f, Object init) {
+	return reduceBytes(start, end, new AFn() {
+		long i = start;
+
+		public Object invoke(Object acc, Object rec) {
+		    return f.invoke(acc, decodeLine(i++, (ByteRecord)rec));
+		}
+	    }, init);
+    }
+
+    // Line i as getLine(FileVector, int) would return it, from its bytes
+    protected String decodeLine(long i, ByteRecord rec) {
+	if(rec.isEmpty())
+	    return null;
+	return rec.toString(charset);
+    }
+
+
     /*  **  **  **  **  **  **  **  **
      *  FileVector Specific Public Calls
      *  **  **  **  **  **  **  **  **/
     public FileVector subvec(int start){
-	return subvec(start, count());
+	return subvec(start, longCount());
     }
 
     public FileVector subvec(int start, int end){
-	if(end < start || start < 0 || end > this.count())
-	    throw new IndexOutOfBoundsException("[" + start + ", " + end + "] not between 0 and " + this.count() + ".");
+	return subvec((long)start, (long)end);
+    }
+
+    // For vectors of more than Integer.MAX_VALUE lines, which fold splits by longCount()
+    public FileVector subvec(long start, long end){
+	if(end < start || start < 0 || end > this.longCount())
+	    throw new IndexOutOfBoundsException("[" + start + ", " + end + "] not between 0 and " + this.longCount() + ".");
 	if(start == end)
 	    return FileVector.EMPTY;
 	return new FileVector.SubFileVector(this, start, end);
@@ -184,11 +323,11 @@ public class FileVector extends APersistentVector {
      *  **  **  **  **  **  **  **  **/
     public class SubFileVector extends FileVector{
 	final FileVector v;
-	final int        start;
-	final int        end;
+	final long       start;
+	final long       end;
 
-	public SubFileVector(FileVector v, int start, int end){
-	    super(v.map, v.chunkIndex, v.chunkSize, v.lineCount);
+	public SubFileVector(FileVector v, long start, long end){
+	    super(v.map, v.chunkIndex, v.chunkSize, v.lineCount, v.sep, v.cache, v.charset);
 
 	    if(v instanceof FileVector.SubFileVector)
 		{
@@ -202,7 +341,7 @@ public class FileVector extends APersistentVector {
 	    this.end = end;
 	}
 
-	public String nth(int i){
+	public String nth(long i){
 	    if((start + i >= end) || (i < 0))
 		throw new IndexOutOfBoundsException("bad value for " + i + " since it's really " + start + " + " + i + " which is outside " + end);
 
@@ -211,18 +350,55 @@ public class FileVector extends APersistentVector {
 	    return v.getLine(this, start + i);
 	}
 
-	public int count(){
+	public long longCount(){
 	    return end - start;
 	}
 
-	public ISeq seq(){
-	    return new FileVectorSeq(this);
+	public Object reduceBytes(IFn f, Object init){
+	    return v.reduceBytes(start, end, f, init);
+	}
+
+	protected Object reduce(long from, long to, IFn f, Object init){
+	    return v.reduce(start + from, start + to, f, init);
+	}
+
+	protected ByteRecord recordAt(long i){
+	    return v.recordAt(start + i);
+	}
+
+	protected long[] byteSpan(long from, long to){
+	    return v.byteSpan(start + from, start + to);
+	}
+
+	protected long[] lineSpan(long from, long to){
+	    return v.lineSpan(start + from, start + to);
+	}
+
+	public long splitPoint(long from, long to){
+	    return v.splitPoint(start + from, start + to) - start;
+	}
+
+	public Spliterator<String> spliterator(){
+	    return VectorSpliterator.strings(v, start, end);
+	}
+
+	public Spliterator<ByteRecord> byteSpliterator(){
+	    return VectorSpliterator.bytes(v, start, end);
+	}
+
+	public FileVector refresh(){
+	    throw new UnsupportedOperationException("Refresh the vector this is a subvec of instead");
 	}
     }
 
 
     /* For clojure.lang.Indexed */
     public String nth(int i){
+	return nth((long)i);
+    }
+
+    // Line i, which may lie past Integer.MAX_VALUE
+    public String nth(long i){
 	return getLine(i);
     }
 
@@ -234,8 +410,44 @@ public class FileVector extends APersistentVector {
 	return s;
     }
 
-    /* For clojure.lang.Counted */
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init){
+	return reduceBytes(0, longCount(), f, init);
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init){
+	return reduce(0, longCount(), f, init);
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f){
+	long n = longCount();
+	if(n == 0)
+	    return f.invoke();
+	return reduce(1, n, f, nth(0));
+    }
+
+    /* For clojure.lang.Counted, which can't count past Integer.MAX_VALUE.
+     * Nothing else here relies on it: seq, iteration, nth, reduce, and fold
+     * all reach every line by longCount(). */
     public int count(){
+	return intCount(longCount());
+    }
+
+    static int intCount(long n){
+	if(n > Integer.MAX_VALUE)
+	    throw new ArithmeticException("Vector has " + n + " lines, more than count() can return; use longCount() or an iota seq");
+	return (int)n;
+    }
+
+    /* For java.util.Collection, whose size() is Integer.MAX_VALUE for
+     * collections holding more */
+    public int size(){
+	return (int)Math.min(longCount(), Integer.MAX_VALUE);
+    }
+
+    public long longCount(){
 	return this.lineCount;
     }
 
@@ -262,17 +474,30 @@ public class FileVector extends APersistentVector {
     }
 
     public ISeq seq(){
+	if(longCount() == 0)
+	    return null;
     	return new FileVectorSeq(this);
     }
 
     public Iterator iterator(){
-	return rangedIterator(0, count());
+	return rangedIterator(0, longCount());
+    }
+
+    /* For java.util.Collection's stream() and parallelStream(), which get
+     * each line as a String, with empty lines as "" rather than null */
+    public Spliterator<String> spliterator(){
+	return VectorSpliterator.strings(this, 0, longCount());
+    }
+
+    // Each line as a ByteRecord reused for every line, see VectorSpliterator
+    public Spliterator<ByteRecord> byteSpliterator(){
+	return VectorSpliterator.bytes(this, 0, longCount());
     }
 
     /* For clojure.lang.SubFileVector's iterator() */
-    Iterator rangedIterator(final int start, final int end){
+    Iterator rangedIterator(final long start, final long end){
 	return new Iterator(){
-	    int    i = start;
+	    long   i = start;
 
 	    public boolean hasNext(){
 		return i < end;
@@ -298,32 +523,32 @@ public class FileVector extends APersistentVector {
 
     static public final class FileVectorSeq extends ASeq{
 	FileVector v;
-	int    i;
+	long   i;
 
 	public FileVectorSeq(FileVector v){
 	    this.v = v;
 	    this.i = 0;
 	}
 
-	public FileVectorSeq(FileVector v, int i){
+	public FileVectorSeq(FileVector v, long i){
 	    this.v = v;
 	    this.i = i;
 	}
 
 	public Object first(){
-	    if (this.i < v.count())
+	    if (this.i < v.longCount())
 		return v.nth(i);
 	    return null;
 	}
 
 	public ISeq next(){
-	    if ((this.i + 1) < v.count())
+	    if ((this.i + 1) < v.longCount())
 		return new FileVectorSeq(this.v, (this.i + 1) );
 	    return null;
 	}
 
 	public int count(){
-	    return v.count() - i;
+	    return intCount(v.longCount() - i);
 	}
 
 	public ISeq cons(Object o){
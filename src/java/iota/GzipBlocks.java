@@ -0,0 +1,321 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.Reduced;
+
+/*
+ * A gzip file made of independently compressed members, as BGZF and
+ * concatenated gzip files are, mapped into memory.
+ *
+ * Members are found from their headers: BGZF records each block's size in
+ * its header, so those are skipped over without decompressing anything,
+ * while plain members are inflated once to find where they end.  Members
+ * can then be inflated independently, and so in parallel.
+ *
+ * A record belongs to the member its first byte is in, so a range of
+ * members skips any record continued from before it and finishes its last
+ * record from the members after it.
+ */
+public class GzipBlocks implements Closeable {
+
+    // Static Variables
+    final static int FHCRC    = 2;
+    final static int FEXTRA   = 4;
+    final static int FNAME    = 8;
+    final static int FCOMMENT = 16;
+    final static int WINDOW   = 65536;
+
+    // Where a range of members starts: mid record, at a record, or to be found out
+    final static int SKIP    = 0;
+    final static int START   = 1;
+    final static int UNKNOWN = 2;
+
+    static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+	protected Inflater initialValue() {
+	    return new Inflater(true);
+	}
+    };
+
+    // Member Variables
+    public final Mmap   map;
+    public final long[] offsets; // Start of each member, and the end of the file
+
+    public GzipBlocks(String filename) throws IOException {
+	this.map = new Mmap(filename);
+	try {
+	    this.offsets = scan(map);
+	} catch(IOException e) {
+	    map.close();
+	    throw e;
+	}
+    }
+
+    public int count() {
+	return offsets.length - 1;
+    }
+
+    public void close() throws IOException {
+	map.close();
+    }
+
+    static int u8(Mmap map, long pos) {
+	return map.get(pos) & 0xFF;
+    }
+
+    static int u16(Mmap map, long pos) {
+	return u8(map, pos) | (u8(map, pos + 1) << 8);
+    }
+
+    static long u32(Mmap map, long pos) {
+	return u16(map, pos) | ((long)u16(map, pos + 2) << 16);
+    }
+
+    /* Parse the header of the member at pos, returning the offset of its
+     * compressed data.  If it's a BGZF block, size[0] is set to its size. */
+    static long header(Mmap map, long pos, long[] size) throws IOException {
+	long end = map.size();
+	if(pos + 10 > end || u8(map, pos) != 0x1f || u8(map, pos + 1) != 0x8b || u8(map, pos + 2) != 8)
+	    throw new ZipException("No gzip member at offset " + pos);
+
+	int  flags = u8(map, pos + 3);
+	long p     = pos + 10;
+	size[0]    = -1;
+
+	if((flags & FEXTRA) != 0) {
+	    if(p + 2 > end)
+		throw new ZipException("Truncated gzip header at offset " + pos);
+	    int  xlen = u16(map, p);
+	    long xend = Math.min(p + 2 + xlen, end);
+	    for(long q = p + 2; q + 4 <= xend; q += 4 + u16(map, q + 2))
+		if(u8(map, q) == 'B' && u8(map, q + 1) == 'C' && u16(map, q + 2) == 2 && q + 6 <= xend)
+		    size[0] = u16(map, q + 4) + 1;
+	    p = p + 2 + xlen;
+	}
+	if((flags & FNAME) != 0)
+	    p = skipString(map, p, end, pos);
+	if((flags & FCOMMENT) != 0)
+	    p = skipString(map, p, end, pos);
+	if((flags & FHCRC) != 0)
+	    p += 2;
+
+	if(p > end)
+	    throw new ZipException("Truncated gzip header at offset " + pos);
+	return p;
+    }
+
+    // Skip the NUL terminated string at p, which must end before end
+    static long skipString(Mmap map, long p, long end, long pos) throws IOException {
+	long nul = (p < end) ? map.indexOf((byte)0, p, end) : -1;
+	if(nul < 0)
+	    throw new ZipException("Truncated gzip header at offset " + pos + ", no end to its name or comment");
+	return nul + 1;
+    }
+
+    // Find every member of the mapped file
+    static long[] scan(Mmap map) throws IOException {
+	long      end  = map.size();
+	long[]    rv   = new long[1024];
+	long[]    size = new long[1];
+	int       n    = 0;
+	long      pos  = 0;
+
+	while(pos < end) {
+	    if(n + 1 == rv.length)
+		rv = java.util.Arrays.copyOf(rv, rv.length * 2);
+	    rv[n++] = pos;
+
+	    long data = header(map, pos, size);
+	    if(size[0] > 0) {
+		pos += size[0];
+	    } else {
+		// Not BGZF, inflate to find the end of the deflate stream
+		Inflater inf = INFLATER.get();
+		inf.reset();
+		pos = data + inflate(map, data, end, inf, null) + 8;
+	    }
+	}
+	if(pos > end)
+	    throw new EOFException("Truncated gzip member at offset " + rv[n - 1]);
+
+	rv[n] = end;
+	return java.util.Arrays.copyOf(rv, n + 1);
+    }
+
+    /* Inflate the deflate stream at [from, to) of map into out, which is
+     * grown as needed, returning the number of compressed bytes it used.
+     * With a null out the data is just discarded. */
+    static long inflate(Mmap map, long from, long to, Inflater inf, Out out) throws IOException {
+	byte[] in      = new byte[WINDOW];
+	byte[] discard = (out == null) ? new byte[WINDOW] : null;
+	long   pos     = from;
+
+	try {
+	    while(!inf.finished()) {
+		if(inf.needsInput()) {
+		    int len = (int)Math.min(in.length, to - pos);
+		    if(len <= 0)
+			throw new EOFException("Truncated gzip member ending at offset " + to);
+		    map.get(in, pos, len);
+		    inf.setInput(in, 0, len);
+		    pos += len;
+		} else if(inf.needsDictionary()) {
+		    throw new ZipException("Gzip member needs a preset dictionary");
+		}
+
+		if(out == null) {
+		    inf.inflate(discard);
+		} else {
+		    if(out.length == out.buf.length)
+			out.buf = java.util.Arrays.copyOf(out.buf, Math.max(WINDOW, out.buf.length * 2));
+		    out.length += inf.inflate(out.buf, out.length, out.buf.length - out.length);
+		}
+	    }
+	} catch(DataFormatException e) {
+	    throw new ZipException("Corrupt gzip member at offset " + from + ": " + e.getMessage());
+	}
+	return inf.getBytesRead();
+    }
+
+    static final class Out {
+	byte[] buf;
+	int    length;
+
+	Out(int size) {
+	    this.buf = new byte[Math.max(size, 1)];
+	}
+    }
+
+    // Decompress member b, checking it against its trailer
+    public byte[] inflate(int b) throws IOException {
+	long start = offsets[b];
+	long end   = offsets[b + 1];
+	long data  = header(map, start, new long[1]);
+	long isize = u32(map, end - 4);
+
+	Inflater inf = INFLATER.get();
+	inf.reset();
+	Out out = new Out((int)Math.min(isize, Integer.MAX_VALUE - 8));
+	inflate(map, data, end - 8, inf, out);
+
+	CRC32 crc = new CRC32();
+	crc.update(out.buf, 0, out.length);
+	if(crc.getValue() != u32(map, end - 8) || (out.length & 0xFFFFFFFFL) != isize)
+	    throw new ZipException("Gzip member at offset " + start + " fails its CRC or size check");
+
+	return (out.length == out.buf.length) ? out.buf : java.util.Arrays.copyOf(out.buf, out.length);
+    }
+
+    byte[] inflateUnchecked(int b) {
+	try {
+	    return inflate(b);
+	} catch(IOException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    // Whether member b begins a record, from the last byte of the non empty member before it
+    int startOf(int b, byte sep) {
+	for(int p = b - 1; p >= 0; p--) {
+	    byte[] prev = inflateUnchecked(p);
+	    if(prev.length > 0)
+		return (prev[prev.length - 1] == sep) ? START : SKIP;
+	}
+	return START;
+    }
+
+    /* Reduce over the records of members [from, to), as ByteRecord's without
+     * their separator.  state is how member from starts, or UNKNOWN to find
+     * out from the member before it.  A separator ending the file doesn't
+     * start another record. */
+    public Object reduce(int from, int to, int state, byte sep, final IFn f, Object init) {
+	if(!Metrics.enabled)
+	    return reduceMembers(from, to, state, sep, f, init);
+
+	// Count records on the way through, and the compressed bytes of our members
+	final long[] n = new long[1];
+	try {
+	    return reduceMembers(from, to, state, sep, new AFn() {
+		    public Object invoke(Object acc, Object rec) {
+			n[0]++;
+			return f.invoke(acc, rec);
+		    }
+		}, init);
+	} finally {
+	    Metrics.read(offsets[Math.min(to, count())] - offsets[from], n[0]);
+	}
+    }
+
+    Object reduceMembers(int from, int to, int state, byte sep, IFn f, Object init) {
+	if(state == UNKNOWN)
+	    state = startOf(from, sep);
+
+	ByteRecord rec     = new ByteRecord();
+	Object     acc     = init;
+	byte[]     partial = new byte[0];
+	int        plen    = 0;
+	boolean    open    = false; // partial holds the start of a record of ours
+
+	for(int b = from; b < count(); b++) {
+	    if(!open && b >= to)
+		break;
+
+	    byte[] data = inflateUnchecked(b);
+	    int    pos  = 0;
+
+	    if(!open && state == SKIP) {
+		int s = Scanner.indexOf(data, 0, data.length, sep);
+		if(s < 0)
+		    continue;
+		pos   = s + 1;
+		state = START;
+	    }
+
+	    while(pos < data.length) {
+		int s = Scanner.indexOf(data, pos, data.length, sep);
+		if(s < 0) {
+		    // Carry the start of this record into the next member
+		    if(plen + (data.length - pos) > partial.length)
+			partial = java.util.Arrays.copyOf(partial, Math.max(plen + data.length - pos, partial.length * 2));
+		    System.arraycopy(data, pos, partial, plen, data.length - pos);
+		    plen += data.length - pos;
+		    open  = true;
+		    break;
+		}
+
+		if(open) {
+		    if(plen + (s - pos) > partial.length)
+			partial = java.util.Arrays.copyOf(partial, plen + (s - pos));
+		    System.arraycopy(data, pos, partial, plen, s - pos);
+		    plen += s - pos;
+		    acc   = f.invoke(acc, rec.set(partial, 0, plen));
+		    plen  = 0;
+		    open  = false;
+		} else {
+		    acc = f.invoke(acc, rec.set(data, pos, s));
+		}
+		if(acc instanceof Reduced)
+		    return ((Reduced)acc).deref();
+
+		pos = s + 1;
+		if(b >= to)
+		    return acc; // Finished our last record
+	    }
+	}
+
+	if(open)
+	    acc = f.invoke(acc, rec.set(partial, 0, plen));
+	if(acc instanceof Reduced)
+	    return ((Reduced)acc).deref();
+	return acc;
+    }
+}
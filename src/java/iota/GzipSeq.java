@@ -0,0 +1,155 @@
+package iota;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
+import clojure.lang.IteratorSeq;
+import clojure.lang.Seqable;
+
+/*
+ * The lines of a blocked gzip file, as FileSeq is for an uncompressed one.
+ *
+ * Folds split the file into runs of members, each about bufsize compressed
+ * bytes or more, which are then decompressed and reduced in parallel.
+ * Walking it as a seq decompresses the same runs one at a time.
+ */
+public class GzipSeq implements Seqable, ByteReducible, IReduce, Closeable {
+
+    // Static Variables
+    final static int DEFAULT_BUFSIZE = 1048576; // 1MB compressed
+
+    // Member Variables
+    public final GzipBlocks blocks;
+    public final int        from;
+    public final int        to;
+    public final int        bufsize;
+    public final byte       sep;
+    public final Charset    charset;
+    final byte[]            states; // How each member starts, if known
+
+    public GzipSeq(String filename) throws IOException {
+	this(filename, GzipSeq.DEFAULT_BUFSIZE, FileSeq.DEFAULT_LINESEP, Charsets.UTF8);
+    }
+
+    public GzipSeq(String filename, int bufsize, byte sep, Charset charset) throws IOException {
+	this.blocks  = new GzipBlocks(filename);
+	this.from    = 0;
+	this.to      = blocks.count();
+	this.bufsize = bufsize;
+	this.sep     = sep;
+	this.charset = charset;
+	this.states  = null;
+    }
+
+    public GzipSeq(GzipBlocks blocks, int from, int to, int bufsize, byte sep, Charset charset, byte[] states) {
+	this.blocks  = blocks;
+	this.from    = from;
+	this.to      = to;
+	this.bufsize = bufsize;
+	this.sep     = sep;
+	this.charset = charset;
+	this.states  = states;
+    }
+
+    int state(int b) {
+	if(b == 0)
+	    return GzipBlocks.START;
+	return (states == null) ? GzipBlocks.UNKNOWN : states[b];
+    }
+
+    // The member nearest halfway through [from, to)'s compressed bytes
+    int midpoint(int from, int to) {
+	long[] offsets = blocks.offsets;
+	int    mid     = Arrays.binarySearch(offsets, from, to, (offsets[from] + offsets[to]) >>> 1);
+	if(mid < 0)
+	    mid = -(mid + 1);
+	return Math.min(Math.max(mid, from + 1), to - 1);
+    }
+
+    // Split in two runs of members, or null once there's bufsize or less left
+    public GzipSeq[] split() {
+	if(to - from <= 1 || blocks.offsets[to] - blocks.offsets[from] <= bufsize)
+	    return null;
+
+	int mid = midpoint(from, to);
+	return new GzipSeq[]{ new GzipSeq(blocks, from, mid, bufsize, sep, charset, states),
+			      new GzipSeq(blocks, mid,  to,  bufsize, sep, charset, states) };
+    }
+
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init) {
+	if(from >= to)
+	    return init;
+	return blocks.reduce(from, to, state(from), sep, f, init);
+    }
+
+    // Reduce over every line decoded, with empty lines as nil
+    public Object reduceRecords(IFn f, Object init) {
+	return reduceBytes(ByteRecord.decoding(f, true, charset), init);
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init) {
+	return reduceRecords(f, init);
+    }
+
+    public Object reduce(final IFn f) {
+	final Object none = new Object();
+	Object rv = reduce(new AFn() {
+		public Object invoke(Object acc, Object line) {
+		    return (acc == none) ? line : f.invoke(acc, line);
+		}
+	    }, none);
+	return (rv == none) ? f.invoke() : rv;
+    }
+
+    /* For clojure.lang.Seqable, decompressing a run of members at a time */
+    public ISeq seq() {
+	return IteratorSeq.create(new Iterator<Object>() {
+		int               b     = from;
+		Iterator<Object>  lines = null;
+
+		public boolean hasNext() {
+		    while((lines == null || !lines.hasNext()) && b < to) {
+			int end = b + 1;
+			while(end < to && blocks.offsets[end] - blocks.offsets[b] < bufsize)
+			    end++;
+
+			final ArrayList<Object> al = new ArrayList<Object>();
+			new GzipSeq(blocks, b, end, bufsize, sep, charset, states).reduceRecords(new AFn() {
+				public Object invoke(Object acc, Object line) {
+				    al.add(line);
+				    return acc;
+				}
+			    }, null);
+			lines = al.iterator();
+			b     = end;
+		    }
+		    return lines != null && lines.hasNext();
+		}
+
+		public Object next() {
+		    if(!hasNext())
+			throw new NoSuchElementException();
+		    return lines.next();
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException();
+		}
+	    });
+    }
+
+    public void close() throws IOException {
+	blocks.close();
+    }
+}
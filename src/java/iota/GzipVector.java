@@ -0,0 +1,211 @@
+package iota;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.RecursiveAction;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.APersistentVector;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
+
+/*
+ * Random access to the lines of a blocked gzip file, as FileVector gives
+ * for an uncompressed one.
+ *
+ * Indexing decompresses every member once, in parallel, to count the lines
+ * which start in it; offsets[b] is then the number of lines before member b.
+ * nth() finds a line's member with a binary search, and members' lines are
+ * decoded and cached a member at a time.
+ */
+public class GzipVector extends APersistentVector implements ByteReducible, IReduce, Closeable {
+
+    // Member Variables
+    public final GzipBlocks blocks;
+    public final long[]     offsets; // Lines before each member, and in total
+    public final byte       sep;
+    public final Charset    charset;
+    public final ChunkCache cache;
+    final byte[]            states;  // Whether each member starts a line
+
+    public GzipVector(String filename) throws IOException {
+	this(filename, FileVector.DEFAULT_SEP, ChunkCache.DEFAULT_CAPACITY, Charsets.UTF8);
+    }
+
+    public GzipVector(String filename, byte sep, int cacheSize, Charset charset) throws IOException {
+	GzipBlocks blocks = new GzipBlocks(filename);
+	int        n      = blocks.count();
+	int[]      counts = new int[n];
+	int[]      last   = new int[n]; // Last byte of each member, or -1 if it's empty
+
+	try {
+	    IndexTask task = new IndexTask(blocks, 0, n, sep, counts, last);
+	    FileIndexer.run(task);
+	    if(task.error != null)
+		throw task.error;
+	} catch(IOException e) {
+	    blocks.close();
+	    throw e;
+	}
+
+	// A member starts a line unless it continues one from the last non empty member
+	long[] offsets = new long[n + 1];
+	byte[] states  = new byte[n];
+	int    prev    = sep;
+	for(int b = 0; b < n; b++) {
+	    states[b] = (byte)((prev == sep) ? GzipBlocks.START : GzipBlocks.SKIP);
+
+	    long owned = 0;
+	    if(last[b] >= 0) {
+		owned = counts[b] - ((last[b] == (sep & 0xFF)) ? 1 : 0) + ((prev == sep) ? 1 : 0);
+		prev  = (byte)last[b];
+	    }
+	    offsets[b + 1] = offsets[b] + owned;
+	}
+	if(offsets[n] > Integer.MAX_VALUE) {
+	    blocks.close();
+	    throw new IOException(offsets[n] + " lines is more than a vector can count");
+	}
+
+	this.blocks  = blocks;
+	this.offsets = offsets;
+	this.sep     = sep;
+	this.charset = charset;
+	this.cache   = new ChunkCache(cacheSize);
+	this.states  = states;
+    }
+
+    static class IndexTask extends RecursiveAction {
+	final GzipBlocks blocks;
+	final int        lo;
+	final int        hi;
+	final byte       sep;
+	final int[]      counts;
+	final int[]      last;
+	IOException      error;
+
+	IndexTask(GzipBlocks blocks, int lo, int hi, byte sep, int[] counts, int[] last) {
+	    this.blocks = blocks;
+	    this.lo     = lo;
+	    this.hi     = hi;
+	    this.sep    = sep;
+	    this.counts = counts;
+	    this.last   = last;
+	}
+
+	protected void compute() {
+	    if(hi - lo > 1) {
+		int       mid = (lo + hi) >>> 1;
+		IndexTask t1  = new IndexTask(blocks, lo, mid, sep, counts, last);
+		IndexTask t2  = new IndexTask(blocks, mid, hi, sep, counts, last);
+		invokeAll(t1, t2);
+		error = (t1.error != null) ? t1.error : t2.error;
+		return;
+	    }
+	    if(lo >= hi)
+		return;
+
+	    try {
+		byte[] data = blocks.inflate(lo);
+		counts[lo]  = (int)Scanner.count(java.nio.ByteBuffer.wrap(data), 0, data.length, sep);
+		last[lo]    = (data.length == 0) ? -1 : (data[data.length - 1] & 0xFF);
+	    } catch(IOException e) {
+		error = e;
+	    }
+	}
+    }
+
+    // The member holding line i, skipping those with none
+    int memberOf(long i) {
+	int lo = 0, hi = offsets.length - 2;
+	while(lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if(offsets[mid] <= i)
+		lo = mid;
+	    else
+		hi = mid - 1;
+	}
+	return lo;
+    }
+
+    // The lines starting in member b, decoded
+    String[] getLines(final int b) {
+	String[] lines = cache.get(b);
+	if(lines == null) {
+	    final String[] rv = new String[(int)(offsets[b + 1] - offsets[b])];
+	    blocks.reduce(b, b + 1, states[b], sep, ByteRecord.decoding(new AFn() {
+		    int i = 0;
+
+		    public Object invoke(Object acc, Object line) {
+			rv[i++] = (String)line;
+			return acc;
+		    }
+		}, true, charset), null);
+	    cache.put(b, rv);
+	    lines = rv;
+	}
+	return lines;
+    }
+
+    // A seq over the same lines, for folding
+    public GzipSeq toSeq(int bufsize) {
+	return new GzipSeq(blocks, 0, blocks.count(), bufsize, sep, charset, states);
+    }
+
+    public void close() throws IOException {
+	cache.clear();
+	blocks.close();
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  For Clojure compatibility
+     *  **  **  **  **  **  **  **  **/
+    public Object nth(int i) {
+	if(i < 0 || i >= count())
+	    throw new IndexOutOfBoundsException(i + " is not within 0..." + count());
+	int b = memberOf(i);
+	return getLines(b)[(int)(i - offsets[b])];
+    }
+
+    public int count() {
+	return (int)offsets[offsets.length - 1];
+    }
+
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init) {
+	if(blocks.count() == 0)
+	    return init;
+	return blocks.reduce(0, blocks.count(), GzipBlocks.START, sep, f, init);
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init) {
+	return reduceBytes(ByteRecord.decoding(f, true, charset), init);
+    }
+
+    public Object reduce(IFn f) {
+	return toSeq(GzipSeq.DEFAULT_BUFSIZE).reduce(f);
+    }
+
+    /* To protect against changes */
+    public IPersistentVector assocN(int i, Object val) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentVector cons(Object o) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentStack pop() {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentCollection empty() {
+	return FileVector.EMPTY;
+    }
+}
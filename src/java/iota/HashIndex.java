@@ -0,0 +1,568 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+
+/*
+ * Hash index from a key field of each line to the line's offset in the file.
+ *
+ * An open addressing (linear probing) table of slots of two longs, the key's
+ * hash and the line's offset plus one (zero marks an empty slot), kept off
+ * the heap: in direct buffers, or in a mapped sidecar file which is reused
+ * as long as it still matches the indexed file, the range of it that was
+ * indexed, and how.  A lookup compares hashes,
+ * then the key's bytes against the mapped file, and only decodes the lines
+ * which match.
+ *
+ * Lines are hashed in parallel, and each range then inserts its entries
+ * while other ranges are still being read or inserting theirs: the table
+ * is divided into regions of slots, each with its own lock, and a range
+ * inserts its entries region by region, locking only the regions their
+ * probes run through.
+ *
+ * As with Mmap, an index may not be in use when it's closed; once closed,
+ * lookups throw rather than read the released table.
+ *
+ * Sidecar layout (big endian);
+ *   long  MAGIC
+ *   int   VERSION
+ *   int   column
+ *   long  size of the indexed file
+ *   long  mtime of the indexed file
+ *   long  checksum of sampled blocks from the indexed file
+ *   long  start of the indexed bytes
+ *   long  end of the indexed bytes
+ *   long  capacity, in slots
+ *   long  number of lines indexed
+ *   byte  delimiter
+ *   byte  separator
+ *   byte  length of the charset's name
+ *   bytes the charset's name, in ASCII
+ *   pad   to HEADER_SIZE
+ *   slots
+ */
+public class HashIndex implements Closeable {
+
+    // Static Variables
+    final static long MAGIC         = 0x696F7461485348L; // "iotaHSH"
+    final static int  VERSION       = 2;
+    final static int  HEADER_SIZE   = 128;
+    final static int  SEGMENT_BITS  = 26; // 64M slots, 1GB per buffer
+    final static int  SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    final static int  LEAF_LINES    = 65536;
+    final static int  REGION_BITS   = 12; // At least 4K slots per region
+    final static int  MAX_REGIONS   = 4096;
+
+    // Member Variables
+    public final Mmap    map;
+    public final byte    sep;
+    public final Charset charset;
+    public final int     column;
+    public final byte    delim;
+    public final long    capacity; // A power of two
+    public final long    size;
+    final long           eof;
+    final LongBuffer[]   segments;
+    final ByteBuffer[]   buffers;
+    volatile boolean     closed;
+
+    HashIndex(Mmap map, byte sep, Charset charset, int column, byte delim, long capacity, long size, ByteBuffer[] buffers) throws IOException {
+	this.map      = map;
+	this.eof      = map.size();
+	this.sep      = sep;
+	this.charset  = charset;
+	this.column   = column;
+	this.delim    = delim;
+	this.capacity = capacity;
+	this.size     = size;
+	this.buffers  = buffers;
+	this.segments = new LongBuffer[buffers.length];
+	for(int i = 0; i < buffers.length; i++)
+	    segments[i] = buffers[i].asLongBuffer();
+    }
+
+    // Room for twice as many lines as there are, so probes stay short
+    static long capacityFor(long lines) {
+	return Math.max(16, Long.highestOneBit(Math.max(1, lines) * 2 - 1) << 1);
+    }
+
+    static ByteBuffer[] allocate(long capacity) {
+	ByteBuffer[] rv = new ByteBuffer[(int)((capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS)];
+	for(int i = 0; i < rv.length; i++)
+	    rv[i] = ByteBuffer.allocateDirect((int)Math.min(capacity - ((long)i * SEGMENT_SLOTS), SEGMENT_SLOTS) * 16);
+	return rv;
+    }
+
+    static ByteBuffer[] mapSlots(FileChannel fc, FileChannel.MapMode mode, long capacity) throws IOException {
+	ByteBuffer[] rv = new ByteBuffer[(int)((capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS)];
+	for(int i = 0; i < rv.length; i++) {
+	    long slots = Math.min(capacity - ((long)i * SEGMENT_SLOTS), SEGMENT_SLOTS);
+	    rv[i] = fc.map(mode, HEADER_SIZE + ((long)i * SEGMENT_SLOTS * 16), slots * 16);
+	}
+	return rv;
+    }
+
+    long hashAt(long slot) {
+	return segments[(int)(slot >>> SEGMENT_BITS)].get((int)(slot & (SEGMENT_SLOTS - 1)) * 2);
+    }
+
+    // Line offset + 1, or 0 for an empty slot
+    long entryAt(long slot) {
+	return segments[(int)(slot >>> SEGMENT_BITS)].get((int)(slot & (SEGMENT_SLOTS - 1)) * 2 + 1);
+    }
+
+    void set(long slot, long hash, long offset) {
+	LongBuffer seg = segments[(int)(slot >>> SEGMENT_BITS)];
+	int        i   = (int)(slot & (SEGMENT_SLOTS - 1)) * 2;
+	seg.put(i, hash);
+	seg.put(i + 1, offset + 1);
+    }
+
+    /* Insert the first n pairs of hash and offset in entries, a region at a
+     * time.  Each region's entries are inserted holding its lock, and the
+     * locks of the regions after it as probes run into them.  Locks are
+     * always taken lowest region first; a probe which wraps round to region
+     * 0 lets go of them all and takes them again in that order, then starts
+     * over, so two ranges inserting never deadlock. */
+    void putAll(Regions regions, long[] entries, int n) {
+	long mask  = capacity - 1;
+	int  count = regions.locks.length;
+
+	// Counting sort the entries by the region of their home slot
+	int[] start = new int[count + 1];
+	for(int i = 0; i < n; i++)
+	    start[regions.of(mix(entries[i * 2]) & mask) + 1]++;
+	for(int r = 0; r < count; r++)
+	    start[r + 1] += start[r];
+	long[] sorted = new long[n * 2];
+	int[]  next   = Arrays.copyOf(start, count);
+	for(int i = 0; i < n; i++) {
+	    int j = next[regions.of(mix(entries[i * 2]) & mask)]++;
+	    sorted[j * 2]     = entries[i * 2];
+	    sorted[j * 2 + 1] = entries[i * 2 + 1];
+	}
+
+	for(int r = 0; r < count; r++) {
+	    if(start[r] == start[r + 1])
+		continue;
+
+	    int held = 1;
+	    regions.lock(r, held);
+	    try {
+		for(int e = start[r]; e < start[r + 1]; e++) {
+		    long hash = sorted[e * 2];
+		    long slot = mix(hash) & mask;
+		    while(true) {
+			if(((regions.of(slot) - r) & (count - 1)) >= held) {
+			    if(r + held < count) {
+				regions.locks[r + held].lock();
+				held++;
+			    } else {
+				regions.unlock(r, held);
+				held++;
+				regions.lock(r, held);
+				slot = mix(hash) & mask;
+				continue;
+			    }
+			}
+			if(entryAt(slot) == 0) {
+			    set(slot, hash, sorted[e * 2 + 1]);
+			    break;
+			}
+			slot = (slot + 1) & mask;
+		    }
+		}
+	    } finally {
+		regions.unlock(r, held);
+	    }
+	}
+    }
+
+    // Locks over contiguous regions of a table's slots, a power of two of them
+    static final class Regions {
+	final ReentrantLock[] locks;
+	final int             shift;
+
+	Regions(long capacity) {
+	    int bits   = 63 - Long.numberOfLeadingZeros(capacity);
+	    this.shift = Math.max(REGION_BITS, bits - Integer.numberOfTrailingZeros(MAX_REGIONS));
+	    this.locks = new ReentrantLock[(int)Math.max(1, capacity >>> shift)];
+	    for(int i = 0; i < locks.length; i++)
+		locks[i] = new ReentrantLock();
+	}
+
+	int of(long slot) {
+	    return (int)(slot >>> shift);
+	}
+
+	// Lock n regions from r on, wrapping round, lowest region first
+	void lock(int r, int n) {
+	    for(int i = 0; i < r + n - locks.length; i++)
+		locks[i].lock();
+	    for(int i = r; i < Math.min(r + n, locks.length); i++)
+		locks[i].lock();
+	}
+
+	void unlock(int r, int n) {
+	    for(int i = 0; i < n; i++)
+		locks[(r + i) & (locks.length - 1)].unlock();
+	}
+    }
+
+    // FNV-1a over key's bytes
+    static long hash(byte[] key, int from, int to) {
+	long h = 0xcbf29ce484222325L;
+	for(int i = from; i < to; i++)
+	    h = (h ^ (key[i] & 0xFF)) * 0x100000001b3L;
+	return h;
+    }
+
+    // Spread the hash's bits before masking it down to a slot
+    static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	return h ^ (h >>> 33);
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Building
+     *  **  **  **  **  **  **  **  **/
+
+    /* Index the lines of coll, a FileVector or FileSeq, by the column'th
+     * field delimited by delim.  Lines without that field aren't indexed.
+     * With an indexFile, a matching index there is reused, and otherwise
+     * one is built there; without, it's built in direct memory. */
+    public static HashIndex build(Object coll, int column, byte delim, String indexFile) throws IOException {
+	Mmap    map;
+	byte    sep;
+	Charset charset;
+	long    lines;
+	long[]  span;
+
+	if(coll instanceof FileVector) {
+	    FileVector v = (FileVector)coll;
+	    map     = v.map;
+	    sep     = v.sep;
+	    charset = v.charset;
+	    lines   = v.longCount();
+	    span    = v.lineSpan();
+	} else if(coll instanceof FileSeq) {
+	    FileSeq s = (FileSeq)coll;
+	    map     = s.map;
+	    sep     = s.linesep;
+	    charset = s.charset;
+	    lines   = map.count(sep, s.start, s.end) + 1;
+	    span    = new long[]{ s.start, s.end };
+	} else {
+	    throw new IllegalArgumentException("Can only index a FileVector or FileSeq, not " + coll.getClass().getName());
+	}
+
+	if(indexFile != null) {
+	    HashIndex idx = read(indexFile, map, span, sep, charset, column, delim);
+	    if(idx != null)
+		return idx;
+	}
+
+	long capacity = capacityFor(lines);
+	if(indexFile == null) {
+	    HashIndex idx = new HashIndex(map, sep, charset, column, delim, capacity, 0, allocate(capacity));
+	    return new HashIndex(map, sep, charset, column, delim, capacity, idx.fill(coll), idx.buffers);
+	}
+	return write(indexFile, coll, map, span, sep, charset, column, delim, capacity);
+    }
+
+    // Insert every line of coll in parallel, returning how many were indexed
+    long fill(Object coll) {
+	BuildTask task = new BuildTask(this, new Regions(capacity), coll);
+	FileIndexer.run(task);
+	return task.indexed;
+    }
+
+    static class BuildTask extends RecursiveAction {
+	final HashIndex idx;
+	final Regions   regions;
+	final Object    coll;
+	long            indexed;
+
+	BuildTask(HashIndex idx, Regions regions, Object coll) {
+	    this.idx     = idx;
+	    this.regions = regions;
+	    this.coll    = coll;
+	}
+
+	protected void compute() {
+	    Object[] halves = null;
+	    if(coll instanceof FileVector) {
+		FileVector v = (FileVector)coll;
+		long       n = v.longCount();
+		if(n > LEAF_LINES)
+		    halves = new Object[]{ v.subvec(0, n / 2), v.subvec(n / 2, n) };
+	    } else {
+		halves = ((FileSeq)coll).split();
+	    }
+
+	    if(halves != null) {
+		BuildTask t1 = new BuildTask(idx, regions, halves[0]);
+		BuildTask t2 = new BuildTask(idx, regions, halves[1]);
+		invokeAll(t1, t2);
+		indexed = t1.indexed + t2.indexed;
+		return;
+	    }
+
+	    // Hash this range's keys, then insert them all at once
+	    final long[][] entries = { new long[1024] };
+	    final int[]    n       = { 0 };
+	    ((ByteReducible)coll).reduceBytes(new AFn() {
+		    byte[] key = new byte[64];
+
+		    public Object invoke(Object acc, Object o) {
+			ByteRecord rec = (ByteRecord)o;
+			int[]      fld = idx.field(rec);
+			if(fld == null)
+			    return acc;
+
+			int len = fld[1] - fld[0];
+			if(key.length < len)
+			    key = new byte[Math.max(len, key.length * 2)];
+			for(int i = 0; i < len; i++)
+			    key[i] = rec.byteAt(fld[0] + i);
+
+			if(n[0] + 2 > entries[0].length)
+			    entries[0] = Arrays.copyOf(entries[0], entries[0].length * 2);
+			entries[0][n[0]++] = hash(key, 0, len);
+			entries[0][n[0]++] = rec.position();
+			return acc;
+		    }
+		}, null);
+
+	    idx.putAll(regions, entries[0], n[0] / 2);
+	    indexed = n[0] / 2;
+	}
+    }
+
+    // [from, to) of the key field within rec, or null if rec is empty or doesn't have one
+    int[] field(ByteRecord rec) {
+	if(rec.isEmpty())
+	    return null;
+
+	int from = 0;
+	for(int c = 0; c < column; c++) {
+	    int d = rec.indexOf(delim, from);
+	    if(d < 0)
+		return null;
+	    from = d + 1;
+	}
+	int to = rec.indexOf(delim, from);
+	return new int[]{ from, (to < 0) ? rec.length() : to };
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Sidecar files
+     *  **  **  **  **  **  **  **  **/
+
+    static HashIndex read(String indexFile, Mmap map, long[] span, byte sep, Charset charset, int column, byte delim) throws IOException {
+	File f = new File(indexFile);
+	if(!f.isFile() || f.length() < HEADER_SIZE)
+	    return null;
+
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    FileChannel fc     = raf.getChannel();
+	    ByteBuffer  header = ByteBuffer.allocate(HEADER_SIZE);
+	    while(header.hasRemaining() && fc.read(header) >= 0);
+	    header.flip();
+
+	    if(header.getLong() != MAGIC ||
+	       header.getInt() != VERSION ||
+	       header.getInt() != column ||
+	       header.getLong() != map.size() ||
+	       header.getLong() != new File(map.filename()).lastModified() ||
+	       header.getLong() != IndexFile.checksum(map) ||
+	       header.getLong() != span[0] ||
+	       header.getLong() != span[1])
+		return null;
+
+	    long capacity = header.getLong();
+	    long size     = header.getLong();
+	    if(header.get() != delim || header.get() != sep || fc.size() != HEADER_SIZE + (capacity * 16))
+		return null;
+
+	    byte[] name = charsetName(charset);
+	    if(header.get() != name.length)
+		return null;
+	    for(byte b : name)
+		if(header.get() != b)
+		    return null;
+
+	    return new HashIndex(map, sep, charset, column, delim, capacity, size, mapSlots(fc, FileChannel.MapMode.READ_ONLY, capacity));
+	} finally {
+	    raf.close();
+	}
+    }
+
+    // The charset's canonical name, which fits in what's left of the header
+    static byte[] charsetName(Charset charset) throws IOException {
+	byte[] rv = charset.name().getBytes(Charsets.ASCII);
+	if(rv.length > HEADER_SIZE - 75)
+	    throw new IOException("Charset name too long for a hash index: " + charset.name());
+	return rv;
+    }
+
+    // Build the index in a mapped temp file, then move it into place and map it read only
+    static HashIndex write(String indexFile, Object coll, Mmap map, long[] span, byte sep, Charset charset, int column, byte delim, long capacity) throws IOException {
+	File dest = new File(indexFile).getAbsoluteFile();
+	File tmp  = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+	    try {
+		FileChannel fc = raf.getChannel();
+		raf.setLength(HEADER_SIZE + (capacity * 16));
+
+		ByteBuffer[] slots = mapSlots(fc, FileChannel.MapMode.READ_WRITE, capacity);
+		long         size  = new HashIndex(map, sep, charset, column, delim, capacity, 0, slots).fill(coll);
+		for(ByteBuffer b : slots) {
+		    ((MappedByteBuffer)b).force();
+		    Mmap.unmap(b);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(column);
+		header.putLong(map.size());
+		header.putLong(new File(map.filename()).lastModified());
+		header.putLong(IndexFile.checksum(map));
+		header.putLong(span[0]);
+		header.putLong(span[1]);
+		header.putLong(capacity);
+		header.putLong(size);
+		header.put(delim);
+		header.put(sep);
+		byte[] name = charsetName(charset);
+		header.put((byte)name.length);
+		header.put(name);
+		header.clear();
+		fc.write(header, 0);
+		fc.force(true);
+	    } finally {
+		raf.close();
+	    }
+
+	    Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    tmp.delete();
+	}
+
+	HashIndex idx = read(indexFile, map, span, sep, charset, column, delim);
+	if(idx == null)
+	    throw new IOException("Hash index " + indexFile + " was changed while being written");
+	return idx;
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Lookups
+     *  **  **  **  **  **  **  **  **/
+
+    // Whether the key field of the line at pos is key
+    boolean matches(long pos, byte[] key) {
+	long p = pos;
+
+	for(int c = 0; c < column; c++) {
+	    while(p < eof && map.get(p) != delim) {
+		if(map.get(p) == sep)
+		    return false;
+		p++;
+	    }
+	    if(p >= eof)
+		return false;
+	    p++;
+	}
+
+	for(int i = 0; i < key.length; i++, p++)
+	    if(p >= eof || map.get(p) != key[i])
+		return false;
+	if(p >= eof)
+	    return true;
+	byte b = map.get(p);
+	return b == delim || b == sep;
+    }
+
+    // Reading a released table crashes the JVM, so fail first
+    void ensureOpen() {
+	if(closed)
+	    throw new IllegalStateException("HashIndex is closed");
+    }
+
+    String lineAt(long pos) {
+	long end = map.indexOf(sep, pos, eof);
+	return new ByteRecord().set(map, pos, (end < 0) ? eof : end).toString(charset);
+    }
+
+    // Offsets of every line with key, in file order
+    public long[] offsets(String key) {
+	ensureOpen();
+	byte[] k    = key.getBytes(charset);
+	long   h    = hash(k, 0, k.length);
+	long   mask = capacity - 1;
+	long[] rv   = new long[4];
+	int    n    = 0;
+
+	for(long slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+	    long e = entryAt(slot);
+	    if(e == 0)
+		break;
+	    if(hashAt(slot) == h && matches(e - 1, k)) {
+		if(n == rv.length)
+		    rv = Arrays.copyOf(rv, n * 2);
+		rv[n++] = e - 1;
+	    }
+	}
+
+	rv = Arrays.copyOf(rv, n);
+	Arrays.sort(rv);
+	return rv;
+    }
+
+    // The first line with key, or null
+    public String lookup(String key) {
+	long[] o = offsets(key);
+	return (o.length == 0) ? null : lineAt(o[0]);
+    }
+
+    // Every line with key, in file order
+    public ArrayList<String> lookupAll(String key) {
+	ArrayList<String> rv = new ArrayList<String>();
+	for(long o : offsets(key))
+	    rv.add(lineAt(o));
+	return rv;
+    }
+
+    // Release the table; the file it indexes is left open
+    public synchronized void close() {
+	if(closed)
+	    return;
+	closed = true;
+
+	Arrays.fill(segments, null);
+	for(ByteBuffer b : buffers)
+	    Mmap.unmap(b);
+    }
+}
@@ -0,0 +1,135 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/*
+ * Sidecar file holding a FileVector's chunk index, so it can be reused
+ * across processes instead of rescanning the file.
+ *
+ * Layout (big endian);
+ *   long  MAGIC
+ *   int   VERSION
+ *   int   chunkSize
+ *   long  size of the indexed file
+ *   long  mtime of the indexed file
+ *   long  checksum of sampled blocks from the indexed file
+ *   long  lineCount
+ *   int   unused
+ *   byte  separator
+ *   pad   to HEADER_SIZE
+ *   chunkIndex, as LineIndex.write() lays it out
+ *
+ * An index is only used if every header field matches the file being opened.
+ */
+public class IndexFile {
+
+    // Static Variables
+    final static long MAGIC         = 0x696F7461494458L; // "iotaIDX"
+    final static int  VERSION       = 2; // 1 held the chunk index uncompressed
+    final static int  HEADER_SIZE   = 64;
+    final static int  SAMPLE_SIZE   = 4096;
+    final static int  SAMPLE_COUNT  = 16;
+
+    // Load the index for filename from indexFile, or null if it's missing or stale
+    public static FileIndexer read(String indexFile, String filename, Mmap map, int chunkSize, byte sep, boolean offHeap) throws IOException {
+	File f = new File(indexFile);
+	if(!f.isFile() || f.length() < HEADER_SIZE)
+	    return null;
+
+	FileInputStream  fis = new FileInputStream(f);
+	MappedByteBuffer buf = null;
+	try {
+	    FileChannel fc = fis.getChannel();
+	    buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+
+	    if(buf.getLong() != MAGIC ||
+	       buf.getInt() != VERSION ||
+	       buf.getInt() != chunkSize ||
+	       buf.getLong() != map.size() ||
+	       buf.getLong() != new File(filename).lastModified() ||
+	       buf.getLong() != checksum(map))
+		return null;
+
+	    long lineCount = buf.getLong();
+	    buf.getInt();
+	    if(buf.get() != sep || (fc.size() - HEADER_SIZE) % 8 != 0)
+		return null;
+
+	    // Bulk copy the index out of the mapped file
+	    buf.position(HEADER_SIZE);
+	    LineIndex chunkIndex = LineIndex.read(buf.asLongBuffer(), offHeap);
+	    if(chunkIndex == null)
+		return null;
+
+	    return new FileIndexer(chunkIndex, lineCount);
+	} finally {
+	    if(buf != null)
+		Mmap.unmap(buf);
+	    fis.close();
+	}
+    }
+
+    // Save idx for filename to indexFile, replacing any existing index atomically
+    public static void write(String indexFile, String filename, Mmap map, int chunkSize, byte sep, FileIndexer idx) throws IOException {
+	File dest = new File(indexFile).getAbsoluteFile();
+	File tmp  = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+
+	try {
+	    FileOutputStream fos = new FileOutputStream(tmp);
+	    try {
+		FileChannel fc  = fos.getChannel();
+		ByteBuffer  buf = ByteBuffer.allocate(HEADER_SIZE);
+
+		buf.putLong(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(chunkSize);
+		buf.putLong(map.size());
+		buf.putLong(new File(filename).lastModified());
+		buf.putLong(checksum(map));
+		buf.putLong(idx.lineCount);
+		buf.putInt(0);
+		buf.put(sep);
+		buf.clear();
+		fc.write(buf);
+
+		idx.chunkIndex.write(fc);
+		fc.force(true);
+	    } finally {
+		fos.close();
+	    }
+
+	    Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    tmp.delete();
+	}
+    }
+
+    // CRC32 over SAMPLE_COUNT blocks spread evenly across the file, including the first and last
+    static long checksum(Mmap map) throws IOException {
+	long   size = map.size();
+	byte[] buf  = new byte[SAMPLE_SIZE];
+	CRC32  crc  = new CRC32();
+
+	if(size <= (long)SAMPLE_SIZE * SAMPLE_COUNT) {
+	    for(long pos = 0; pos < size; pos += SAMPLE_SIZE) {
+		int n = (int)Math.min(size - pos, (long)SAMPLE_SIZE);
+		map.get(buf, pos, n);
+		crc.update(buf, 0, n);
+	    }
+	    return crc.getValue();
+	}
+
+	long stride = (size - SAMPLE_SIZE) / (SAMPLE_COUNT - 1);
+	for(int i = 0; i < SAMPLE_COUNT; i++) {
+	    map.get(buf, i * stride, SAMPLE_SIZE);
+	    crc.update(buf, 0, SAMPLE_SIZE);
+	}
+	return crc.getValue();
+    }
+}
@@ -0,0 +1,353 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * An ascending list of file offsets, such as the start of every chunk,
+ * compressed for random access.
+ *
+ * Entries are grouped into blocks of 64.  A block is stored as its first
+ * entry followed by the other entries' distance from it, bit packed at the
+ * width of the largest distance, so a block of width w takes exactly w + 1
+ * words.  starts holds where each block begins, and the width of a block
+ * is the difference between its start and the next one's, less one.  get()
+ * is a couple of reads and shifts, and the cost of an entry is bounded by
+ * the spread of the offsets 64 entries apart; e.g. 16 bits for 64 lines
+ * in 64KB of one entry per line, plus 2 bits of overhead.
+ *
+ * Words live in pages of at most 8MB, on the heap or in direct buffers.
+ */
+public class LineIndex {
+
+    // Static Variables
+    final static int  BLOCK_BITS = 6;
+    final static int  BLOCK      = 1 << BLOCK_BITS;
+    final static int  PAGE_BITS  = 20; // 1M words, 8MB per page
+    final static int  PAGE       = 1 << PAGE_BITS;
+
+    // Member Variables
+    public final long    size;
+    public final boolean offHeap;
+    final Words          starts; // Word offset of each block, and the total
+    final Words          data;
+
+    LineIndex(long size, Words starts, Words data) {
+	this.size    = size;
+	this.offHeap = data.offHeap;
+	this.starts  = starts;
+	this.data    = data;
+    }
+
+    // An index of exactly the given entries
+    public static LineIndex of(long[] entries, boolean offHeap) {
+	Builder b = new Builder(offHeap);
+	for(long e : entries)
+	    b.add(e);
+	return b.build();
+    }
+
+    public long size() {
+	return size;
+    }
+
+    public long get(long k) {
+	if(k < 0 || k >= size)
+	    throw new IndexOutOfBoundsException(k + " is not within 0..." + size);
+
+	long s = starts.get(k >>> BLOCK_BITS);
+	int  w = (int)(starts.get((k >>> BLOCK_BITS) + 1) - s - 1);
+	long a = data.get(s);
+	if(w == 0)
+	    return a;
+
+	long bit  = (k & (BLOCK - 1)) * w;
+	long word = s + 1 + (bit >>> 6);
+	int  off  = (int)(bit & 63);
+	long v    = data.get(word) >>> off;
+	if(off + w > 64)
+	    v |= data.get(word + 1) << (64 - off);
+	return a + ((w == 64) ? v : (v & ((1L << w) - 1)));
+    }
+
+    public long last() {
+	return get(size - 1);
+    }
+
+    // Bytes held by the index
+    public long bytes() {
+	return starts.bytes() + data.bytes();
+    }
+
+    // Every entry, for indexes small enough to fit in an array
+    public long[] toArray() {
+	long[] rv = new long[(int)size];
+	for(int i = 0; i < rv.length; i++)
+	    rv[i] = get(i);
+	return rv;
+    }
+
+    long blocks() {
+	return (size + BLOCK - 1) >>> BLOCK_BITS;
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Building
+     *  **  **  **  **  **  **  **  **/
+
+    // Appends entries one at a time, encoding each block as it fills
+    public static class Builder {
+	final Words  starts;
+	final Words  data;
+	final long[] pending = new long[BLOCK];
+	int          npending;
+	long         size;
+	long         blocks;
+	long         words;
+
+	public Builder(boolean offHeap) {
+	    this.starts = new Words(offHeap);
+	    this.data   = new Words(offHeap);
+	    starts.set(0, 0);
+	}
+
+	public long size() {
+	    return size;
+	}
+
+	public void add(long v) {
+	    pending[npending++] = v;
+	    size++;
+	    if(npending == BLOCK)
+		flush();
+	}
+
+	// Encode pending as a block, padding a partial one with its last entry
+	void flush() {
+	    if(npending == 0)
+		return;
+	    for(int i = npending; i < BLOCK; i++)
+		pending[i] = pending[npending - 1];
+
+	    long a   = pending[0];
+	    long max = 0;
+	    for(int i = 1; i < BLOCK; i++)
+		max |= pending[i] - a;
+	    int w = 64 - Long.numberOfLeadingZeros(max);
+
+	    data.set(words, a);
+	    long word = words + 1;
+	    long acc  = 0;
+	    int  bits = 0;
+	    for(int i = 0; i < BLOCK && w > 0; i++) {
+		long d = pending[i] - a;
+		acc |= d << bits;
+		if(bits + w >= 64) {
+		    data.set(word++, acc);
+		    acc   = (bits == 0) ? 0 : d >>> (64 - bits);
+		    bits  = bits + w - 64;
+		} else {
+		    bits += w;
+		}
+	    }
+	    if(bits > 0)
+		data.set(word++, acc);
+
+	    words = word;
+	    starts.set(++blocks, words);
+	    npending = 0;
+	}
+
+	/* Append the first n entries of idx.  Into an empty builder, the full
+	 * pages of idx's whole blocks are shared rather than copied, as full
+	 * pages are never written again; otherwise whole blocks are copied as
+	 * they are when this ends on a block boundary.  The rest are added one
+	 * by one. */
+	public void append(LineIndex idx, long n) {
+	    long k = 0;
+	    if(size == 0 && idx.offHeap == data.offHeap) {
+		long full = n >>> BLOCK_BITS;
+		blocks = full;
+		words  = idx.starts.get(full);
+		starts.share(idx.starts, full + 1);
+		data.share(idx.data, words);
+		k    = full << BLOCK_BITS;
+		size = k;
+	    } else if(npending == 0) {
+		long full = n >>> BLOCK_BITS;
+		for(long b = 0; b < full; b++) {
+		    long from = idx.starts.get(b);
+		    long to   = idx.starts.get(b + 1);
+		    for(long w = from; w < to; w++)
+			data.set(words + (w - from), idx.data.get(w));
+		    words += to - from;
+		    starts.set(++blocks, words);
+		}
+		k     = full << BLOCK_BITS;
+		size += k;
+	    }
+	    for(; k < n; k++)
+		add(idx.get(k));
+	}
+
+	public LineIndex build() {
+	    long n = size;
+	    flush();
+	    starts.trim(blocks + 1);
+	    data.trim(words);
+	    return new LineIndex(n, starts, data);
+	}
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Storage
+     *  **  **  **  **  **  **  **  **/
+
+    // A growable array of longs in pages
+    static final class Words {
+	final boolean offHeap;
+	LongBuffer[]  pages = new LongBuffer[0];
+
+	Words(boolean offHeap) {
+	    this.offHeap = offHeap;
+	}
+
+	LongBuffer allocate(int n) {
+	    return offHeap ? ByteBuffer.allocateDirect(n * 8).asLongBuffer() : LongBuffer.allocate(n);
+	}
+
+	long get(long i) {
+	    return pages[(int)(i >>> PAGE_BITS)].get((int)(i & (PAGE - 1)));
+	}
+
+	void set(long i, long v) {
+	    int p = (int)(i >>> PAGE_BITS);
+	    int j = (int)(i & (PAGE - 1));
+
+	    if(p >= pages.length) {
+		pages = java.util.Arrays.copyOf(pages, p + 1);
+		// Every page before the last one is full
+		for(int q = 0; q < p; q++)
+		    if(pages[q] == null || pages[q].capacity() < PAGE)
+			pages[q] = grow(pages[q], PAGE);
+	    }
+	    if(pages[p] == null || pages[p].capacity() <= j)
+		pages[p] = grow(pages[p], Math.min(PAGE, Math.max(64, Integer.highestOneBit(j) << 1)));
+	    pages[p].put(j, v);
+	}
+
+	/* Hold the first n words of src, sharing its full pages and copying
+	 * only the rest.  Neither may write to the shared pages afterwards. */
+	void share(Words src, long n) {
+	    int full = (int)(n >>> PAGE_BITS);
+	    pages = java.util.Arrays.copyOf(src.pages, full);
+	    for(long i = (long)full << PAGE_BITS; i < n; i++)
+		set(i, src.get(i));
+	}
+
+	LongBuffer grow(LongBuffer page, int n) {
+	    LongBuffer rv = allocate(n);
+	    if(page != null) {
+		page.clear();
+		rv.put(page);
+		rv.clear();
+	    }
+	    return rv;
+	}
+
+	// Shrink the last page to fit the first n words
+	void trim(long n) {
+	    int full = (int)(n >>> PAGE_BITS);
+	    int rest = (int)(n & (PAGE - 1));
+	    int np   = full + ((rest > 0) ? 1 : 0);
+	    if(np < pages.length)
+		pages = java.util.Arrays.copyOf(pages, np);
+	    if(rest > 0 && pages[full].capacity() > rest) {
+		LongBuffer page = pages[full];
+		LongBuffer rv   = allocate(rest);
+		page.clear();
+		page.limit(rest);
+		rv.put(page);
+		rv.clear();
+		pages[full] = rv;
+	    }
+	}
+
+	long bytes() {
+	    long n = 0;
+	    for(LongBuffer page : pages)
+		n += page.capacity() * 8L;
+	    return n;
+	}
+
+	// Write the first n words to fc
+	void write(FileChannel fc, long n) throws IOException {
+	    ByteBuffer body = ByteBuffer.allocate(65536);
+	    LongBuffer lb   = body.asLongBuffer();
+	    for(long i = 0; i < n; ) {
+		int m = (int)Math.min(lb.capacity(), n - i);
+		lb.clear();
+		for(int k = 0; k < m; k++)
+		    lb.put(get(i + k));
+		body.clear();
+		body.limit(m * 8);
+		while(body.hasRemaining())
+		    fc.write(body);
+		i += m;
+	    }
+	}
+
+	// Read n words from lb
+	static Words read(LongBuffer lb, long n, boolean offHeap) {
+	    Words rv = new Words(offHeap);
+	    rv.pages = new LongBuffer[(int)((n + PAGE - 1) >>> PAGE_BITS)];
+	    for(int p = 0; p < rv.pages.length; p++) {
+		int        m    = (int)Math.min(PAGE, n - ((long)p << PAGE_BITS));
+		LongBuffer page = rv.allocate(m);
+		LongBuffer src  = lb.duplicate();
+		src.limit(src.position() + m);
+		page.put(src);
+		page.clear();
+		lb.position(lb.position() + m);
+		rv.pages[p] = page;
+	    }
+	    return rv;
+	}
+    }
+
+    /* Write the index to fc as;
+     *   long  size
+     *   long  number of words in data
+     *   long[] starts, one per block and one more
+     *   long[] data */
+    void write(FileChannel fc) throws IOException {
+	long words = starts.get(blocks());
+	ByteBuffer header = ByteBuffer.allocate(16);
+	header.putLong(size);
+	header.putLong(words);
+	header.clear();
+	while(header.hasRemaining())
+	    fc.write(header);
+	starts.write(fc, blocks() + 1);
+	data.write(fc, words);
+    }
+
+    // Read an index written by write(), or null if lb doesn't hold exactly one
+    static LineIndex read(LongBuffer lb, boolean offHeap) {
+	if(lb.remaining() < 2)
+	    return null;
+	long size   = lb.get();
+	long words  = lb.get();
+	long blocks = (size + BLOCK - 1) >>> BLOCK_BITS;
+	if(size < 0 || words < 0 || lb.remaining() != blocks + 1 + words)
+	    return null;
+
+	Words starts = Words.read(lb, blocks + 1, offHeap);
+	Words data   = Words.read(lb, words, offHeap);
+	return new LineIndex(size, starts, data);
+    }
+}
@@ -0,0 +1,62 @@
+package iota;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+
+/*
+ * A predicate over a record's bytes, tested before it's decoded.
+ *
+ * A record matches when it starts with prefix, contains substring, and
+ * contains at least one byte of anyOf, skipping whichever of those are
+ * null.  Records that don't match are never decoded, nor passed on to the
+ * reducing function.
+ */
+public class Match {
+
+    // Member Variables
+    public final byte[] prefix;
+    public final byte[] substring;
+    public final byte[] anyOf;
+    final boolean[]     set;
+
+    public Match(byte[] prefix, byte[] substring, byte[] anyOf) {
+	this.prefix    = prefix;
+	this.substring = substring;
+	this.anyOf     = anyOf;
+
+	if(anyOf == null) {
+	    this.set = null;
+	} else {
+	    this.set = new boolean[256];
+	    for(byte b : anyOf)
+		set[b & 0xFF] = true;
+	}
+    }
+
+    public boolean test(ByteRecord rec) {
+	if(prefix != null && !rec.startsWith(prefix))
+	    return false;
+	if(substring != null && rec.indexOf(substring, 0) < 0)
+	    return false;
+	if(set != null) {
+	    // A single byte is found with the word at a time scan
+	    if(anyOf.length == 1)
+		return rec.indexOf(anyOf[0], 0) >= 0;
+	    for(int i = 0; i < rec.length; i++)
+		if(set[rec.buf.get(rec.offset + i) & 0xFF])
+		    return true;
+	    return false;
+	}
+	return true;
+    }
+
+    // Wrap f so it's only passed the records which match
+    public IFn filtering(final IFn f) {
+	return new AFn() {
+	    public Object invoke(Object acc, Object rec) {
+		return test((ByteRecord)rec) ? f.invoke(acc, rec) : acc;
+	    }
+	};
+    }
+}
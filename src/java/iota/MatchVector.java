@@ -0,0 +1,416 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveTask;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.APersistentVector;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
+import clojure.lang.Reduced;
+
+/*
+ * The lines of a file which matched a query, as a vector.
+ *
+ * The file is scanned once, in parallel, for the offset of every line that
+ * matches, and those offsets are all that's kept, compressed in a LineIndex
+ * as the chunk index is; matches close together cost a few bits each.  nth
+ * then reads its line straight from the mapped file, and reduces and folds
+ * touch only the matching lines rather than rescanning the whole file.
+ * Subvecs share the offsets.
+ *
+ * The offsets can be saved to a sidecar file and loaded again while it
+ * still matches the file and the range of it they were found in.  Layout
+ * (big endian);
+ *   long  MAGIC
+ *   int   VERSION
+ *   int   unused
+ *   long  size of the indexed file
+ *   long  mtime of the indexed file
+ *   long  checksum of sampled blocks from the indexed file
+ *   long  number of offsets
+ *   byte  separator
+ *   long  start of the bytes scanned
+ *   long  end of the bytes scanned
+ *   pad   to HEADER_SIZE
+ *   offsets, as LineIndex.write() lays it out
+ *
+ * Which query the offsets are for isn't recorded, so each query needs its
+ * own sidecar file.
+ */
+public class MatchVector extends APersistentVector implements ByteReducible, IReduce, Closeable {
+
+    // Static Variables
+    final static long MAGIC       = 0x696F74614D5658L; // "iotaMVX"
+    final static int  VERSION     = 3; // 2 held the offsets uncompressed
+    final static int  HEADER_SIZE = 128;
+    final static int  LEAF_LINES  = 65536;
+
+    // Member Variables
+    public final Mmap    map;
+    public final byte    sep;
+    public final Charset charset;
+    public final LineIndex offsets; // Start of each matching line, shared with subvecs
+    public final int       start;
+    public final int       end;
+    final long             eof;
+
+    public MatchVector(Mmap map, byte sep, Charset charset, LineIndex offsets, int start, int end, long eof) {
+	this.map     = map;
+	this.sep     = sep;
+	this.charset = charset;
+	this.offsets = offsets;
+	this.start   = start;
+	this.end     = end;
+	this.eof     = eof;
+    }
+
+    /* Scan coll, a FileVector, FileSeq, or MatchVector, for the lines which
+     * match m and whose decoded String (nil if empty) satisfies pred; either
+     * may be null to skip it.  Only lines matching m are decoded for pred. */
+    public static MatchVector build(Object coll, Match m, IFn pred) throws IOException {
+	Mmap    map;
+	byte    sep;
+	Charset charset;
+
+	if(coll instanceof FileVector) {
+	    FileVector v = (FileVector)coll;
+	    map     = v.map;
+	    sep     = v.sep;
+	    charset = v.charset;
+	} else if(coll instanceof FileSeq) {
+	    FileSeq s = (FileSeq)coll;
+	    map     = s.map;
+	    sep     = s.linesep;
+	    charset = s.charset;
+	} else if(coll instanceof MatchVector) {
+	    MatchVector v = (MatchVector)coll;
+	    map     = v.map;
+	    sep     = v.sep;
+	    charset = v.charset;
+	} else {
+	    throw new IllegalArgumentException("Can only match over a FileVector, FileSeq, or MatchVector, not " + coll.getClass().getName());
+	}
+
+	if(map == null)
+	    return new MatchVector(null, sep, charset, LineIndex.of(new long[0], false), 0, 0, 0);
+
+	ScanTask task = new ScanTask(coll, m, pred, charset);
+	FileIndexer.run(task);
+
+	// Join the ranges' offsets, in order
+	LineIndex.Builder b = new LineIndex.Builder(false);
+	for(LineIndex part : task.join())
+	    b.append(part, part.size());
+	if(b.size() > Integer.MAX_VALUE)
+	    throw new IllegalArgumentException(b.size() + " lines matched, more than a vector can hold");
+	LineIndex offsets = b.build();
+	return new MatchVector(map, sep, charset, offsets, 0, (int)offsets.size(), map.size());
+    }
+
+    // The offsets matched in each range, compressed, in order
+    static class ScanTask extends RecursiveTask<ArrayList<LineIndex>> {
+	final Object  coll;
+	final Match   m;
+	final IFn     pred;
+	final Charset charset;
+
+	ScanTask(Object coll, Match m, IFn pred, Charset charset) {
+	    this.coll    = coll;
+	    this.m       = m;
+	    this.pred    = pred;
+	    this.charset = charset;
+	}
+
+	protected ArrayList<LineIndex> compute() {
+	    Object[] halves = null;
+	    if(coll instanceof FileSeq) {
+		halves = ((FileSeq)coll).split();
+	    } else if(coll instanceof MatchVector) {
+		MatchVector v = (MatchVector)coll;
+		int         n = v.count();
+		if(n > LEAF_LINES)
+		    halves = new Object[]{ v.subvec(0, n / 2), v.subvec(n / 2, n) };
+	    } else {
+		FileVector v = (FileVector)coll;
+		long       n = v.longCount();
+		if(n > LEAF_LINES)
+		    halves = new Object[]{ v.subvec(0, n / 2), v.subvec(n / 2, n) };
+	    }
+
+	    if(halves != null) {
+		ScanTask t1 = new ScanTask(halves[0], m, pred, charset);
+		ScanTask t2 = new ScanTask(halves[1], m, pred, charset);
+		t2.fork();
+		ArrayList<LineIndex> rv = t1.compute();
+		rv.addAll(t2.join());
+		return rv;
+	    }
+
+	    final LineIndex.Builder found = new LineIndex.Builder(false);
+	    ((ByteReducible)coll).reduceBytes(new AFn() {
+		    public Object invoke(Object acc, Object o) {
+			ByteRecord rec = (ByteRecord)o;
+			if(m != null && !m.test(rec))
+			    return acc;
+			if(pred != null && !clojure.lang.RT.booleanCast(pred.invoke(rec.isEmpty() ? null : rec.toString(charset))))
+			    return acc;
+
+			found.add(rec.position());
+			return acc;
+		    }
+		}, null);
+
+	    ArrayList<LineIndex> rv = new ArrayList<LineIndex>();
+	    rv.add(found.build());
+	    return rv;
+	}
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Sidecar files
+     *  **  **  **  **  **  **  **  **/
+
+    /* The bytes of the file coll's lines lie within, which identify the
+     * source of a sidecar's offsets along with the file. */
+    static long[] sourceSpan(Object coll) {
+	if(coll instanceof FileVector)
+	    return ((FileVector)coll).lineSpan();
+	else if(coll instanceof FileSeq)
+	    return new long[]{ ((FileSeq)coll).start, ((FileSeq)coll).end };
+	return ((MatchVector)coll).byteSpan();
+    }
+
+    /* Load the offsets saved to indexFile for coll's file, or null if they're
+     * missing or stale.  coll is the FileVector, FileSeq, or MatchVector they
+     * were built from. */
+    public static MatchVector read(String indexFile, Object coll) throws IOException {
+	Mmap    map;
+	byte    sep;
+	Charset charset;
+
+	if(coll instanceof FileVector) {
+	    FileVector v = (FileVector)coll;
+	    map     = v.map;
+	    sep     = v.sep;
+	    charset = v.charset;
+	} else if(coll instanceof FileSeq) {
+	    FileSeq s = (FileSeq)coll;
+	    map     = s.map;
+	    sep     = s.linesep;
+	    charset = s.charset;
+	} else {
+	    MatchVector v = (MatchVector)coll;
+	    map     = v.map;
+	    sep     = v.sep;
+	    charset = v.charset;
+	}
+
+	File f = new File(indexFile);
+	if(map == null || !f.isFile() || f.length() < HEADER_SIZE)
+	    return null;
+
+	FileInputStream  fis = new FileInputStream(f);
+	MappedByteBuffer buf = null;
+	try {
+	    FileChannel fc = fis.getChannel();
+	    buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+
+	    if(buf.getLong() != MAGIC ||
+	       buf.getInt() != VERSION)
+		return null;
+	    buf.getInt();
+	    if(buf.getLong() != map.size() ||
+	       buf.getLong() != new File(map.filename()).lastModified() ||
+	       buf.getLong() != IndexFile.checksum(map))
+		return null;
+
+	    long   count = buf.getLong();
+	    long[] span  = sourceSpan(coll);
+	    if(buf.get() != sep || buf.getLong() != span[0] || buf.getLong() != span[1] ||
+	       count > Integer.MAX_VALUE || (fc.size() - HEADER_SIZE) % 8 != 0)
+		return null;
+
+	    // Bulk copy the offsets out of the mapped file
+	    buf.position(HEADER_SIZE);
+	    LineIndex offsets = LineIndex.read(buf.asLongBuffer(), false);
+	    if(offsets == null || offsets.size() != count)
+		return null;
+
+	    return new MatchVector(map, sep, charset, offsets, 0, (int)count, map.size());
+	} finally {
+	    if(buf != null)
+		Mmap.unmap(buf);
+	    fis.close();
+	}
+    }
+
+    /* Save this vector's offsets to indexFile, replacing any existing file
+     * atomically.  coll is what they were built from, as for read(). */
+    public void write(String indexFile, Object coll) throws IOException {
+	long[] span = sourceSpan(coll);
+	File   dest = new File(indexFile).getAbsoluteFile();
+	File   tmp  = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+
+	try {
+	    FileOutputStream fos = new FileOutputStream(tmp);
+	    try {
+		FileChannel fc  = fos.getChannel();
+		ByteBuffer  buf = ByteBuffer.allocate(HEADER_SIZE);
+
+		buf.putLong(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(0);
+		buf.putLong(map.size());
+		buf.putLong(new File(map.filename()).lastModified());
+		buf.putLong(IndexFile.checksum(map));
+		buf.putLong(count());
+		buf.put(sep);
+		buf.putLong(span[0]);
+		buf.putLong(span[1]);
+		buf.clear();
+		fc.write(buf);
+
+		ownOffsets().write(fc);
+		fc.force(true);
+	    } finally {
+		fos.close();
+	    }
+
+	    Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    tmp.delete();
+	}
+    }
+
+
+    // This vector's offsets alone, rather than all those it shares
+    LineIndex ownOffsets() {
+	if(start == 0 && end == offsets.size())
+	    return offsets;
+
+	LineIndex.Builder b = new LineIndex.Builder(false);
+	for(int i = start; i < end; i++)
+	    b.add(offsets.get(i));
+	return b.build();
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  MatchVector Specific Public Calls
+     *  **  **  **  **  **  **  **  **/
+
+    public MatchVector subvec(int from, int to) {
+	if(to < from || from < 0 || to > count())
+	    throw new IndexOutOfBoundsException("[" + from + ", " + to + "] not between 0 and " + count() + ".");
+	return new MatchVector(map, sep, charset, offsets, start + from, start + to, eof);
+    }
+
+    public MatchVector subvec(int from) {
+	return subvec(from, count());
+    }
+
+    // Offset in the file of the i'th matching line
+    public long offset(int i) {
+	if(i < 0 || i >= count())
+	    throw new IndexOutOfBoundsException(i + " is not within 0..." + count());
+	return offsets.get(start + i);
+    }
+
+    // The i'th matching line's bytes in place
+    public ByteRecord getRecord(int i) {
+	return recordAt(new ByteRecord(), offset(i));
+    }
+
+    ByteRecord recordAt(ByteRecord rec, long from) {
+	long to = map.indexOf(sep, from, eof);
+	return rec.set(map, from, (to < 0) ? eof : to);
+    }
+
+    // The file offsets this vector's lines lie within, as [from, to)
+    public long[] byteSpan() {
+	if(count() == 0)
+	    return new long[]{0, 0};
+	long last = offsets.get(end - 1);
+	long to   = map.indexOf(sep, last, eof);
+	return new long[]{ offsets.get(start), (to < 0) ? eof : to };
+    }
+
+    // Nothing to release: the offsets are on the heap, and the file isn't ours to close
+    public void close() {
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  For Clojure compatibility
+     *  **  **  **  **  **  **  **  **/
+    public Object nth(int i) {
+	ByteRecord rec = getRecord(i);
+	return rec.isEmpty() ? null : rec.toString(charset);
+    }
+
+    public int count() {
+	return end - start;
+    }
+
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init) {
+	ByteRecord rec   = new ByteRecord();
+	Object     acc   = init;
+	long       bytes = 0;
+	int        i     = start;
+	while(i < end) {
+	    acc    = f.invoke(acc, recordAt(rec, offsets.get(i++)));
+	    bytes += rec.length();
+	    if(acc instanceof Reduced) {
+		acc = ((Reduced)acc).deref();
+		break;
+	    }
+	}
+	if(Metrics.enabled)
+	    Metrics.read(bytes, i - start);
+	return acc;
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init) {
+	return reduceBytes(ByteRecord.decoding(f, true, charset), init);
+    }
+
+    public Object reduce(IFn f) {
+	if(count() == 0)
+	    return f.invoke();
+	if(count() == 1)
+	    return nth(0);
+	return subvec(1).reduce(f, nth(0));
+    }
+
+    /* To protect against changes */
+    public IPersistentVector assocN(int i, Object val) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentVector cons(Object o) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentStack pop() {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentCollection empty() {
+	return FileVector.EMPTY;
+    }
+}
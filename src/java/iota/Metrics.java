@@ -0,0 +1,243 @@
+package iota;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+/*
+ * Counters for what iota is doing, off by default.
+ *
+ * Every hook tests the volatile enabled flag first, so while disabled each
+ * one costs a load and a branch.  Hooks sit at coarse points where they
+ * can (a chunk decoded, a range reduced, an index built) rather than per
+ * record; the one per record hook, counting decoded lines, adds to a
+ * striped counter so threads don't contend on a single cache line.
+ *
+ * Enabling metrics registers them as the MXBean iota:type=Metrics.
+ * Listeners are told of each coarse event while metrics are enabled.
+ */
+public class Metrics {
+
+    // Static Variables
+    static volatile boolean enabled;
+    static boolean          registered;
+
+    final static String NAME = "iota:type=Metrics";
+
+    final static Counter bytesRead      = new Counter();
+    final static Counter recordsRead    = new Counter();
+    final static Counter recordsDecoded = new Counter();
+    final static Counter decodeNanos    = new Counter();
+    final static Counter cacheHits      = new Counter();
+    final static Counter cacheMisses    = new Counter();
+    final static Counter cacheEvictions = new Counter();
+    final static Counter indexBuilds    = new Counter();
+    final static Counter indexBytes     = new Counter();
+    final static Counter indexNanos     = new Counter();
+    final static Counter leaves         = new Counter();
+    final static Counter lockWaits      = new Counter();
+    final static Counter lockWaitNanos  = new Counter();
+    final static Histogram leafBytes    = new Histogram();
+    final static Histogram leafNanos    = new Histogram();
+
+    final static CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    public static boolean enabled() {
+	return enabled;
+    }
+
+    public static synchronized void setEnabled(boolean on) {
+	enabled = on;
+	if(on && !registered) {
+	    registered = true;
+	    try {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(NAME));
+	    } catch(Exception e) {
+		// Already registered by another class loader, or no JMX; counters still work
+	    }
+	}
+    }
+
+    public static void reset() {
+	for(Counter c : new Counter[]{ bytesRead, recordsRead, recordsDecoded, decodeNanos, cacheHits, cacheMisses, cacheEvictions,
+				       indexBuilds, indexBytes, indexNanos, leaves, lockWaits, lockWaitNanos })
+	    c.reset();
+	leafBytes.reset();
+	leafNanos.reset();
+    }
+
+    public static void addListener(MetricsListener l) {
+	listeners.add(l);
+    }
+
+    public static void removeListener(MetricsListener l) {
+	listeners.remove(l);
+    }
+
+    static void fire(String type, Object source, long bytes, long nanos) {
+	for(MetricsListener l : listeners)
+	    l.event(type, source, bytes, nanos);
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Hooks, only called while enabled
+     *  **  **  **  **  **  **  **  **/
+
+    // A reduce over [from, to) of a file passed n records
+    static void read(long bytes, long n) {
+	bytesRead.add(bytes);
+	recordsRead.add(n);
+    }
+
+    static void decoded(long n) {
+	recordsDecoded.add(n);
+    }
+
+    static void chunkDecoded(Object source, long bytes, long nanos) {
+	bytesRead.add(bytes);
+	decodeNanos.add(nanos);
+	fire("chunk", source, bytes, nanos);
+    }
+
+    static void cache(boolean hit) {
+	(hit ? cacheHits : cacheMisses).add(1);
+    }
+
+    static void evicted() {
+	cacheEvictions.add(1);
+    }
+
+    static void indexBuilt(Object source, long bytes, long nanos) {
+	indexBuilds.add(1);
+	indexBytes.add(bytes);
+	indexNanos.add(nanos);
+	fire("index", source, bytes, nanos);
+    }
+
+    static void lockWaited(Object source, long nanos) {
+	lockWaits.add(1);
+	lockWaitNanos.add(nanos);
+	fire("lock", source, 0, nanos);
+    }
+
+    // A fold reduced coll directly, taking nanos
+    public static void leaf(Object coll, long nanos) {
+	long bytes = bytesOf(coll);
+	leaves.add(1);
+	leafBytes.add(bytes);
+	leafNanos.add(nanos);
+	fire("leaf", coll, bytes, nanos);
+    }
+
+    // Bytes of the file under coll, compressed for gzip, and roughly (to the chunk) for vecs
+    static long bytesOf(Object coll) {
+	if(coll instanceof FileVector) {
+	    long[] span = ((FileVector)coll).byteSpan();
+	    return span[1] - span[0];
+	} else if(coll instanceof MatchVector) {
+	    long[] span = ((MatchVector)coll).byteSpan();
+	    return span[1] - span[0];
+	} else if(coll instanceof FileSeq) {
+	    return ((FileSeq)coll).end - ((FileSeq)coll).start;
+	} else if(coll instanceof FileRecordSeq) {
+	    return ((FileRecordSeq)coll).end - ((FileRecordSeq)coll).start;
+	} else if(coll instanceof MultiFileVector) {
+	    long n = 0;
+	    for(FileVector v : ((MultiFileVector)coll).segments())
+		n += bytesOf(v);
+	    return n;
+	} else if(coll instanceof MultiFileSeq) {
+	    long n = 0;
+	    for(FileSeq s : ((MultiFileSeq)coll).remaining())
+		n += bytesOf(s);
+	    return n;
+	} else if(coll instanceof GzipSeq) {
+	    GzipSeq s = (GzipSeq)coll;
+	    return s.blocks.offsets[s.to] - s.blocks.offsets[s.from];
+	}
+	return 0;
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  Counters
+     *  **  **  **  **  **  **  **  **/
+
+    // A sum striped across cache lines by thread
+    static final class Counter {
+	final static int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+	final static int PAD     = 8; // longs per 64 byte cache line
+
+	final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	void add(long x) {
+	    cells.addAndGet(((int)Thread.currentThread().getId() & (STRIPES - 1)) * PAD, x);
+	}
+
+	long sum() {
+	    long n = 0;
+	    for(int i = 0; i < STRIPES; i++)
+		n += cells.get(i * PAD);
+	    return n;
+	}
+
+	void reset() {
+	    for(int i = 0; i < STRIPES; i++)
+		cells.set(i * PAD, 0);
+	}
+    }
+
+    // Counts of values by power of two: bucket i holds values in [2^(i-1), 2^i)
+    static final class Histogram {
+	final AtomicLongArray buckets = new AtomicLongArray(65);
+
+	void add(long x) {
+	    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, x)));
+	}
+
+	long[] snapshot() {
+	    long[] rv = new long[buckets.length()];
+	    for(int i = 0; i < rv.length; i++)
+		rv[i] = buckets.get(i);
+	    return rv;
+	}
+
+	void reset() {
+	    for(int i = 0; i < buckets.length(); i++)
+		buckets.set(i, 0);
+	}
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  JMX
+     *  **  **  **  **  **  **  **  **/
+
+    static final class MBean implements MetricsMXBean {
+	public boolean isEnabled()          { return enabled; }
+	public void    setEnabled(boolean on) { Metrics.setEnabled(on); }
+	public void    reset()              { Metrics.reset(); }
+	public long    getBytesRead()       { return bytesRead.sum(); }
+	public long    getRecordsRead()     { return recordsRead.sum(); }
+	public long    getRecordsDecoded()  { return recordsDecoded.sum(); }
+	public long    getDecodeNanos()     { return decodeNanos.sum(); }
+	public long    getCacheHits()       { return cacheHits.sum(); }
+	public long    getCacheMisses()     { return cacheMisses.sum(); }
+	public long    getCacheEvictions()  { return cacheEvictions.sum(); }
+	public long    getIndexBuilds()     { return indexBuilds.sum(); }
+	public long    getIndexBytes()      { return indexBytes.sum(); }
+	public long    getIndexNanos()      { return indexNanos.sum(); }
+	public long    getLeaves()          { return leaves.sum(); }
+	public long[]  getLeafBytes()       { return leafBytes.snapshot(); }
+	public long[]  getLeafNanos()       { return leafNanos.snapshot(); }
+	public long    getLockWaits()       { return lockWaits.sum(); }
+	public long    getLockWaitNanos()   { return lockWaitNanos.sum(); }
+    }
+
+    // The MXBean's view, which is also a snapshot for callers without JMX
+    public static MetricsMXBean snapshot() {
+	return new MBean();
+    }
+}
@@ -0,0 +1,17 @@
+package iota;
+
+/*
+ * Told of each coarse event while metrics are enabled, on the thread that
+ * caused it, so implementations should be quick and thread safe.
+ *
+ * type is one of;
+ *   "chunk"  a FileVector chunk was decoded, source is the vector
+ *   "index"  a line index was built, source is the Mmap
+ *   "leaf"   a fold reduced source directly
+ *   "lock"   a thread waited on a mapped file's lock
+ * bytes is how many bytes were involved, or 0 for "lock".
+ */
+public interface MetricsListener {
+
+    void event(String type, Object source, long bytes, long nanos);
+}
@@ -0,0 +1,40 @@
+package iota;
+
+/*
+ * What Metrics exposes over JMX, as iota:type=Metrics.  Counts are totals
+ * since the last reset(), and only grow while metrics are enabled.
+ */
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+    void    setEnabled(boolean on);
+    void    reset();
+
+    // Bytes reduced over in place, and the records in them
+    long getBytesRead();
+    long getRecordsRead();
+
+    // Records decoded to Strings, and the time spent decoding whole chunks
+    long getRecordsDecoded();
+    long getDecodeNanos();
+
+    // Chunk cache lookups, across every FileVector
+    long getCacheHits();
+    long getCacheMisses();
+    long getCacheEvictions();
+
+    // Line indexes built, the bytes they scanned, and how long they took
+    long getIndexBuilds();
+    long getIndexBytes();
+    long getIndexNanos();
+
+    /* Fold leaves, and how they were spread by bytes and by time; element i
+     * counts the leaves with values in [2^(i-1), 2^i). */
+    long   getLeaves();
+    long[] getLeafBytes();
+    long[] getLeafNanos();
+
+    // Times a thread took a mapped file's lock, and how long it waited for it
+    long getLockWaits();
+    long getLockWaitNanos();
+}
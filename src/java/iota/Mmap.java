@@ -2,94 +2,354 @@ package iota;
 
 import java.io.*;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 
 
-public class Mmap {
+/*
+ * A file mapped into memory as one or more MappedByteBuffer's.
+ *
+ * Closing an Mmap closes the file and unmaps it straight away, rather than
+ * when the collector gets around to the buffers.  The file is shared with
+ * every duplicate() and extend() of the Mmap, and with every vec, subvec and
+ * seq over it, so closing any of them closes them all; none may be in use
+ * when it's closed.  A file which is never closed has its descriptor closed
+ * by Cleaner once it's unreachable, and is unmapped by the JVM as usual.
+ *
+ * Every collection reads its file through the public methods here, so
+ * they're also what another way of reading the file has to provide;
+ * PreadFile overrides them to read with positional reads instead.
+ */
+public class Mmap implements Closeable {
 
-    public static class FileWrapper{
+    public static class FileWrapper implements Closeable {
 	public final FileInputStream    fis;
 	public final FileChannel        fc;
+	public final String             filename;
+	final ArrayList<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>(); // Every buffer mapped from fc
+	final Cleaner.Cleanable         cleanable;
+	volatile boolean                closed;
 
 	public FileWrapper(String filename) throws IOException {
+	    this.filename = filename;
 	    this.fis = new FileInputStream( filename );
 	    this.fc = fis.getChannel();
+	    this.cleanable = Cleaner.register(this, fis);
 	}
 
-	protected void finalize() throws Throwable {
+	MappedByteBuffer map(long pos, long size) throws IOException {
+	    long t0 = Metrics.enabled ? System.nanoTime() : 0;
+	    synchronized(this) {
+		if(t0 != 0)
+		    Metrics.lockWaited(this, System.nanoTime() - t0);
+		if(closed)
+		    throw new IOException("File is closed");
+		MappedByteBuffer mb = fc.map( FileChannel.MapMode.READ_ONLY, pos, size );
+		mapped.add(mb);
+		return mb;
+	    }
+	}
+
+	// Unmap every buffer and close the file
+	public synchronized void close() throws IOException {
+	    if(closed)
+		return;
+	    closed = true;
+
+	    for(MappedByteBuffer mb : mapped)
+		unmap(mb);
+	    mapped.clear();
+	    cleanable.clean();
+	}
+    }
+
+    /* Releasing a mapping isn't part of the public API before Java 19, so it's
+     * done through Unsafe.invokeCleaner on Java 9+, or the buffer's own
+     * sun.misc.Cleaner on Java 7 and 8.  Failing both it's left to the GC. */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+	Object unsafe = null;
+	Method invokeCleaner = null, cleaner = null, clean = null;
+	try {
+	    Class<?> c = Class.forName("sun.misc.Unsafe");
+	    invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+	    Field f = c.getDeclaredField("theUnsafe");
+	    f.setAccessible(true);
+	    unsafe = f.get(null);
+	} catch(Exception e) {
+	    invokeCleaner = null;
 	    try {
-		fc.close();
-		fis.close();
-	    } finally {
-		super.finalize();
+		cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+		clean   = Class.forName("sun.misc.Cleaner").getMethod("clean");
+	    } catch(Exception e2) {
+		cleaner = null;
+		clean   = null;
+	    }
+	}
+	UNSAFE         = unsafe;
+	INVOKE_CLEANER = invokeCleaner;
+	CLEANER        = cleaner;
+	CLEAN          = clean;
+    }
+
+    // Release mb's mapping, or direct memory, now; mb, and every view of it, must never be read again
+    static void unmap(ByteBuffer mb) {
+	try {
+	    if(INVOKE_CLEANER != null) {
+		INVOKE_CLEANER.invoke(UNSAFE, mb);
+	    } else if(CLEANER != null) {
+		Object c = CLEANER.invoke(mb);
+		if(c != null)
+		    CLEAN.invoke(c);
 	    }
+	} catch(Exception e) {
+	    // Left for the GC to unmap
 	}
     }
 
     // private static final long        MAP_SIZE = Integer.MAX_VALUE;
-    private static final long        MAP_SIZE = 2000000000; // 2B
-    private final FileWrapper        fw;
+    static final long                MAP_SIZE = 2000000000; // 2B
+    final FileWrapper                fw;
     private final MappedByteBuffer[] mbs;
+    final long                       length; // Bytes mapped, the file may since have grown
 
-    public Mmap(String filename) throws IOException{
-	long       pos = 0;
+    /* Open filename to read by mapping it, or with positional reads when
+     * pread; see PreadFile. */
+    public static Mmap open(String filename, boolean pread) throws IOException {
+	return pread ? new PreadFile(filename) : new Mmap(filename);
+    }
 
+    public Mmap(String filename) throws IOException{
 	this.fw = new FileWrapper( filename );
 
 	// Map file into multiple buffers
 	ArrayList<MappedByteBuffer> al = new ArrayList<MappedByteBuffer>();
+	long size;
+	try {
+	    size = mapRange(fw, 0, al);
+	} catch(IOException e) {
+	    fw.close();
+	    throw e;
+	}
+
+	MappedByteBuffer[] tmp = new MappedByteBuffer[al.size()];
+	this.mbs    = al.toArray(tmp);
+	this.length = size;
+    }
+
+    // For subclasses which read [0, length) of fw without mapping it
+    Mmap(FileWrapper fw, long length) {
+	this.fw     = fw;
+	this.mbs    = new MappedByteBuffer[0];
+	this.length = length;
+    }
+
+    public Mmap(FileWrapper fw, MappedByteBuffer[] mbs) {
+	long len = 0;
+	for(int i = 0; i < mbs.length; i++)
+	    len += mbs[i].capacity();
+
+	this.fw     = fw;
+	this.mbs    = mbs;
+	this.length = len;
+    }
+
+    // Map [pos, EOF) of fc into buffers of at most MAP_SIZE, returning the file size
+    private static long mapRange(FileWrapper fw, long pos, ArrayList<MappedByteBuffer> al) throws IOException {
+	long size = fw.fc.size();
 
-	while(pos < fw.fc.size()) {
-	    long toMap = Math.min( (fw.fc.size() - pos) , MAP_SIZE );
+	while(pos < size) {
+	    long toMap = Math.min( (size - pos) , MAP_SIZE );
 
-	    al.add( fw.fc.map( FileChannel.MapMode.READ_ONLY, pos, toMap ) );
+	    al.add( fw.map( pos, toMap ) );
 
 	    pos += toMap; 
 	}
+	return size;
+    }
+
+    /* Return an Mmap over the file as it is now, reusing every full buffer of
+     * this one and mapping only the rest, or this if the file hasn't grown. */
+    public Mmap extend() throws IOException {
+	ensureOpen();
+	long size = fw.fc.size();
+	if(size < length)
+	    throw new IOException("File shrank from " + length + "B to " + size + "B, it can only be extended");
+	if(size == length)
+	    return this;
+
+	ArrayList<MappedByteBuffer> al = new ArrayList<MappedByteBuffer>();
+	int full = (int)(length / MAP_SIZE);
+	for(int i = 0; i < full; i++)
+	    al.add( mbs[i] );
+	mapRange(fw, full * MAP_SIZE, al);
 
 	MappedByteBuffer[] tmp = new MappedByteBuffer[al.size()];
-	mbs = (MappedByteBuffer[])al.toArray(tmp);
+	return new Mmap(fw, al.toArray(tmp));
     }
 
-    public Mmap(FileWrapper fw, MappedByteBuffer[] mbs) {
-	this.fw   = fw;
-	this.mbs  = mbs;
+    // Unmap and close the file, for this Mmap and everything sharing it
+    public void close() throws IOException {
+	fw.close();
     }
 
-    public Mmap duplicate() {
-	ArrayList<MappedByteBuffer> al = new ArrayList<MappedByteBuffer>();
-	for(int i = 0; i < mbs.length; i++)
-	    al.add( (MappedByteBuffer)mbs[i].duplicate() );
+    public boolean isClosed() {
+	return fw.closed;
+    }
 
-	MappedByteBuffer[] tmp = new MappedByteBuffer[al.size()];
-	return new Mmap(fw, (MappedByteBuffer[])al.toArray(tmp));
+    public String filename() {
+	return fw.filename;
+    }
+
+    // Reading an unmapped buffer crashes the JVM, so fail first
+    void ensureOpen() {
+	if(fw.closed)
+	    throw new IllegalStateException("Mmap is closed");
     }
 
+    /* Every read is absolute or through a private duplicate, so the mapped
+     * buffers carry no state to copy and are shared, as extend() does. */
+    public Mmap duplicate() {
+	return new Mmap(fw, mbs);
+    }
+
+    /* Reads go through a private duplicate of the mapped buffer, so there's
+     * no shared position to guard and concurrent readers never block. */
     public void get(byte[] buffer, long pos, int size) {
+	ensureOpen();
 	int chunk           = (int)(pos / MAP_SIZE);
 	int chunk_n         = (int)(pos % MAP_SIZE);
-	MappedByteBuffer mb = mbs[chunk];
 	long readEnd        = (((long)chunk_n) + ((long)size));
 	int  readSize       = (int)((readEnd <= MAP_SIZE) ? size : (MAP_SIZE - chunk_n));
 
-	synchronized(mb) {
-	    mb.position(chunk_n);
-	    mb.get(buffer, 0, readSize);
-	}
+	ByteBuffer bb = mbs[chunk].duplicate();
+	bb.position(chunk_n);
+	bb.get(buffer, 0, readSize);
 
 	if(readEnd > MAP_SIZE) {
-	    mb = mbs[++chunk];
-	    synchronized(mb) {
-		mb.position(0);
-		mb.get(buffer, readSize, (int)(readEnd - MAP_SIZE));
-	    }
+	    bb = mbs[++chunk].duplicate();
+	    bb.get(buffer, readSize, (int)(readEnd - MAP_SIZE));
+	}
+    }
+
+    // Return the byte at pos
+    public byte get(long pos) {
+	ensureOpen();
+	return mbs[(int)(pos / MAP_SIZE)].get((int)(pos % MAP_SIZE));
+    }
+
+    // Return the position of the first b in [from, to), or -1 if there isn't one
+    public long indexOf(byte b, long from, long to) {
+	ensureOpen();
+	while(from < to) {
+	    int chunk = (int)(from / MAP_SIZE);
+	    int i     = (int)(from % MAP_SIZE);
+	    int lim   = (int)Math.min( MAP_SIZE, i + (to - from) );
+
+	    // Absolute reads leave the buffer's position alone, so no duplicate is needed
+	    int rv = Scanner.indexOf(mbs[chunk], i, lim, b);
+	    if(rv >= 0)
+		return (chunk * MAP_SIZE) + rv;
+
+	    from = (chunk * MAP_SIZE) + lim;
 	}
+	return -1;
+    }
+
+    // Return the position of the first complete sep in [from, to), or -1 if there isn't one
+    public long indexOf(byte[] sep, long from, long to) {
+	ensureOpen();
+	while(from < to) {
+	    int chunk = (int)(from / MAP_SIZE);
+	    int i     = (int)(from % MAP_SIZE);
+	    int lim   = (int)Math.min( MAP_SIZE, i + (to - from) );
+
+	    int rv = Scanner.indexOf(mbs[chunk], i, lim, sep);
+	    if(rv >= 0)
+		return (chunk * MAP_SIZE) + rv;
+
+	    // Check for a separator straddling the next buffer, then move on
+	    long next = (chunk * MAP_SIZE) + lim;
+	    for(long p = Math.max(from, next - sep.length + 1); p < next; p++)
+		if(matches(sep, p, to))
+		    return p;
+	    from = next;
+	}
+	return -1;
+    }
+
+    // Return the number of b's in [from, to)
+    public long count(byte b, long from, long to) {
+	ensureOpen();
+	long n = 0;
+
+	while(from < to) {
+	    int chunk = (int)(from / MAP_SIZE);
+	    int i     = (int)(from % MAP_SIZE);
+	    int lim   = (int)Math.min( MAP_SIZE, i + (to - from) );
+
+	    n   += Scanner.count(mbs[chunk], i, lim, b);
+	    from = (chunk * MAP_SIZE) + lim;
+	}
+	return n;
+    }
+
+    boolean matches(byte[] sep, long pos, long to) {
+	if(pos + sep.length > to)
+	    return false;
+	for(int k = 0; k < sep.length; k++)
+	    if(get(pos + k) != sep[k])
+		return false;
+	return true;
+    }
+
+    /* Read a byte from every page in [from, to) so they're resident, returning
+     * their sum.  Holds the file open meanwhile, so a concurrent close() waits
+     * rather than unmapping pages mid read.  Does nothing once closed. */
+    public long touch(long from, long to, int pageSize) {
+	long sum = 0;
+	long t0  = Metrics.enabled ? System.nanoTime() : 0;
+
+	synchronized(fw) {
+	    if(t0 != 0)
+		Metrics.lockWaited(fw, System.nanoTime() - t0);
+	    if(fw.closed)
+		return 0;
+	    for(long pos = from - (from % pageSize); pos < Math.min(to, length); pos += pageSize)
+		sum += mbs[(int)(pos / MAP_SIZE)].get((int)(pos % MAP_SIZE));
+	}
+	return sum;
+    }
+
+    /* Return a private view of the buffer holding [from, to), or null
+     * if the range straddles two of the mapped buffers. */
+    public ByteBuffer buffer(long from, long to) {
+	ByteBuffer bb = shared(from, to);
+	return (bb == null) ? null : bb.duplicate();
+    }
+
+    /* The same, but the mapped buffer itself, shared with every other
+     * reader; only for absolute reads, which leave its position and limit
+     * alone, as ByteRecord's are.  Nothing is allocated. */
+    ByteBuffer shared(long from, long to) {
+	ensureOpen();
+	int chunk = (int)(from / MAP_SIZE);
+	if(to - (chunk * MAP_SIZE) > MAP_SIZE)
+	    return null;
+	return mbs[chunk];
     }
 
+    // Number of bytes mapped, see extend() for picking up anything appended since
     public long size() throws IOException {
-	return this.fw.fc.size();
+	return this.length;
     }
 
     public static void main (String[] args) throws IOException
@@ -0,0 +1,180 @@
+package iota;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Grab Clojure */
+import clojure.lang.ASeq;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
+import clojure.lang.Obj;
+
+/*
+ * Several files as a single seq, with each file's lines following the
+ * previous file's.
+ *
+ * head is what remains of the first file, and parts[idx + 1 ...] the files
+ * after it.  split() divides the files into two runs of about the same
+ * number of bytes, down to a single file which then splits itself, so
+ * folds stay balanced however different the files' sizes are.
+ */
+public class MultiFileSeq extends ASeq implements ByteReducible, IReduce, Closeable {
+
+    // Member Variables
+    public final FileSeq   head;
+    public final FileSeq[] parts;
+    public final int       idx;
+
+    public MultiFileSeq(FileSeq[] parts) {
+	this(parts[0], parts, 0);
+    }
+
+    MultiFileSeq(FileSeq head, FileSeq[] parts, int idx) {
+	this.head  = head;
+	this.parts = parts;
+	this.idx   = idx;
+    }
+
+    // A seq over filenames, or null if every file is empty
+    public static ISeq open(String[] filenames, int bufsize, byte sep, Charset charset) throws IOException {
+	return open(filenames, bufsize, sep, charset, false);
+    }
+
+    // With pread, the files are read with positional reads rather than mapped
+    public static ISeq open(String[] filenames, int bufsize, byte sep, Charset charset, boolean pread) throws IOException {
+	ArrayList<FileSeq> al = new ArrayList<FileSeq>();
+
+	try {
+	    for(String filename : filenames)
+		if(new File(filename).length() > 0)
+		    al.add(new FileSeq(Mmap.open(filename, pread), bufsize, sep, charset));
+	} catch(IOException e) {
+	    for(FileSeq s : al)
+		s.close();
+	    throw e;
+	}
+
+	if(al.isEmpty())
+	    return null;
+	if(al.size() == 1)
+	    return al.get(0);
+	return new MultiFileSeq(al.toArray(new FileSeq[al.size()]));
+    }
+
+    // head followed by the rest of the files
+    FileSeq[] remaining() {
+	FileSeq[] rv = Arrays.copyOfRange(parts, idx, parts.length);
+	rv[0] = head;
+	return rv;
+    }
+
+    // A single file's seq, or else a MultiFileSeq
+    static ISeq of(FileSeq[] parts) {
+	if(parts.length == 1)
+	    return parts[0];
+	return new MultiFileSeq(parts);
+    }
+
+    public ISeq[] split() {
+	FileSeq[] rem = remaining();
+	if(rem.length == 1)
+	    return head.split();
+
+	// Find the file boundary closest to halfway through the bytes
+	long total = 0;
+	for(FileSeq s : rem)
+	    total += s.end - s.start;
+
+	long left = 0;
+	int  k    = 0;
+	while(k < rem.length - 1) {
+	    long size = rem[k].end - rem[k].start;
+	    if(left + (size / 2) >= total / 2)
+		break;
+	    left += size;
+	    k++;
+	}
+	k = Math.max(k, 1);
+
+	return new ISeq[]{ of(Arrays.copyOfRange(rem, 0, k)),
+			   of(Arrays.copyOfRange(rem, k, rem.length)) };
+    }
+
+    public Object first() {
+	return head.first();
+    }
+
+    public ISeq next() {
+	ISeq n = head.next();
+	if(n != null)
+	    return new MultiFileSeq((FileSeq)n, parts, idx);
+	if(idx + 2 == parts.length)
+	    return parts[idx + 1];
+	return new MultiFileSeq(parts[idx + 1], parts, idx + 1);
+    }
+
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init) {
+	MultiFileVector.Halting h = new MultiFileVector.Halting(f);
+	Object acc = init;
+	for(FileSeq s : remaining()) {
+	    acc = s.reduceBytes(h, acc);
+	    if(h.halted)
+		break;
+	}
+	return acc;
+    }
+
+    // As FileSeq.reduceRecords, over every file
+    public Object reduceRecords(IFn f, Object init) {
+	MultiFileVector.Halting h = new MultiFileVector.Halting(f);
+	Object acc = init;
+	for(FileSeq s : remaining()) {
+	    acc = s.reduceRecords(h, acc);
+	    if(h.halted)
+		break;
+	}
+	return acc;
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init) {
+	MultiFileVector.Halting h = new MultiFileVector.Halting(f);
+	Object acc = init;
+	for(FileSeq s : remaining()) {
+	    acc = s.reduce(h, acc);
+	    if(h.halted)
+		break;
+	}
+	return acc;
+    }
+
+    public Object reduce(IFn f) {
+	ISeq n = next();
+	if(n == null)
+	    return first();
+	return ((IReduce)n).reduce(f, first());
+    }
+
+    // Close every file
+    public void close() throws IOException {
+	IOException error = null;
+	for(FileSeq s : parts) {
+	    try {
+		s.close();
+	    } catch(IOException e) {
+		error = e;
+	    }
+	}
+	if(error != null)
+	    throw error;
+    }
+
+    public Obj withMeta(IPersistentMap meta) {
+	throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,353 @@
+package iota;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.RecursiveAction;
+
+/* Grab Clojure */
+import clojure.lang.AFn;
+import clojure.lang.APersistentVector;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentStack;
+import clojure.lang.IPersistentVector;
+import clojure.lang.IReduce;
+import clojure.lang.ISeq;
+import clojure.lang.IteratorSeq;
+import clojure.lang.Reduced;
+
+/*
+ * Several files as a single vector, with each file's lines following the
+ * previous file's.
+ *
+ * offsets[p] is the number of lines before file p, so nth() finds its file
+ * with a binary search and is still O(1) within it.  Subvecs are ranges of
+ * global line numbers, and a subvec within a single file is that file's own
+ * FileVector subvec; so splitting by line count, as fold does, balances the
+ * work however unevenly the lines are spread over the files.
+ */
+public class MultiFileVector extends APersistentVector implements ByteReducible, IReduce, Closeable {
+
+    // Member Variables
+    public final FileVector[] parts;
+    public final long[]       offsets; // Lines before each part, and in total
+    public final long         start;
+    public final long         end;
+
+    public MultiFileVector(FileVector[] parts) {
+	this(parts, lineOffsets(parts));
+    }
+
+    private MultiFileVector(FileVector[] parts, long[] offsets) {
+	this(parts, offsets, 0, offsets[parts.length]);
+    }
+
+    MultiFileVector(FileVector[] parts, long[] offsets, long start, long end) {
+	this.parts   = parts;
+	this.offsets = offsets;
+	this.start   = start;
+	this.end     = end;
+    }
+
+    private static long[] lineOffsets(FileVector[] parts) {
+	long[] rv = new long[parts.length + 1];
+	for(int p = 0; p < parts.length; p++)
+	    rv[p + 1] = rv[p] + parts[p].longCount();
+	return rv;
+    }
+
+    /* Open and index every file concurrently, on the same pool the indexes
+     * themselves are built on. */
+    public static MultiFileVector open(String[] filenames, int chunkSize, byte sep, int cacheSize, Charset charset, boolean offHeap) throws IOException {
+	return open(filenames, chunkSize, sep, cacheSize, charset, offHeap, false);
+    }
+
+    // With pread, the files are read with positional reads rather than mapped
+    public static MultiFileVector open(String[] filenames, int chunkSize, byte sep, int cacheSize, Charset charset, boolean offHeap, boolean pread) throws IOException {
+	FileVector[] parts = new FileVector[filenames.length];
+	OpenTask     task  = new OpenTask(filenames, 0, filenames.length, chunkSize, sep, cacheSize, charset, offHeap, pread, parts);
+
+	FileIndexer.run(task);
+	if(task.error != null) {
+	    for(FileVector v : parts)
+		if(v != null)
+		    v.close();
+	    throw task.error;
+	}
+	return new MultiFileVector(parts);
+    }
+
+    static class OpenTask extends RecursiveAction {
+	final String[]     filenames;
+	final int          lo;
+	final int          hi;
+	final int          chunkSize;
+	final byte         sep;
+	final int          cacheSize;
+	final Charset      charset;
+	final boolean      offHeap;
+	final boolean      pread;
+	final FileVector[] parts;
+	IOException        error;
+
+	OpenTask(String[] filenames, int lo, int hi, int chunkSize, byte sep, int cacheSize, Charset charset, boolean offHeap, boolean pread, FileVector[] parts) {
+	    this.filenames = filenames;
+	    this.lo        = lo;
+	    this.hi        = hi;
+	    this.chunkSize = chunkSize;
+	    this.sep       = sep;
+	    this.cacheSize = cacheSize;
+	    this.charset   = charset;
+	    this.offHeap   = offHeap;
+	    this.pread     = pread;
+	    this.parts     = parts;
+	}
+
+	protected void compute() {
+	    if(hi - lo > 1) {
+		int      mid = (lo + hi) >>> 1;
+		OpenTask t1  = new OpenTask(filenames, lo, mid, chunkSize, sep, cacheSize, charset, offHeap, pread, parts);
+		OpenTask t2  = new OpenTask(filenames, mid, hi, chunkSize, sep, cacheSize, charset, offHeap, pread, parts);
+		invokeAll(t1, t2);
+		error = (t1.error != null) ? t1.error : t2.error;
+		return;
+	    }
+
+	    try {
+		if(lo < hi)
+		    parts[lo] = new FileVector(Mmap.open(filenames[lo], pread), chunkSize, sep, null, cacheSize, charset, offHeap);
+	    } catch(IOException e) {
+		error = e;
+	    }
+	}
+    }
+
+    // The part holding global line g, skipping empty files
+    int partOf(long g) {
+	int lo = 0, hi = parts.length - 1;
+	while(lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if(offsets[mid] <= g)
+		lo = mid;
+	    else
+		hi = mid - 1;
+	}
+	return lo;
+    }
+
+    // Each part's share of lines [from, to), as FileVector subvecs
+    public FileVector[] segments(long from, long to) {
+	ArrayList<FileVector> rv = new ArrayList<FileVector>();
+	long gfrom = start + from, gto = start + to;
+
+	for(int p = partOf(gfrom); p < parts.length && offsets[p] < gto; p++) {
+	    long lo = Math.max(gfrom, offsets[p]) - offsets[p];
+	    long hi = Math.min(gto, offsets[p + 1]) - offsets[p];
+	    if(lo < hi)
+		rv.add(parts[p].subvec(lo, hi));
+	}
+	return rv.toArray(new FileVector[rv.size()]);
+    }
+
+    public FileVector[] segments() {
+	return segments(0, longCount());
+    }
+
+    /* Wraps a reducing function to note when it returns a Reduced, which the
+     * parts unwrap, so the reduce can stop before the next part. */
+    static final class Halting extends AFn {
+	final IFn f;
+	boolean   halted;
+
+	Halting(IFn f) {
+	    this.f = f;
+	}
+
+	public Object invoke(Object acc, Object x) {
+	    Object rv = f.invoke(acc, x);
+	    if(rv instanceof Reduced)
+		halted = true;
+	    return rv;
+	}
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  MultiFileVector Specific Public Calls
+     *  **  **  **  **  **  **  **  **/
+
+    // A subvec within a single file is that file's FileVector subvec
+    public APersistentVector subvec(int from, int to) {
+	return subvec((long)from, (long)to);
+    }
+
+    public APersistentVector subvec(long from, long to) {
+	if(to < from || from < 0 || to > longCount())
+	    throw new IndexOutOfBoundsException("[" + from + ", " + to + "] not between 0 and " + longCount() + ".");
+	if(from == to)
+	    return FileVector.EMPTY;
+
+	int p = partOf(start + from);
+	if(start + to <= offsets[p + 1])
+	    return parts[p].subvec(start + from - offsets[p], start + to - offsets[p]);
+	return new MultiFileVector(parts, offsets, start + from, start + to);
+    }
+
+    public APersistentVector subvec(int from) {
+	return subvec(from, longCount());
+    }
+
+    public ByteRecord getRecord(int i) {
+	return getRecord((long)i);
+    }
+
+    public ByteRecord getRecord(long i) {
+	if(i < 0 || i >= longCount())
+	    throw new IndexOutOfBoundsException("getRecord() failure: " + i + " is not within 0..." + longCount());
+	int p = partOf(start + i);
+	return parts[p].getRecord(start + i - offsets[p]);
+    }
+
+    /* Every file refreshed as by FileVector.refresh(), or this if none of
+     * them were appended to.  Not supported on subvecs. */
+    public MultiFileVector refresh() throws IOException {
+	if(start != 0 || end != offsets[parts.length])
+	    throw new UnsupportedOperationException("Refresh the vector this is a subvec of instead");
+
+	FileVector[] rv      = new FileVector[parts.length];
+	boolean      changed = false;
+	for(int p = 0; p < parts.length; p++) {
+	    rv[p]    = parts[p].refresh();
+	    changed |= (rv[p] != parts[p]);
+	}
+	return changed ? new MultiFileVector(rv) : this;
+    }
+
+    // Close every file
+    public void close() throws IOException {
+	IOException error = null;
+	for(FileVector v : parts) {
+	    try {
+		v.close();
+	    } catch(IOException e) {
+		error = e;
+	    }
+	}
+	if(error != null)
+	    throw error;
+    }
+
+
+    /*  **  **  **  **  **  **  **  **
+     *  For Clojure compatibility
+     *  **  **  **  **  **  **  **  **/
+    public Object nth(int i) {
+	return nth((long)i);
+    }
+
+    // Line i, which may lie past Integer.MAX_VALUE
+    public Object nth(long i) {
+	if(i < 0 || i >= longCount())
+	    throw new IndexOutOfBoundsException(i + " is not within 0..." + longCount());
+	int p = partOf(start + i);
+	return parts[p].nth(start + i - offsets[p]);
+    }
+
+    /* For clojure.lang.Counted, which can't count past Integer.MAX_VALUE;
+     * as for FileVector, nothing else relies on it */
+    public int count() {
+	return FileVector.intCount(longCount());
+    }
+
+    public long longCount() {
+	return end - start;
+    }
+
+    /* For java.util.Collection, whose size() is Integer.MAX_VALUE for
+     * collections holding more */
+    public int size() {
+	return (int)Math.min(longCount(), Integer.MAX_VALUE);
+    }
+
+    // Each file's lines in turn, by their own iterators
+    public Iterator iterator() {
+	final FileVector[] segs = segments();
+	return new Iterator() {
+	    int      p     = 0;
+	    Iterator lines = null;
+
+	    public boolean hasNext() {
+		while((lines == null || !lines.hasNext()) && p < segs.length)
+		    lines = segs[p++].iterator();
+		return lines != null && lines.hasNext();
+	    }
+
+	    public Object next() {
+		if(!hasNext())
+		    throw new java.util.NoSuchElementException();
+		return lines.next();
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    public ISeq seq() {
+	if(longCount() == 0)
+	    return null;
+	return IteratorSeq.create(iterator());
+    }
+
+    /* For iota.ByteReducible */
+    public Object reduceBytes(IFn f, Object init) {
+	Halting h   = new Halting(f);
+	Object  acc = init;
+	for(FileVector v : segments()) {
+	    acc = v.reduceBytes(h, acc);
+	    if(h.halted)
+		break;
+	}
+	return acc;
+    }
+
+    /* For clojure.lang.IReduce */
+    public Object reduce(IFn f, Object init) {
+	Halting h   = new Halting(f);
+	Object  acc = init;
+	for(FileVector v : segments()) {
+	    acc = v.reduce(h, acc);
+	    if(h.halted)
+		break;
+	}
+	return acc;
+    }
+
+    public Object reduce(IFn f) {
+	if(longCount() == 0)
+	    return f.invoke();
+	if(longCount() == 1)
+	    return nth(0);
+	return new MultiFileVector(parts, offsets, start + 1, end).reduce(f, nth(0));
+    }
+
+    /* To protect against changes */
+    public IPersistentVector assocN(int i, Object val) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentVector cons(Object o) {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentStack pop() {
+	throw new UnsupportedOperationException();
+    }
+
+    public IPersistentCollection empty() {
+	return FileVector.EMPTY;
+    }
+}
@@ -1,6 +1,7 @@
 package iota;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 public class NumberedFileVector extends FileVector {
 
@@ -13,8 +14,22 @@ public class NumberedFileVector extends FileVector {
 	this.delim = delim;
     }
 
+    public NumberedFileVector(String filename, int chunkSize, String delim, Charset charset) throws IOException  {
+	super(filename, chunkSize, FileVector.DEFAULT_SEP, null, ChunkCache.DEFAULT_CAPACITY, charset);
+	this.delim = delim;
+    }
+
+    public NumberedFileVector(Mmap map, LineIndex chunkIndex, int chunkSize, long lineCount, byte sep, ChunkCache cache, Charset charset, String delim) {
+	super(map, chunkIndex, chunkSize, lineCount, sep, cache, charset);
+	this.delim = delim;
+    }
+
+    protected FileVector withIndex(Mmap map, FileIndexer idx) {
+	return new NumberedFileVector(map, idx.chunkIndex, chunkSize, idx.lineCount, sep, new ChunkCache(cache.capacity()), charset, delim);
+    }
+
     // Append line number to beginning of line
-    protected String getLine(FileVector v, int i) {
+    protected String getLine(FileVector v, long i) {
 	String line = super.getLine(v,i);	
 
 	if(line!=null){
@@ -22,4 +37,13 @@ public class NumberedFileVector extends FileVector {
 	}
 	return i + "";
     }
+
+    protected String decodeLine(long i, ByteRecord rec) {
+	String line = super.decodeLine(i, rec);
+
+	if(line!=null){
+	    return i + this.delim + line;
+	}
+	return i + "";
+    }
 }
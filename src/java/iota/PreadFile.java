@@ -0,0 +1,197 @@
+package iota;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A file read with positional reads, FileChannel.read(ByteBuffer, long),
+ * rather than mapped.  For filesystems where page faults are slow or
+ * unpredictable, and containers where mapped pages count against the
+ * process's memory.
+ *
+ * Each thread reads through a window of its own: a direct buffer reused
+ * across every PreadFile, holding the last WINDOW bytes it read from one of
+ * them.  Scans for separators run over the window as they would over a
+ * mapped buffer, and reads near the last one, such as the next line, are
+ * served from it without another system call.  Reads never need a direct
+ * buffer from the JDK's per thread cache, which keeps one as large as the
+ * largest read.  There's no buffer to share, so ByteRecord's copy their
+ * bytes out through get().
+ */
+public class PreadFile extends Mmap {
+
+    // Static Variables
+    final static int  WINDOW = 65536; // 64KB
+    final static int  ALIGN  = 4096;
+    final static AtomicLong IDS = new AtomicLong();
+    final static ThreadLocal<Window> WINDOWS = new ThreadLocal<Window>() {
+	protected Window initialValue() {
+	    return new Window();
+	}
+    };
+
+    // Member Variables
+    final long id; // Which file a window holds, shared by extend()
+
+    public PreadFile(String filename) throws IOException {
+	this(new FileWrapper(filename));
+    }
+
+    PreadFile(FileWrapper fw) throws IOException {
+	this(fw, size(fw), IDS.incrementAndGet());
+    }
+
+    PreadFile(FileWrapper fw, long length, long id) {
+	super(fw, length);
+	this.id = id;
+    }
+
+    static long size(FileWrapper fw) throws IOException {
+	try {
+	    return fw.fc.size();
+	} catch(IOException e) {
+	    fw.close();
+	    throw e;
+	}
+    }
+
+    /* A direct buffer holding [base, base + limit) of file id.  The file
+     * may only grow, so what a window holds stays valid for extend()s. */
+    static final class Window {
+	final ByteBuffer buf = ByteBuffer.allocateDirect(WINDOW);
+	long             id  = -1;
+	long             base;
+	int              limit;
+    }
+
+    // This thread's window, holding pos
+    Window window(long pos) {
+	ensureOpen();
+	Window w = WINDOWS.get();
+	if(w.id == id && pos >= w.base && pos < w.base + w.limit)
+	    return w;
+	if(pos < 0 || pos >= length)
+	    throw new IndexOutOfBoundsException(pos + " is not within 0..." + length);
+
+	long base = pos - (pos % ALIGN);
+	w.id = -1;
+	w.buf.clear();
+	w.buf.limit((int)Math.min(WINDOW, length - base));
+	try {
+	    while(w.buf.hasRemaining())
+		if(fw.fc.read(w.buf, base + w.buf.position()) < 0)
+		    break;
+	} catch(IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	if(base + w.buf.position() <= pos)
+	    throw new UncheckedIOException(new EOFException(fw.filename + " is shorter than " + length + "B"));
+
+	w.id    = id;
+	w.base  = base;
+	w.limit = w.buf.position();
+	return w;
+    }
+
+    public Mmap extend() throws IOException {
+	ensureOpen();
+	long size = fw.fc.size();
+	if(size < length)
+	    throw new IOException("File shrank from " + length + "B to " + size + "B, it can only be extended");
+	if(size == length)
+	    return this;
+	return new PreadFile(fw, size, id);
+    }
+
+    // Nothing is shared between readers, so this is as good as a copy
+    public Mmap duplicate() {
+	return this;
+    }
+
+    public void get(byte[] buffer, long pos, int size) {
+	for(int done = 0; done < size; ) {
+	    Window w   = window(pos + done);
+	    int    off = (int)(pos + done - w.base);
+	    int    n   = Math.min(size - done, w.limit - off);
+	    w.buf.position(off);
+	    w.buf.get(buffer, done, n);
+	    done += n;
+	}
+    }
+
+    public byte get(long pos) {
+	Window w = window(pos);
+	return w.buf.get((int)(pos - w.base));
+    }
+
+    public long indexOf(byte b, long from, long to) {
+	to = Math.min(to, length);
+	while(from < to) {
+	    Window w   = window(from);
+	    int    i   = (int)(from - w.base);
+	    int    lim = (int)Math.min(w.limit, i + (to - from));
+
+	    int rv = Scanner.indexOf(w.buf, i, lim, b);
+	    if(rv >= 0)
+		return w.base + rv;
+	    from = w.base + lim;
+	}
+	return -1;
+    }
+
+    public long indexOf(byte[] sep, long from, long to) {
+	to = Math.min(to, length);
+	while(from < to) {
+	    Window w   = window(from);
+	    int    i   = (int)(from - w.base);
+	    int    lim = (int)Math.min(w.limit, i + (to - from));
+
+	    int rv = Scanner.indexOf(w.buf, i, lim, sep);
+	    if(rv >= 0)
+		return w.base + rv;
+
+	    // Check for a separator straddling the next window, then move on
+	    long next = w.base + lim;
+	    for(long p = Math.max(from, next - sep.length + 1); p < next; p++)
+		if(matches(sep, p, to))
+		    return p;
+	    from = next;
+	}
+	return -1;
+    }
+
+    public long count(byte b, long from, long to) {
+	long n = 0;
+	to = Math.min(to, length);
+	while(from < to) {
+	    Window w   = window(from);
+	    int    i   = (int)(from - w.base);
+	    int    lim = (int)Math.min(w.limit, i + (to - from));
+
+	    n   += Scanner.count(w.buf, i, lim, b);
+	    from = w.base + lim;
+	}
+	return n;
+    }
+
+    /* Read [from, to) so it's in the page cache, returning the sum of a
+     * byte from each window.  Does nothing once closed. */
+    public long touch(long from, long to, int pageSize) {
+	long sum = 0;
+	if(isClosed())
+	    return 0;
+	for(long pos = Math.max(0, from); pos < Math.min(to, length); ) {
+	    Window w = window(pos);
+	    sum += w.buf.get((int)(pos - w.base));
+	    pos  = w.base + w.limit;
+	}
+	return sum;
+    }
+
+    // There's no buffer over the file, records are read with get() instead
+    ByteBuffer shared(long from, long to) {
+	ensureOpen();
+	return null;
+    }
+}
@@ -0,0 +1,138 @@
+package iota;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Read-ahead for folds over cold files.
+ *
+ * Before a fold reduces a range it asks for the range after it, which a
+ * background thread then faults in a page at a time.  By the time a worker
+ * reaches that range its pages are resident, so it doesn't stall on them.
+ * The JDK has no madvise(), so touching pages is the portable equivalent of
+ * MappedByteBuffer.load() over part of a buffer rather than all 2GB of it.
+ *
+ * Requests beyond what the prefetch threads can keep up with are dropped,
+ * rather than queued behind reads that will already have happened.
+ */
+public class Prefetcher {
+
+    // Static Variables
+    final static int PAGE_SIZE = 4096;
+    final static int THREADS   = 2;
+    final static int QUEUE     = 64; // ranges
+
+    final static AtomicLong requested = new AtomicLong();
+    final static AtomicLong dropped   = new AtomicLong();
+    final static AtomicLong bytes     = new AtomicLong();
+    final static AtomicLong nanos     = new AtomicLong();
+    static volatile long    sink; // Keeps the page reads from being optimised away
+
+    final static ThreadPoolExecutor POOL =
+	new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+			       new ArrayBlockingQueue<Runnable>(QUEUE),
+			       new ThreadFactory() {
+				   public Thread newThread(Runnable r) {
+				       Thread t = new Thread(r, "iota-prefetch");
+				       t.setDaemon(true);
+				       return t;
+				   }
+			       },
+			       new ThreadPoolExecutor.DiscardPolicy() {
+				   public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+				       dropped.incrementAndGet();
+				   }
+			       });
+
+    // Fault in [from, to) of map in the background
+    public static void prefetch(final Mmap map, final long from, final long to) {
+	if(from >= to)
+	    return;
+
+	requested.incrementAndGet();
+	POOL.execute(new Runnable() {
+		public void run() {
+		    long t0 = System.nanoTime();
+		    sink += map.touch(from, to, PAGE_SIZE);
+		    nanos.addAndGet(System.nanoTime() - t0);
+		    bytes.addAndGet(to - from);
+		}
+	    });
+    }
+
+    // Prefetch the range of coll's file just after coll, as long as coll itself
+    public static void ahead(Object coll) {
+	Mmap map;
+	long from, to;
+
+	if(coll instanceof FileVector) {
+	    FileVector v = (FileVector)coll;
+	    long[] span  = v.byteSpan();
+	    map  = v.map;
+	    from = span[0];
+	    to   = span[1];
+	} else if(coll instanceof FileSeq) {
+	    FileSeq s = (FileSeq)coll;
+	    map  = s.map;
+	    from = s.start;
+	    to   = s.end;
+	} else if(coll instanceof FileRecordSeq) {
+	    FileRecordSeq s = (FileRecordSeq)coll;
+	    map  = s.map;
+	    from = s.start;
+	    to   = s.end;
+	} else if(coll instanceof MatchVector) {
+	    MatchVector v = (MatchVector)coll;
+	    if(v.count() == 0)
+		return;
+	    long[] span  = v.byteSpan();
+	    map  = v.map;
+	    from = span[0];
+	    to   = span[1];
+	} else if(coll instanceof MultiFileVector) {
+	    FileVector[] segs = ((MultiFileVector)coll).segments();
+	    if(segs.length > 0)
+		ahead(segs[segs.length - 1]);
+	    return;
+	} else if(coll instanceof MultiFileSeq) {
+	    FileSeq[] rem = ((MultiFileSeq)coll).remaining();
+	    ahead(rem[rem.length - 1]);
+	    return;
+	} else if(coll instanceof GzipSeq) {
+	    GzipSeq s = (GzipSeq)coll;
+	    map  = s.blocks.map;
+	    from = s.blocks.offsets[s.from];
+	    to   = s.blocks.offsets[s.to];
+	} else {
+	    return;
+	}
+
+	if(map == null)
+	    return;
+	try {
+	    prefetch(map, to, Math.min(map.size(), to + (to - from)));
+	} catch(java.io.IOException e) {
+	    // Nothing to prefetch
+	}
+    }
+
+    public static long requested() {
+	return requested.get();
+    }
+
+    public static long dropped() {
+	return dropped.get();
+    }
+
+    public static long bytes() {
+	return bytes.get();
+    }
+
+    // Time spent faulting pages in ahead of the readers, which they'd otherwise have stalled on
+    public static long nanos() {
+	return nanos.get();
+    }
+}
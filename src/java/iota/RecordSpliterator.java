@@ -0,0 +1,144 @@
+package iota;
+
+import java.nio.charset.Charset;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * A Spliterator over the records of a range of a mapped file, for Java
+ * callers to build Streams on; e.g. FileSeq's spliterator(), which
+ * stream() and parallelStream() use.
+ *
+ * trySplit() cuts at the start of the record after the middle of what's
+ * left, or at one of Mmap's buffer boundaries near it, as SplitPlanner
+ * does for folds, and won't split less than minSplit bytes.  The number of
+ * records isn't known without scanning, so only the bytes left are given
+ * as the estimate.
+ *
+ * Records split on a separator, as FileSeq's lines, don't include it, and
+ * a range holds one more record than it has separators.  Otherwise, as
+ * FileRecordSeq's records, each record ends with its separator.
+ */
+public abstract class RecordSpliterator<T> implements Spliterator<T> {
+
+    // Member Variables
+    final Mmap       map;
+    final long       end;
+    final byte[]     sep;
+    final boolean    keepSep;
+    final long       minSplit;
+    final ByteRecord rec = new ByteRecord();
+    long             pos; // Start of the next record, past end once they're all done
+
+    RecordSpliterator(Mmap map, long start, long end, byte[] sep, boolean keepSep, long minSplit) {
+	this.map      = map;
+	this.pos      = start;
+	this.end      = end;
+	this.sep      = sep;
+	this.keepSep  = keepSep;
+	this.minSplit = Math.max(1, minSplit);
+    }
+
+    // Records as Strings, with empty records as "" rather than nil
+    public static RecordSpliterator<String> strings(Mmap map, long start, long end, byte[] sep, boolean keepSep, long minSplit, Charset charset) {
+	return new Strings(map, start, end, sep, keepSep, minSplit, charset);
+    }
+
+    /* Records as a ByteRecord, which is reused for every record, so it's
+     * only valid until the action it was passed to returns. */
+    public static RecordSpliterator<ByteRecord> bytes(Mmap map, long start, long end, byte[] sep, boolean keepSep, long minSplit) {
+	return new Bytes(map, start, end, sep, keepSep, minSplit);
+    }
+
+    abstract T element(ByteRecord rec);
+
+    abstract RecordSpliterator<T> range(long from, long to);
+
+    // Point rec at the next record, or return false if there isn't one
+    boolean next() {
+	if(keepSep) {
+	    if(pos >= end)
+		return false;
+	    long eor = map.indexOf(sep, pos, end);
+	    eor = (eor < 0) ? end : eor + sep.length;
+	    rec.set(map, pos, eor);
+	    pos = eor;
+	} else {
+	    if(pos > end)
+		return false;
+	    long eol = (sep.length == 1) ? map.indexOf(sep[0], pos, end) : map.indexOf(sep, pos, end);
+	    if(eol < 0)
+		eol = end;
+	    rec.set(map, pos, eol);
+	    pos = eol + sep.length;
+	    if(eol == end)
+		pos = end + 1;
+	}
+	return true;
+    }
+
+    public boolean tryAdvance(Consumer<? super T> action) {
+	if(!next())
+	    return false;
+	action.accept(element(rec));
+	return true;
+    }
+
+    public void forEachRemaining(Consumer<? super T> action) {
+	while(next())
+	    action.accept(element(rec));
+    }
+
+    // Hand off the records before a cut near the middle
+    public Spliterator<T> trySplit() {
+	if(end - pos < minSplit)
+	    return null;
+	long cut = SplitPlanner.recordStart(map, SplitPlanner.midpoint(pos, end), end, sep);
+	if(cut <= pos)
+	    return null;
+
+	RecordSpliterator<T> rv = range(pos, keepSep ? cut : cut - sep.length);
+	pos = cut;
+	return rv;
+    }
+
+    public long estimateSize() {
+	return Math.max(0, end - pos);
+    }
+
+    public int characteristics() {
+	return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+
+    static final class Strings extends RecordSpliterator<String> {
+	final Charset charset;
+
+	Strings(Mmap map, long start, long end, byte[] sep, boolean keepSep, long minSplit, Charset charset) {
+	    super(map, start, end, sep, keepSep, minSplit);
+	    this.charset = charset;
+	}
+
+	String element(ByteRecord rec) {
+	    return rec.toString(charset);
+	}
+
+	RecordSpliterator<String> range(long from, long to) {
+	    return new Strings(map, from, to, sep, keepSep, minSplit, charset);
+	}
+    }
+
+    static final class Bytes extends RecordSpliterator<ByteRecord> {
+	Bytes(Mmap map, long start, long end, byte[] sep, boolean keepSep, long minSplit) {
+	    super(map, start, end, sep, keepSep, minSplit);
+	}
+
+	ByteRecord element(ByteRecord rec) {
+	    return rec;
+	}
+
+	RecordSpliterator<ByteRecord> range(long from, long to) {
+	    return new Bytes(map, from, to, sep, keepSep, minSplit);
+	}
+    }
+}
@@ -0,0 +1,102 @@
+package iota;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * Separator search shared by all of the readers.
+ *
+ * Buffers are scanned a word (8 bytes) at a time, using the SWAR trick from
+ * "Bit Twiddling Hacks" to find bytes equal to the separator.  The variant
+ * used here never reports false positives, so matches can be counted with
+ * a popcount and the first one located with a leading zero count.  Words
+ * are read big endian (ByteBuffer's default), so the first byte in memory
+ * is the most significant byte of the word.
+ */
+public class Scanner {
+
+    // Static Variables
+    final static long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+
+    // Every byte of the result is 0x80 where x's byte equals b's, and 0 otherwise
+    static long matches(long x, long pattern) {
+	long t = x ^ pattern;
+	return ~(((t & LOW7) + LOW7) | t | LOW7);
+    }
+
+    // b repeated in every byte of a long
+    static long pattern(byte b) {
+	return (b & 0xFFL) * 0x0101010101010101L;
+    }
+
+    // Position of the first b in bb's [from, to), or -1
+    public static int indexOf(ByteBuffer bb, int from, int to, byte b) {
+	long pattern = pattern(b);
+	int  i       = from;
+
+	for(; i + 8 <= to; i += 8) {
+	    long m = matches(bb.getLong(i), pattern);
+	    if(m != 0)
+		return i + (Long.numberOfLeadingZeros(m) >>> 3);
+	}
+	for(; i < to; i++)
+	    if(bb.get(i) == b)
+		return i;
+	return -1;
+    }
+
+    // Number of b's in bb's [from, to)
+    public static long count(ByteBuffer bb, int from, int to, byte b) {
+	long pattern = pattern(b);
+	long n       = 0;
+	int  i       = from;
+
+	for(; i + 8 <= to; i += 8)
+	    n += Long.bitCount(matches(bb.getLong(i), pattern));
+	for(; i < to; i++)
+	    if(bb.get(i) == b)
+		n++;
+	return n;
+    }
+
+    /* Position of the first complete sep in bb's [from, to), or -1.
+     * Candidates are found by scanning for sep's first byte, and the search
+     * resumes just past a candidate that fails to match, so overlapping
+     * partial matches (e.g. "aab" within "aaab") are never skipped. */
+    public static int indexOf(ByteBuffer bb, int from, int to, byte[] sep) {
+	int last = to - sep.length;
+
+	for(int i = indexOf(bb, from, to, sep[0]); (i >= 0) && (i <= last); i = indexOf(bb, i + 1, to, sep[0])) {
+	    int k = 1;
+	    while(k < sep.length && bb.get(i + k) == sep[k])
+		k++;
+	    if(k == sep.length)
+		return i;
+	}
+	return -1;
+    }
+
+    public static int indexOf(byte[] buf, int from, int to, byte b) {
+	return indexOf(ByteBuffer.wrap(buf), from, to, b);
+    }
+
+    public static int indexOf(byte[] buf, int from, int to, byte[] sep) {
+	return indexOf(ByteBuffer.wrap(buf), from, to, sep);
+    }
+
+    /* Decode buf's [from, to) into lines split on sep, as String.split(sep, -1)
+     * would, but without a regex or decoding everything into one String first. */
+    public static String[] split(byte[] buf, int from, int to, byte sep, Charset cs) {
+	ByteBuffer bb = ByteBuffer.wrap(buf);
+	String[]   rv = new String[ (int)count(bb, from, to, sep) + 1 ];
+
+	for(int n = 0; n < rv.length; n++) {
+	    int eol = indexOf(bb, from, to, sep);
+	    if(eol < 0)
+		eol = to;
+	    rv[n] = Charsets.decode(buf, from, eol - from, cs);
+	    from  = eol + 1;
+	}
+	return rv;
+    }
+}
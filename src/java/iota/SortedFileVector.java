@@ -0,0 +1,116 @@
+package iota;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/*
+ * A FileVector over a file sorted by its first field, which can be searched
+ * by that key.
+ *
+ * Keys are compared as unsigned bytes straight from the mapped file, which
+ * is the order `LC_ALL=C sort` gives (and for UTF-8, code point order).  A
+ * binary search over the first key of each chunk narrows a search to one
+ * chunk, which is then scanned a line at a time; nothing is decoded, and
+ * nothing is allocated beyond the encoded key.
+ *
+ * Results are unspecified if the file isn't sorted.
+ */
+public class SortedFileVector extends FileVector {
+
+    // Static Variables
+    final static byte DEFAULT_DELIM = 9; // Tab in ASCII
+
+    // Member Variables
+    public final byte delim;
+
+    public SortedFileVector(String filename, int chunkSize, byte sep, String indexFile, int cacheSize, Charset charset, byte delim) throws IOException {
+	super(filename, chunkSize, sep, indexFile, cacheSize, charset);
+	this.delim = delim;
+    }
+
+    public SortedFileVector(Mmap map, LineIndex chunkIndex, int chunkSize, long lineCount, byte sep, ChunkCache cache, Charset charset, byte delim) {
+	super(map, chunkIndex, chunkSize, lineCount, sep, cache, charset);
+	this.delim = delim;
+    }
+
+    protected FileVector withIndex(Mmap map, FileIndexer idx) {
+	return new SortedFileVector(map, idx.chunkIndex, chunkSize, idx.lineCount, sep, new ChunkCache(cache.capacity()), charset, delim);
+    }
+
+    // Compare the key of the line at pos with key, as unsigned bytes
+    int compare(long pos, byte[] key) {
+	long eof = chunkIndex.last();
+
+	for(int i = 0; ; i++) {
+	    boolean ended = (pos + i >= eof);
+	    byte    b     = ended ? 0 : map.get(pos + i);
+
+	    if(ended || b == delim || b == sep)
+		return (i == key.length) ? 0 : -1;
+	    if(i == key.length)
+		return 1;
+	    if(b != key[i])
+		return (b & 0xFF) - (key[i] & 0xFF);
+	}
+    }
+
+    /* The first line whose key is at least key, or above it if strict;
+     * longCount() if there isn't one. */
+    public long bound(byte[] key, boolean strict) {
+	long n      = longCount();
+	long chunks = (n + chunkSize - 1) / chunkSize;
+
+	// First chunk whose first line is past the bound
+	long lo = 0, hi = chunks;
+	while(lo < hi) {
+	    long mid = (lo + hi) >>> 1;
+	    int c   = compare(chunkIndex.get(mid), key);
+	    if(strict ? (c > 0) : (c >= 0))
+		hi = mid;
+	    else
+		lo = mid + 1;
+	}
+	if(lo == 0)
+	    return 0;
+
+	// Then scan the chunk before it
+	long chunk = lo - 1;
+	long end   = Math.min(n, lo * chunkSize);
+	long pos   = chunkIndex.get(chunk);
+	long eof   = chunkIndex.last();
+	for(long i = chunk * chunkSize; i < end; i++) {
+	    int c = compare(pos, key);
+	    if(strict ? (c > 0) : (c >= 0))
+		return i;
+	    pos = map.indexOf(sep, pos, eof) + 1;
+	}
+	return end;
+    }
+
+    public byte[] encode(String key) {
+	return key.getBytes(charset);
+    }
+
+    // The first line with key, or null
+    public String lookup(String key) {
+	byte[] k = encode(key);
+	long   i = bound(k, false);
+	if(i >= longCount() || compare(lineStart(i), k) != 0)
+	    return null;
+	return decodeLine(i, recordAt(i));
+    }
+
+    /* Lines with from <= key < to, as a subvec; a null from or to leaves
+     * that end open. */
+    public FileVector keySubvec(String from, String to) {
+	long start = (from == null) ? 0           : bound(encode(from), false);
+	long end   = (to == null)   ? longCount() : bound(encode(to), false);
+	return subvec(start, Math.max(start, end));
+    }
+
+    // Every line with key, as a subvec
+    public FileVector keySubvec(String key) {
+	byte[] k = encode(key);
+	return subvec(bound(k, false), bound(k, true));
+    }
+}
@@ -0,0 +1,77 @@
+package iota;
+
+/*
+ * Plans how a fold divides a range of a mapped file between its workers.
+ *
+ * Halving a range level by level gives as many leaves as the range has
+ * bufsizes, each found with its own scan for a separator, and the leaves
+ * end up wherever the halves happen to fall.  plan() instead picks every
+ * cut up front: a few ranges per core, of about the same number of bytes,
+ * each moved forward to the start of the next record.  A cut near one of
+ * Mmap's buffer boundaries is moved onto it, so at most one record of a
+ * range straddles two buffers and has to be copied out by Mmap.get().
+ *
+ * fold then forks the planned ranges as a balanced tree, and only splits a
+ * range again once the worker reducing it finds nothing queued for other
+ * workers to steal, i.e. when they've run out of work.
+ */
+public class SplitPlanner {
+
+    // Static Variables
+    final static int RANGES_PER_CORE = 4;
+
+    // How many ranges to divide bytes into, none smaller than minBytes
+    public static int parts(long bytes, long minBytes) {
+	int cores = Runtime.getRuntime().availableProcessors();
+	return (int)Math.max(1, Math.min( (long)cores * RANGES_PER_CORE, bytes / Math.max(1, minBytes) ));
+    }
+
+    /* Where to divide [start, end) in two: halfway, or on a buffer boundary
+     * if there's one in the middle half. */
+    public static long midpoint(long start, long end) {
+	long mid      = start + ((end - start) / 2);
+	long boundary = ((mid + (Mmap.MAP_SIZE / 2)) / Mmap.MAP_SIZE) * Mmap.MAP_SIZE;
+	long slack    = (end - start) / 4;
+	if(boundary > start + slack && boundary < end - slack)
+	    return boundary;
+	return mid;
+    }
+
+    /* Divide [start, end) of map into at most parts ranges of records ending
+     * in sep.  Returns their bounds: start, the start of every range after
+     * the first, each just past a sep and before end, and then end. */
+    public static long[] plan(Mmap map, long start, long end, byte[] sep, int parts) {
+	long   length = end - start;
+	long[] cuts   = new long[parts + 1];
+	int    n      = 0;
+
+	cuts[n++] = start;
+	for(int i = 1; i < parts; i++) {
+	    long at = start + (length * i) / parts;
+
+	    // Snap to a buffer boundary within half a range
+	    long boundary = ((at + (Mmap.MAP_SIZE / 2)) / Mmap.MAP_SIZE) * Mmap.MAP_SIZE;
+	    if(Math.abs(boundary - at) <= length / (2 * parts) && boundary > start && boundary < end)
+		at = boundary;
+
+	    // A record can span several planned cuts, keep only the first
+	    if(at < cuts[n - 1])
+		continue;
+	    long cut = recordStart(map, at, end, sep);
+	    if(cut < 0)
+		break;
+	    if(cut > cuts[n - 1])
+		cuts[n++] = cut;
+	}
+	cuts[n++] = end;
+	return java.util.Arrays.copyOf(cuts, n);
+    }
+
+    // Start of the first record after a sep in [at, end), or -1 if it would be at or past end
+    static long recordStart(Mmap map, long at, long end, byte[] sep) {
+	long i = (sep.length == 1) ? map.indexOf(sep[0], at, end) : map.indexOf(sep, at, end);
+	if(i < 0 || i + sep.length >= end)
+	    return -1;
+	return i + sep.length;
+    }
+}
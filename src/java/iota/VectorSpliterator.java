@@ -0,0 +1,117 @@
+package iota;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * A Spliterator over lines [from, to) of a FileVector, for Java callers to
+ * build Streams on; FileVector's spliterator(), which stream() and
+ * parallelStream() use.
+ *
+ * Lines are read in place one after another from the mapped file, bypassing
+ * the chunk cache.  trySplit() divides at FileVector.splitPoint(), the
+ * chunk boundary closest to halving the bytes left, and both halves know
+ * exactly how many lines they hold, so it's SIZED and SUBSIZED.
+ */
+public abstract class VectorSpliterator<T> implements Spliterator<T> {
+
+    // Member Variables
+    final FileVector v; // Never a SubFileVector, from and to are its line numbers
+    final long       to;
+    final ByteRecord rec = new ByteRecord();
+    long             from;
+    long             pos = -1; // Where line from starts, once we've found it
+
+    VectorSpliterator(FileVector v, long from, long to) {
+	this.v    = v;
+	this.from = from;
+	this.to   = to;
+    }
+
+    // Lines as Strings, with empty lines as "" rather than nil
+    public static VectorSpliterator<String> strings(FileVector v, long from, long to) {
+	return new Strings(v, from, to);
+    }
+
+    /* Lines as a ByteRecord, which is reused for every line, so it's only
+     * valid until the action it was passed to returns. */
+    public static VectorSpliterator<ByteRecord> bytes(FileVector v, long from, long to) {
+	return new Bytes(v, from, to);
+    }
+
+    abstract T element(long i, ByteRecord rec);
+
+    abstract VectorSpliterator<T> range(long from, long to);
+
+    public boolean tryAdvance(Consumer<? super T> action) {
+	if(from >= to)
+	    return false;
+	if(pos < 0)
+	    pos = v.lineStart(from);
+
+	long eof = v.chunkIndex.last();
+	long eol = v.map.indexOf(v.sep, pos, eof);
+	if(eol < 0)
+	    eol = eof;
+	rec.set(v.map, pos, eol);
+	pos = eol + 1;
+	action.accept(element(from++, rec));
+	return true;
+    }
+
+    public void forEachRemaining(Consumer<? super T> action) {
+	while(tryAdvance(action))
+	    ;
+    }
+
+    // Hand off the lines before the split point
+    public Spliterator<T> trySplit() {
+	if(to - from < 2)
+	    return null;
+	long mid = v.splitPoint(from, to);
+
+	VectorSpliterator<T> rv = range(from, mid);
+	rv.pos = pos;
+	from   = mid;
+	pos    = -1;
+	return rv;
+    }
+
+    public long estimateSize() {
+	return to - from;
+    }
+
+    public int characteristics() {
+	return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+
+
+    static final class Strings extends VectorSpliterator<String> {
+	Strings(FileVector v, long from, long to) {
+	    super(v, from, to);
+	}
+
+	String element(long i, ByteRecord rec) {
+	    String s = v.decodeLine(i, rec);
+	    return (s == null) ? "" : s;
+	}
+
+	VectorSpliterator<String> range(long from, long to) {
+	    return new Strings(v, from, to);
+	}
+    }
+
+    static final class Bytes extends VectorSpliterator<ByteRecord> {
+	Bytes(FileVector v, long from, long to) {
+	    super(v, from, to);
+	}
+
+	ByteRecord element(long i, ByteRecord rec) {
+	    return rec;
+	}
+
+	VectorSpliterator<ByteRecord> range(long from, long to) {
+	    return new Bytes(v, from, to);
+	}
+    }
+}
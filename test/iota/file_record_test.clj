@@ -55,4 +55,24 @@
 
     (is (= rows (->> (io/rec-seq path) (r/map (fn [_] 1)) (r/fold +))))
 
-    (println "Num of chunks" (count (io/chunk-seq path 1024)))))
\ No newline at end of file
+    (println "Num of chunks" (count (io/chunk-seq path 1024)))))
+
+(deftest record-bytes
+  (is (= (clojure.core/vec (io/rec-seq tfile 10 sep))
+         (io/reduce-bytes (fn [acc rec] (conj acc (str rec))) [] (io/rec-seq tfile 10 sep))))
+
+  (is (= (count (io/rec-seq tfile 10 sep))
+         (io/fold-bytes + (fn [n _] (inc n)) (io/rec-seq tfile 10 sep)))))
+
+(deftest partial-separator-match
+  ;; "aab" only matches after backing up from the partial match "aa" in "aaab"
+  (let [file (File/createTempFile "test-rec" ".txt")
+        path (.getAbsolutePath file)]
+    (try
+      (spit file "xaaab1aab2aaaab3")
+      (is (= ["xaaab" "1aab" "2aaaab" "3"] (clojure.core/vec (io/rec-seq path 4 (map int "aab")))))
+      (is (= ["xaaab" "1aab" "2aaaab" "3"]
+             (io/reduce-bytes (fn [acc rec] (conj acc (str rec))) [] (io/rec-seq path 4 (map int "aab")))))
+      (is (= 4 (->> (io/rec-seq path 4 (map int "aab")) (r/map (fn [_] 1)) (r/fold +))))
+      (finally
+        (.delete file)))))
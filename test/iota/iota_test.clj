@@ -268,3 +268,823 @@
            filter map reduce
            r/filter r/map r/reduce
            r/filter r/map r/fold))))
+
+(deftest test-parallel-index
+  ;; Large enough to be split across several ranges when indexed
+  (let [f (java.io.File/createTempFile "iota-index" ".txt")
+        lines (mapv #(apply str % "\t" (repeat (mod % 97) "x")) (range 200000))]
+    (try
+      (spit f (str (str/join "\n" lines) "\n"))
+      (doseq [chunk-size [1 7 10 1000]]
+        (let [v (io/vec (.getAbsolutePath f) chunk-size 10)]
+          (is (= (count lines) (count v)))
+          (is (= lines (clojure.core/vec v)))))
+      (finally
+        (.delete f)))))
+
+(deftest test-index-file
+  (let [f   (java.io.File/createTempFile "iota-sidecar" ".txt")
+        idx (java.io.File. (str (.getAbsolutePath f) ".idx"))
+        path (.getAbsolutePath f)]
+    (try
+      (spit f "a\nb\nc\n")
+      (let [v (io/vec path 2 10 (.getPath idx))]
+        (is (.exists idx))
+        (is (= ["a" "b" "c"] (clojure.core/vec v))))
+      ;; Reused on the next open
+      (let [v (io/vec path 2 10 (.getPath idx))]
+        (is (= ["a" "b" "c"] (clojure.core/vec v))))
+      ;; Rebuilt once the file changes
+      (spit f "a\nb\nc\nd\ne")
+      (.setLastModified f (+ 2000 (.lastModified f)))
+      (let [v (io/vec path 2 10 (.getPath idx))]
+        (is (= ["a" "b" "c" "d" "e"] (clojure.core/vec v))))
+      ;; Ignored when the chunk size differs
+      (let [v (io/vec path 3 10 (.getPath idx))]
+        (is (= 3 (.chunkSize ^iota.FileVector v)))
+        (is (= ["a" "b" "c" "d" "e"] (clojure.core/vec v))))
+      (finally
+        (.delete idx)
+        (.delete f)))))
+
+(deftest test-reduce-bytes
+  (let [lines    (map serialize-rec test-data)
+        expected (reduce + (map count lines))
+        total    (fn [acc ^iota.ByteRecord rec] (+ acc (.length rec)))]
+    (is (= expected (io/reduce-bytes total 0 test-vec)))
+    (is (= expected (io/reduce-bytes total 0 test-seq)))
+    (is (= expected (io/fold-bytes 100 + total test-vec)))
+    (is (= expected (io/fold-bytes + total test-seq)))
+    (is (= (count test-data) (io/reduce-bytes (fn [n _] (inc n)) 0 test-vec)))
+    (is (= (count test-data) (io/reduce-bytes (fn [n _] (inc n)) 0 test-seq)))
+    (is (= (map str lines)
+           (io/reduce-bytes (fn [acc rec] (conj acc (str rec))) [] test-seq)))
+    (is (= "0\t1\t2\t3\t4\t5\t6\t7\t8\t9\t10\t11\t12"
+           (io/reduce-bytes (fn [_ rec] (reduced (str rec))) nil test-vec)))
+    (dotimes [n 100]
+      (let [[clj-vec io-vec] (get-rand-subvecs test-data test-vec)]
+        (is (= (map serialize-rec clj-vec)
+               (io/reduce-bytes (fn [acc rec] (conj acc (str rec))) [] io-vec)))))))
+
+(deftest test-scanner
+  (let [bytes (.getBytes "a|bc||defghijklmnop|qrstuvwxyz0123456789|")]
+    (is (= ["a" "bc" "" "defghijklmnop" "qrstuvwxyz0123456789" ""]
+           (seq (iota.Scanner/split bytes 0 (count bytes) (byte (int \|)) iota.Charsets/UTF8))))
+    (is (= 19 (iota.Scanner/indexOf bytes 6 (count bytes) (byte (int \|)))))
+    (is (= -1 (iota.Scanner/indexOf bytes 6 19 (byte (int \|)))))
+    (is (= 4 (iota.Scanner/count (java.nio.ByteBuffer/wrap bytes) 4 (count bytes) (byte (int \|)))))
+    (is (= 20 (iota.Scanner/indexOf bytes 0 (count bytes) (.getBytes "qrs"))))))
+
+(deftest test-chunk-cache
+  (let [f    (java.io.File/createTempFile "iota-cache" ".txt")
+        path (.getAbsolutePath f)]
+    (try
+      (spit f (str/join "\n" (range 1000)))
+      (let [v (io/vec path {:chunk-size 10 :cache-size 4})]
+        ;; Bounces between two hot regions without evicting either
+        (dotimes [_ 10]
+          (is (= "5" (nth v 5)))
+          (is (= "905" (nth v 905))))
+        (is (= {:hits 18 :misses 2 :evictions 0 :capacity 4} (io/cache-stats v)))
+        ;; Subvecs share the parent's cache
+        (is (= "905" (nth (io/subvec v 900) 5)))
+        (is (= 19 (:hits (io/cache-stats v))))
+        ;; And parallel readers see the right lines
+        (is (= (map str (range 1000))
+               (pmap #(nth v %) (range 1000))))
+        (is (pos? (:evictions (io/cache-stats v)))))
+      (finally
+        (.delete f)))))
+
+(deftest test-reduce
+  ;; A single pass reduce sees exactly what walking the seq does
+  (is (= (seq test-seq) (reduce conj [] test-seq)))
+  (is (= (seq test-rseq) (reduce conj [] test-rseq)))
+  (is (= (seq test-vec) (reduce conj [] test-vec)))
+  (is (= (seq test-nvec) (reduce conj [] test-nvec)))
+  (is (= (seq test-nvec) (into [] test-nvec)))
+  (dotimes [n 100]
+    (let [[_ io-vec] (get-rand-subvecs test-data test-nvec)]
+      (is (= (seq io-vec) (seq (reduce conj [] io-vec))))))
+  (is (= (first test-seq) (reduce (fn [_ line] (reduced line)) nil test-seq)))
+  (is (= (count test-data) (reduce (fn [n _] (inc n)) 0 test-seq)))
+  (is (= (serialize-rec (first test-data)) (reduce (fn [a _] a) test-vec)))
+  (is (= 0 (reduce + (io/subvec test-vec 0 0))))
+  (let [f (java.io.File/createTempFile "iota-reduce" ".txt")]
+    (try
+      (spit f "a\n\nb\n\n")
+      (let [s (io/seq (.getAbsolutePath f))]
+        (is (= (seq s) (reduce conj [] s)))
+        (is (= (apply str s) (reduce str s))))
+      (finally
+        (.delete f)))))
+
+(deftest test-fold-leaves
+  ;; Leaves stream their lines, but still see exactly what toArray would
+  (let [f (java.io.File/createTempFile "iota-fold" ".txt")]
+    (try
+      (spit f (str/join "\n" (map #(if (zero? (mod % 3)) "" (str %)) (range 2000))))
+      (doseq [bufsize [16 100 4096]]
+        (let [s (io/seq (.getAbsolutePath f) bufsize)]
+          (is (= (seq (.toArray ^iota.FileSeq s))
+                 (r/fold (r/monoid into vector) conj s)))))
+      (finally
+        (.delete f)))))
+
+(deftest test-charsets
+  (let [f    (java.io.File/createTempFile "iota-charset" ".txt")
+        path (.getAbsolutePath f)
+        text "plain\ncafé\n日本\n\ndone"]
+    (try
+      ;; UTF-8, mixing pure ASCII lines with multibyte ones
+      (spit f text :encoding "UTF-8")
+      (let [expected ["plain" "café" "日本" nil "done"]]
+        (is (= expected (clojure.core/vec (io/vec path))))
+        (is (= expected (clojure.core/vec (io/seq path))))
+        (is (= expected (r/fold (r/monoid into vector) conj (io/seq path {:buffer-size 8}))))
+        (is (= expected (clojure.core/vec (io/vec path {:charset "UTF-8"})))))
+      ;; ISO-8859-1 takes the single byte path
+      (spit f "café\nnaïve" :encoding "ISO-8859-1")
+      (let [expected ["café" "naïve"]]
+        (is (= expected (clojure.core/vec (io/vec path {:charset "ISO-8859-1"}))))
+        (is (= expected (clojure.core/vec (io/seq path {:charset java.nio.charset.StandardCharsets/ISO_8859_1}))))
+        (is (= expected (reduce conj [] (io/seq path 1024 10 :ISO-8859-1))))
+        (is (= ["café\n" "naïve"] (clojure.core/vec (io/rec-seq path {:charset "ISO-8859-1"}))))
+        (is (= ["0\tcafé" "1\tnaïve"] (clojure.core/vec (io/numbered-vec path 10 "\t" "ISO-8859-1"))))
+        (is (= expected (io/reduce-bytes (fn [acc ^iota.ByteRecord rec]
+                                           (conj acc (.toString rec iota.Charsets/LATIN1)))
+                                         [] (io/vec path))))
+        ;; Bytes US-ASCII can't decode become U+FFFD, as with String
+        (let [ascii (String. (.getBytes "café\nnaïve" "ISO-8859-1") "US-ASCII")]
+          (is (= (clojure.string/split-lines ascii) (clojure.core/vec (io/vec path {:charset "US-ASCII"}))))
+          (is (= (clojure.string/split-lines ascii) (reduce conj [] (io/seq path {:charset "US-ASCII"}))))))
+      (finally
+        (.delete f)))))
+
+(deftest test-fields
+  (let [f (java.io.File/createTempFile "iota" ".tsv")
+        path (.getPath f)]
+    (try
+      (spit f "a\tb\tc\n\nd\te\n1\t\t3\t4\n")
+      (let [expected [["c" "a"] nil [nil "d"] ["3" "1"]]
+            v (io/vec path {:chunk-size 2})
+            fv (io/fields v \tab [2 0])]
+        (is (= 4 (count fv)))
+        (is (= expected (clojure.core/seq fv)))
+        (is (= ["3" "1"] (nth fv 3)))
+        (is (= :none (nth fv 4 :none)))
+        (is (= [["e"]] (clojure.core/seq (io/fields (io/subvec v 2 3) 9 [1]))))
+        (is (= expected (reduce conj [] fv)))
+        (is (= ["a" nil ["d"] ["1"]] (reduce conj (io/fields v \tab [0]))))
+        (is (= expected (r/fold 1 (r/monoid into vector) conj fv)))
+        (is (= ["b" "e" ""] (into [] (r/filter identity (r/map first (io/fields v \tab [1])))))))
+      (let [s (io/seq path {:buffer-size 4})
+            expected [["a" "b"] nil ["d" "e"] ["1" ""]]]
+        (is (= expected (reduce conj [] (io/fields s \tab [0 1]))))
+        (is (= ["a" nil ["d"] ["1"]] (reduce conj (io/fields s \tab [0]))))
+        (is (= expected (r/fold (r/monoid into vector) conj (io/fields s \tab [0 1])))))
+      (finally
+        (.delete f)))))
+
+(deftest test-where
+  (let [f (java.io.File/createTempFile "iota" ".log")
+        path (.getPath f)
+        lines (map #(cond (zero? (mod % 7)) (str "ERROR " % " failed")
+                          (zero? (mod % 5)) (str "WARN " % " slow, ERROR later")
+                          (zero? (mod % 11)) ""
+                          :else (str "INFO " % " ok")) (range 5000))
+        matching (fn [p] (filter p lines))
+        all (fn [coll m] (r/fold (r/monoid into vector) conj (io/where coll m)))]
+    (try
+      (spit f (str (clojure.string/join "\n" lines) "\n"))
+      (doseq [coll [(io/vec path {:chunk-size 3}) (io/seq path {:buffer-size 64})]]
+        (is (= (matching #(.startsWith ^String % "ERROR")) (all coll {:prefix "ERROR"})))
+        (is (= (matching #(.contains ^String % "ERROR")) (all coll {:contains "ERROR"})))
+        (is (= (matching #(.contains ^String % "ERROR")) (reduce conj [] (io/where coll {:contains "ERROR"}))))
+        (is (= (matching #(and (.startsWith ^String % "WARN") (.contains ^String % ", "))) (all coll {:prefix "WARN" :contains ", "})))
+        (is (= (matching #(.contains ^String % ",")) (all coll {:any-of ","})))
+        (is (= (matching #(re-find #"[,d]" %)) (all coll {:any-of [44 100]})))
+        (is (= [] (all coll {:contains "FATAL"})))
+        ;; Without an init, reduce starts from the first match, or (f) if there's none
+        (is (= (clojure.string/join "|" (matching #(.startsWith ^String % "ERROR")))
+               (reduce #(str %1 "|" %2) (io/where coll {:prefix "ERROR"}))))
+        (is (= 0 (reduce + (io/where coll {:contains "FATAL"}))))
+        ;; Empty lines only match an empty prefix, and are nil as elsewhere
+        (is (= (replace {"" nil} lines) (all coll {:prefix ""}))))
+      (finally
+        (.delete f)))))
+
+(deftest test-match-vec
+  (let [f (java.io.File/createTempFile "iota" ".log")
+        idx-file (java.io.File/createTempFile "iota" ".idx")
+        path (.getPath f)
+        lines (map #(cond (zero? (mod % 7)) (str "ERROR " % " failed")
+                          (zero? (mod % 11)) ""
+                          :else (str "INFO " % " ok")) (range 100000))
+        errors (clojure.core/vec (filter #(.startsWith ^String % "ERROR") lines))]
+    (try
+      (spit f (str (clojure.string/join "\n" lines) "\n"))
+      (.delete idx-file)
+      (doseq [coll [(io/vec path {:chunk-size 7}) (io/seq path)]
+              opts [{} {:index-file (.getPath idx-file)} {:index-file (.getPath idx-file)}]]
+        (let [v (io/match-vec coll {:prefix "ERROR"} opts)]
+          (is (= (count errors) (count v)))
+          (is (= (first errors) (nth v 0)))
+          (is (= (peek errors) (nth v (dec (count v)))))
+          (is (= (nth errors 1234) (nth v 1234)))
+          (is (= errors (reduce conj [] v)))
+          (is (= errors (r/fold 100 (r/monoid into vector) conj v)))
+          (is (= (subvec errors 100 200) (clojure.core/seq (io/subvec v 100 200))))
+          (is (= (subvec errors 100 200) (into [] (io/subvec v 100 200))))
+          (is (= [["failed"]] (clojure.core/seq (io/fields (io/subvec v 5 6) \space [2]))))
+          (is (= (filter #(.endsWith ^String % "7 failed") errors)
+                 (r/fold (r/monoid into vector) conj (io/where v {:contains "7 failed"}))))))
+      ;; Predicates on the decoded line, and narrowing a match-vec further
+      (let [v (io/match-vec (io/vec path) #(and % (.endsWith ^String % "ok")))
+            narrowed (io/match-vec v {:contains "99"})]
+        (is (= (filter #(.startsWith ^String % "INFO") lines) (clojure.core/seq v)))
+        (is (= (filter #(.contains ^String % "99") v) (clojure.core/seq narrowed))))
+      (is (= (count (filter empty? lines)) (count (io/match-vec (io/vec path) nil?))))
+      (is (= 0 (count (io/match-vec (io/vec path) {:contains "FATAL"}))))
+      ;; A stale index file is rebuilt
+      (spit f "ERROR new\n")
+      (is (= ["ERROR new"] (clojure.core/seq (io/match-vec (io/vec path) {:prefix "ERROR"} {:index-file (.getPath idx-file)}))))
+      ;; Nor is one of part of the file reused for all of it
+      (spit f "ERROR a\nINFO b\nERROR c\n")
+      (let [v (io/vec path)
+            mv #(clojure.core/seq (io/match-vec % {:prefix "ERROR"} {:index-file (.getPath idx-file)}))]
+        (is (= ["ERROR c"] (mv (io/subvec v 1))))
+        (is (= ["ERROR a" "ERROR c"] (mv v)))
+        (is (= ["ERROR a" "ERROR c"] (mv (io/seq path))))
+        ;; Closing a match-vec leaves the file it's over open
+        (with-open [m (io/match-vec v {:prefix "INFO"})]
+          (is (= ["INFO b"] (clojure.core/seq m))))
+        (is (= "ERROR c" (nth v 2))))
+      (finally
+        (.delete f)
+        (.delete idx-file)))))
+
+(deftest test-refresh
+  (let [f (java.io.File/createTempFile "iota" ".log")
+        path (.getPath f)
+        append (fn [^String s] (spit f s :append true))
+        lines (fn [n m] (apply str (map #(str "line " % "\n") (range n m))))]
+    (try
+      (append (str (lines 0 23) "partial"))
+      (let [v (io/vec path {:chunk-size 5})
+            _ (is (= 24 (count v)))
+            _ (is (identical? v (io/refresh v)))
+            _ (append (str " done\n" (lines 23 61)))
+            v2 (io/refresh v)
+            fresh (io/vec path {:chunk-size 5})]
+        (is (= 24 (count v)))
+        (is (= "partial" (last v)))
+        (is (= 62 (count v2)))
+        (is (= "partial done" (nth v2 23)))
+        (is (= "line 60" (last v2)))
+        (is (= (clojure.core/seq (.toArray (.chunkIndex fresh))) (clojure.core/seq (.toArray (.chunkIndex v2)))))
+        (is (= (clojure.core/vec fresh) (clojure.core/vec v2)))
+        (is (= 62 (count (r/foldcat v2))))
+        (is (= "1\tline 1" (nth (io/refresh (io/numbered-vec path)) 1)))
+        (is (thrown? UnsupportedOperationException (io/refresh (io/subvec v2 1)))))
+      (let [e (java.io.File/createTempFile "iota" ".log")]
+        (try
+          (let [v (io/vec (.getPath e))]
+            (is (= 0 (count v)))
+            (spit e "a\nb")
+            (is (= ["a" "b"] (clojure.core/vec (io/refresh v)))))
+          (finally
+            (.delete e))))
+      (finally
+        (.delete f)))))
+
+(deftest test-line-index
+  ;; Blocks of every width, partial blocks, and appends on and off block boundaries
+  (let [rnd (java.util.Random. 42)
+        entries (fn [n gap] (long-array (take n (reductions + (repeatedly n #(long (.nextInt rnd (int gap))))))))]
+    (doseq [[n gap] [[0 1] [1 1] [63 1] [64 1000] [65 7] [1000 1] [5000 100000] [300 Integer/MAX_VALUE]]
+            off-heap [false true]]
+      (let [a (entries n gap)
+            idx (iota.LineIndex/of a off-heap)]
+        (is (= n (.size idx)))
+        (is (= (clojure.core/seq a) (clojure.core/seq (.toArray idx))))
+        (doseq [k [0 17 64 100]]
+          (let [b (iota.LineIndex$Builder. off-heap)]
+            (doseq [x (take k a)] (.add b x))
+            (.append b idx n)
+            (is (= (clojure.core/seq (concat (take k a) a)) (clojure.core/seq (.toArray (.build b))))))))))
+  ;; Appending most of an index over several pages into a fresh builder, as refresh does
+  (let [rnd (java.util.Random. 7)
+        a (long-array (reductions + (repeatedly 1500000 #(bit-and (.nextLong rnd) 0xFFFFFFFFFF))))
+        n (alength a)]
+    (doseq [off-heap [false true]]
+      (let [idx (iota.LineIndex/of a off-heap)]
+        (doseq [keep [(- n 1) (- n 64) 1048576]]
+          (let [b (iota.LineIndex$Builder. off-heap)]
+            (.append b idx keep)
+            (doseq [k (range keep n)] (.add b (aget a k)))
+            (is (java.util.Arrays/equals a (.toArray (.build b))))))
+        (is (java.util.Arrays/equals a (.toArray idx))))))
+  (is (= [Long/MAX_VALUE] (clojure.core/seq (.toArray (iota.LineIndex/of (long-array [Long/MAX_VALUE]) false)))))
+  (is (= [0 Long/MAX_VALUE] (clojure.core/seq (.toArray (iota.LineIndex/of (long-array [0 Long/MAX_VALUE]) false)))))
+  ;; A file big enough to be indexed in parallel ranges
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        idx-file (java.io.File/createTempFile "iota" ".idx")
+        path (.getPath f)
+        n 400000
+        line #(apply str "line " % (repeat (mod (* % 31) 47) "x"))]
+    (try
+      (with-open [w (clojure.java.io/writer f)]
+        (dotimes [i n] (.write w (str (line i) "\n"))))
+      (.delete idx-file)
+      (let [starts (long-array (reductions + 0 (map #(inc (count (line %))) (range n))))]
+        (doseq [chunk-size [1 3 10]
+                opts [{} {:off-heap true} {:index-file (.getPath idx-file)} {:index-file (.getPath idx-file) :off-heap true}]]
+          (let [v (io/vec path (assoc opts :chunk-size chunk-size))
+                expected (concat (take-nth chunk-size starts) [(.length f)])
+                stats (io/index-stats v)]
+            (is (= n (count v) (.longCount v)))
+            (is (= expected (clojure.core/seq (.toArray (.chunkIndex v)))))
+            (is (= (line 0) (nth v 0)))
+            (is (= (line 123457) (nth v 123457)))
+            (is (= (line (dec n)) (last v)))
+            (is (= (boolean (:off-heap opts)) (:off-heap stats)))
+            (is (< (:bytes-per-line stats) (/ 4.0 chunk-size))))
+          (.delete idx-file)))
+      (finally
+        (.delete f)
+        (.delete idx-file)))))
+
+(deftest test-close
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)]
+    (try
+      (spit f "a\nb\nc\n")
+      (let [v (with-open [v (io/vec path)]
+                (is (= ["a" "b" "c"] (clojure.core/vec v)))
+                v)]
+        (is (.isClosed ^iota.Mmap (.map v)))
+        (is (thrown? IllegalStateException (.reduceBytes v conj [])))
+        (is (thrown? IllegalStateException (nth (io/subvec v 1) 1)))
+        (io/close v))
+      (let [s (io/seq path)
+            r (io/rec-seq path)]
+        (is (= 3 (count (r/foldcat s))))
+        (io/close s)
+        (io/close r)
+        (is (thrown? IllegalStateException (first (rest s))))
+        (is (thrown? IllegalStateException (first r))))
+      ;; Cleanables close their resource once, however they're cleaned
+      (let [n (atom 0)
+            c (iota.Cleaner/register (Object.) (reify java.io.Closeable (close [_] (swap! n inc))))]
+        (.clean c)
+        (.clean c)
+        (is (= 1 @n)))
+      (finally
+        (.delete f)))))
+
+(deftest test-prefetch
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)
+        text (apply str (map #(str "line " % "\n") (range 20000)))
+        total (reduce + (map count (clojure.string/split-lines text)))
+        before (:requested (io/prefetch-stats))]
+    (try
+      (spit f text)
+      (binding [io/*prefetch* true]
+        (is (= total (r/fold + (r/map count (io/seq path {:buffer-size 4096})))))
+        (is (= total (r/fold 512 + + (r/map count (io/vec path)))))
+        ;; Records keep their separators
+        (is (= (+ total 20000) (r/fold + (r/map count (io/rec-seq path {:buffer-size 4096}))))))
+      (is (> (:requested (io/prefetch-stats)) before))
+      (is (= [0 0] (clojure.core/vec (.byteSpan (io/subvec (io/vec path) 0 0)))))
+      (let [v (io/vec path)
+            [from to] (clojure.core/vec (.byteSpan (io/subvec v 25 35)))]
+        (is (= (.position (.getRecord v 20)) from))
+        (is (= (.position (.getRecord v 40)) to)))
+      (finally
+        (.delete f)))))
+
+(deftest test-split-plan
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)
+        ;; Skewed: a few long lines, then many short ones, and some empty
+        lines (concat (map #(apply str % (repeat 2000 "x")) (range 100))
+                      (map str (range 50000))
+                      ["" "" "last"])
+        text (str (clojure.string/join "\n" lines) "\n")
+        expected (map #(if (empty? %) nil %) lines)]
+    (try
+      (spit f text)
+      (let [s (io/seq path {:buffer-size 4096})
+            ranges (.plan ^iota.FileSeq s)]
+        (is (< 1 (count ranges)))
+        (is (= expected (mapcat clojure.core/seq ranges)))
+        ;; Ranges hold about the same number of bytes
+        (let [sizes (map #(- (.end ^iota.FileSeq %) (.start ^iota.FileSeq %)) ranges)]
+          (is (< (apply max sizes) (* 2 (/ (count text) (count ranges))))))
+        (is (= (count expected) (r/fold + (r/map (constantly 1) s))))
+        (is (= (remove nil? expected) (r/fold (r/monoid into vector) conj (r/remove nil? s)))))
+      (let [rs (io/rec-seq path {:buffer-size 4096})
+            ranges (.plan ^iota.FileRecordSeq rs)]
+        (is (< 1 (count ranges)))
+        (is (= (map #(str % "\n") lines) (mapcat clojure.core/seq ranges)))
+        (is (= (count text) (r/fold + (r/map count rs)))))
+      ;; vecs split halfway through their bytes, on a chunk boundary
+      (let [v (io/vec path {:chunk-size 10})
+            m (.splitPoint ^iota.FileVector v)
+            [from to] (clojure.core/vec (.byteSpan ^iota.FileVector v))
+            [_ mid] (clojure.core/vec (.byteSpan ^iota.FileVector (io/subvec v 0 m)))]
+        (is (zero? (mod m 10)))
+        (is (< m (quot (count v) 4)))
+        (is (< (Math/abs (long (- mid (quot (+ from to) 2)))) 100))
+        (is (= (count expected) (r/fold 64 + + (r/map (constantly 1) v))))
+        (is (= (remove nil? expected) (r/fold 64 (r/monoid into vector) conj (r/remove nil? v))))
+        ;; and split by longCount, so folds don't need count to fit in an int
+        (let [n (.longCount ^iota.FileVector v)
+              sv (.subvec ^iota.FileVector v (long 100) n)]
+          (is (= m (.splitPoint ^iota.FileVector v 0 n)))
+          (is (= (- n 100) (.longCount sv)))
+          (is (= (drop 100 expected) (clojure.core/seq sv)))
+          (is (= (- n 100) (r/fold 64 + + (r/map (constantly 1) sv))))
+          ;; Lines are reached by long positions throughout
+          (is (= (nth expected 150) (.nth ^iota.FileVector v (long 150)) (.nth ^iota.FileVector sv (long 50))))
+          (is (= (nth lines 150) (str (.getRecord ^iota.FileVector sv (long 50)))))
+          (is (= (drop 100 expected) (iterator-seq (.iterator ^java.util.List sv))))
+          (is (= (- n 100) (.size ^java.util.List sv)))))
+      ;; Cuts near one of Mmap's 2GB buffer boundaries move onto it
+      (is (= 2000000000 (iota.SplitPlanner/midpoint 1500000000 2600000000)))
+      (is (= 50 (iota.SplitPlanner/midpoint 0 100)))
+      (finally
+        (.delete f)))))
+
+(deftest test-spliterators
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)
+        lines (concat (map #(str "line " % (apply str (repeat (mod % 97) "x"))) (range 30000))
+                      ["" "" "é" "last"])
+        text (str (clojure.string/join "\n" lines) "\n")
+        to-list (java.util.stream.Collectors/toList)
+        byte-count (reify java.util.function.ToLongFunction
+                     (applyAsLong [_ rec] (.length ^iota.ByteRecord rec)))]
+    (try
+      (spit f text)
+      (doseq [coll [(io/seq path {:buffer-size 4096}) (io/vec path) (io/vec path {:chunk-size 1})]]
+        (is (= lines (.collect (.stream ^java.util.Collection coll) to-list)))
+        (is (= lines (.collect (.parallelStream ^java.util.Collection coll) to-list)))
+        (is (= (- (count (.getBytes text "UTF-8")) (count lines))
+               (-> (java.util.stream.StreamSupport/stream (.byteSpliterator coll) true)
+                   (.mapToLong byte-count)
+                   (.sum)))))
+      ;; Vecs know their size however they're split
+      (let [v (io/subvec (io/vec path) 100 20100)
+            ^java.util.Spliterator s (.spliterator ^java.util.Collection v)
+            ^java.util.Spliterator p (.trySplit s)]
+        (is (.hasCharacteristics s java.util.Spliterator/SUBSIZED))
+        (is (= 20000 (+ (.estimateSize s) (.estimateSize p))))
+        (is (= (take 20000 (drop 100 lines))
+               (concat (.collect (java.util.stream.StreamSupport/stream p false) to-list)
+                       (.collect (java.util.stream.StreamSupport/stream s false) to-list))))
+        (is (= (take 20000 (drop 100 lines)) (.collect (.parallelStream v) to-list))))
+      ;; Records keep their separators
+      (let [rs (io/rec-seq path {:buffer-size 4096})]
+        (is (= (map #(str % "\n") lines) (.collect (.parallelStream ^java.util.Collection rs) to-list))))
+      (finally
+        (.delete f)))))
+
+(deftest test-pread
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        g (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)
+        ;; Enough lines to span many 64KB windows, one longer than a window, and some empty
+        lines (concat (map #(str "line " % (apply str (repeat (mod % 37) "é"))) (range 20000))
+                      [(apply str (repeat 70000 "y")) "" "" "last"])
+        text (str (clojure.string/join "\n" lines) "\n")
+        expected (map #(if (empty? %) nil %) lines)]
+    (try
+      (spit f text)
+      (spit g "more\n")
+      (with-open [v (io/vec path {:io :pread})]
+        (is (instance? iota.PreadFile (.map ^iota.FileVector v)))
+        (is (= (count expected) (count v)))
+        (is (= expected (clojure.core/seq v)))
+        (is (= (nth expected 12345) (v 12345)))
+        (is (= (count text) (r/fold + (r/map #(inc (count %)) v))))
+        (is (= (count (.getBytes text "UTF-8"))
+               (io/reduce-bytes #(+ %1 1 (.length ^iota.ByteRecord %2)) 0 v))))
+      (with-open [s (io/seq path {:io :pread :buffer-size 4096})]
+        (is (= expected (clojure.core/seq s)))
+        (is (= (count expected) (r/fold + (r/map (constantly 1) s))))
+        (is (= (count (filter #(.contains ^String % "9é") lines))
+               (r/fold + (r/map (constantly 1) (io/where s {:contains "9é"}))))))
+      ;; Multibyte separators straddling windows
+      (with-open [rs (io/rec-seq path {:io :pread :separator [(int \e) 10] :buffer-size 4096})
+                  ms (io/rec-seq path {:separator [(int \e) 10] :buffer-size 4096})]
+        (is (= (clojure.core/seq ms) (clojure.core/seq rs)))
+        (is (= (r/fold + (r/map count ms)) (r/fold + (r/map count rs)))))
+      ;; Several files, and refreshing after an append
+      (let [v (io/vec [path (.getPath g)] {:io :pread})]
+        (is (= (concat expected ["more"]) (clojure.core/seq v))))
+      (let [v (io/vec path {:io :pread})]
+        (spit f "appended\n" :append true)
+        (is (= (concat expected ["appended"]) (clojure.core/seq (io/refresh v)))))
+      ;; Closed files fail rather than reading stale windows
+      (let [s (io/seq path {:io :pread})]
+        (io/close s)
+        (is (thrown? IllegalStateException (first s))))
+      (is (thrown? IllegalArgumentException (io/seq path {:io :fread})))
+      (finally
+        (.delete f)
+        (.delete g)))))
+
+(deftest test-metrics
+  (let [f (java.io.File/createTempFile "iota" ".txt")
+        path (.getPath f)
+        text (apply str (map #(str "line " % "\n") (range 20000)))
+        total (reduce + (map count (clojure.string/split-lines text)))
+        events (atom [])
+        l (io/add-metrics-listener #(swap! events conj (:type %)))]
+    (try
+      (spit f text)
+      ;; Nothing is counted while disabled
+      (io/reset-metrics!)
+      (is (= total (r/fold + (r/map count (io/vec path)))))
+      (is (zero? (:leaves (io/metrics))))
+      (is (empty? @events))
+
+      (io/set-metrics! true)
+      (let [v (io/vec path)]
+        (is (= 1 (:index-builds (io/metrics))))
+        (is (= (.length f) (:index-bytes (io/metrics))))
+        (is (= total (r/fold 512 + + (r/map count v))))
+        (let [m (io/metrics)]
+          (is (:enabled m))
+          (is (<= 40 (:leaves m)))
+          (is (= (:leaves m) (reduce + (:leaf-bytes m)) (reduce + (:leaf-nanos m))))
+          (is (= 20000 (:records-decoded m))))
+        ;; Lookups decode chunks through the cache
+        (is (= ["line 0" "line 0"] [(v 0) (v 0)]))
+        (let [m (io/metrics)]
+          (is (pos? (:decode-nanos m)))
+          (is (= [1 1] [(:cache-misses m) (:cache-hits m)]))))
+      (io/reset-metrics!)
+      (is (= total (reduce + (map count (io/seq path)))))
+      (is (= (* 20000 5) (io/reduce-bytes #(if (.startsWith ^iota.ByteRecord %2 (.getBytes "line ")) (+ %1 5) %1) 0 (io/seq path))))
+      (is (= 20000 (:records-read (io/metrics))))
+      (is (= (dec (.length f)) (:bytes-read (io/metrics))))
+      (is (= #{:chunk :index :leaf} (disj (set @events) :lock)))
+      (is (.isRegistered (java.lang.management.ManagementFactory/getPlatformMBeanServer)
+                         (javax.management.ObjectName. "iota:type=Metrics")))
+      (finally
+        (io/set-metrics! false)
+        (io/reset-metrics!)
+        (io/remove-metrics-listener l)
+        (.delete f)))))
+
+(deftest test-multiple-files
+  (let [dir (doto (java.io.File/createTempFile "iota" "") (.delete) (.mkdir))
+        file (fn [name text] (doto (java.io.File. dir ^String name) (spit text)))
+        lines (fn [p n] (clojure.core/vec (for [i (range n)] (str p "\t" i))))
+        a (lines "a" 3)
+        b (lines "b" 2000)
+        c (lines "c" 7)
+        all (concat a b c)
+        fs [(file "1.txt" (str (clojure.string/join "\n" a) "\n"))
+            (file "2.txt" "")
+            (file "3.txt" (clojure.string/join "\n" b))
+            (file "4.txt" (clojure.string/join "\n" c))
+            (file ".hidden" "x\n")]]
+    (try
+      (let [v (io/vec (.getPath dir) {:chunk-size 7})]
+        (is (instance? iota.MultiFileVector v))
+        (is (= (count all) (count v)))
+        (is (= all (clojure.core/seq v)))
+        (is (= "a\t2" (nth v 2)))
+        (is (= "b\t0" (nth v 3)))
+        (is (= "c\t6" (nth v 2009)))
+        (is (thrown? IndexOutOfBoundsException (nth v 2010)))
+        (is (= all (reduce conj [] v)))
+        (is (= all (r/fold 16 (r/monoid into vector) conj v)))
+        (is (= (count all) (io/reduce-bytes (fn [n _] (inc n)) 0 v)))
+        (is (= (count all) (io/fold-bytes 16 + (fn [n _] (inc n)) v)))
+        (is (= 3 (reduce (fn [n _] (if (= n 3) (reduced n) (inc n))) 0 v)))
+        (let [sv (io/subvec v 1 2005)]
+          (is (instance? iota.MultiFileVector sv))
+          (is (= (take 2004 (drop 1 all)) (clojure.core/seq sv)))
+          (is (instance? iota.FileVector (io/subvec sv 5 10)))
+          (is (= (take 5 (drop 6 all)) (clojure.core/seq (io/subvec sv 5 10))))
+          (is (= (take 2004 (drop 1 all)) (iterator-seq (.iterator ^java.util.List sv))))
+          (is (= 2004 (.longCount ^iota.MultiFileVector sv)))
+          (is (= "b\t0" (.nth ^iota.MultiFileVector sv (long 2))))
+          (is (= (take 3 (drop 4 all)) (clojure.core/seq (.subvec ^iota.MultiFileVector sv (long 3) (long 6))))))
+        (is (= ["6"] (nth (io/fields v \tab [1]) 2009)))
+        ;; Stats are summed over the files
+        (let [parts (.parts ^iota.MultiFileVector v)]
+          (is (= (reduce + (map (comp :hits io/cache-stats) parts)) (:hits (io/cache-stats v))))
+          (is (= (reduce + (map (comp :capacity io/cache-stats) parts)) (:capacity (io/cache-stats v))))
+          (is (= (count all) (:lines (io/index-stats v))))
+          (is (= (reduce + (map (comp :entries io/index-stats) parts)) (:entries (io/index-stats v)))))
+        (io/close v))
+      ;; Files given in order, positional arities
+      (let [v (io/vec (map #(.getPath ^java.io.File %) (reverse fs)) 10 10)]
+        (is (= (concat ["x"] c b a) (clojure.core/seq v))))
+      (let [s (io/seq (.getPath dir) {:buffer-size 1024})]
+        (is (instance? iota.MultiFileSeq s))
+        (is (= all (clojure.core/seq s)))
+        (is (= all (reduce conj [] s)))
+        (is (= all (r/fold (r/monoid into vector) conj s)))
+        (is (= (count all) (io/fold-bytes + (fn [n _] (inc n)) s)))
+        (is (= [["a" "0"] ["c" "6"]]
+               ((juxt first last) (reduce conj [] (io/fields s \tab [0 1])))))
+        (io/close s))
+      (is (nil? (io/seq [(.getPath ^java.io.File (second fs))])))
+      (is (= 0 (count (io/vec [(.getPath ^java.io.File (second fs))]))))
+      ;; Refreshing refreshes every file
+      (let [v (io/vec (.getPath dir))]
+        (is (identical? v (io/refresh v)))
+        (spit (nth fs 3) "\nappended" :append true)
+        (is (= (concat all ["appended"]) (clojure.core/seq (io/refresh v))))
+        (is (thrown? UnsupportedOperationException (io/refresh (io/subvec v 1 2005)))))
+      (finally
+        (doseq [^java.io.File f fs] (.delete f))
+        (.delete dir)))))
+
+(defn- bgzf-block
+  "A BGZF block holding data"
+  [^bytes data]
+  (let [d (doto (java.util.zip.Deflater. 6 true) (.setInput data) (.finish))
+        buf (byte-array (+ 1024 (* 2 (alength data))))
+        n (.deflate d buf)
+        crc (doto (java.util.zip.CRC32.) (.update data))
+        out (java.io.ByteArrayOutputStream.)
+        le16 (fn [x] (.write out (int (bit-and x 255))) (.write out (int (bit-and (bit-shift-right x 8) 255))))]
+    (.end d)
+    (doseq [b [31 139 8 4 0 0 0 0 0 255]] (.write out (int b)))
+    (le16 6) (.write out 66) (.write out 67) (le16 2) (le16 (+ 18 n 8 -1))
+    (.write out buf 0 n)
+    (le16 (bit-and (.getValue crc) 0xFFFF)) (le16 (bit-shift-right (.getValue crc) 16))
+    (le16 (bit-and (alength data) 0xFFFF)) (le16 (bit-shift-right (alength data) 16))
+    (.toByteArray out)))
+
+(defn- gzip-member
+  "A plain gzip member holding data"
+  [^bytes data]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (with-open [gz (java.util.zip.GZIPOutputStream. out)]
+      (.write gz data))
+    (.toByteArray out)))
+
+(defn- write-blocks
+  "Write text to f compressed as members of the given sizes, repeated"
+  [^java.io.File f ^String text sizes member]
+  (let [data (.getBytes text "UTF-8")]
+    (with-open [out (java.io.FileOutputStream. f)]
+      (loop [pos 0 sizes (cycle sizes)]
+        (when (< pos (alength data))
+          (let [n (min (first sizes) (- (alength data) pos))]
+            (.write out ^bytes (member (java.util.Arrays/copyOfRange data (int pos) (int (+ pos n)))))
+            (recur (+ pos n) (rest sizes)))))
+      (.write out ^bytes (member (byte-array 0))))))
+
+(deftest test-gzip
+  (let [plain (java.io.File/createTempFile "iota" ".txt")
+        gz (java.io.File/createTempFile "iota" ".gz")
+        long-line (apply str (repeat 3000 "x"))
+        text (str (clojure.string/join "\n" (for [i (range 5000)]
+                                              (cond (zero? (mod i 97)) ""
+                                                    (= i 2500) long-line
+                                                    :else (str "line " i " " (apply str (repeat (mod i 13) "é"))))))
+                  "\n")]
+    (try
+      (spit plain text)
+      (let [expected (reduce conj [] (io/seq (.getPath plain)))]
+        (doseq [[member sizes] [[bgzf-block [700 1 2000 0 333]]
+                                [gzip-member [4096 0 10000]]
+                                [bgzf-block [65536]]]
+                :let [_ (write-blocks gz text sizes member)
+                      path (.getPath gz)]]
+          (let [s (io/gzip-seq path {:buffer-size 256})]
+            (is (= expected (reduce conj [] s)))
+            (is (= expected (clojure.core/seq s)))
+            (is (= expected (r/fold (r/monoid into vector) conj s)))
+            (is (= (count expected) (io/fold-bytes + (fn [n _] (inc n)) s)))
+            (let [before (:requested (io/prefetch-stats))]
+              (is (= expected (binding [io/*prefetch* true] (r/fold (r/monoid into vector) conj s))))
+              (is (> (:requested (io/prefetch-stats)) before)))
+            (is (nil? (first s)))
+            (is (= "line 1 é" (second s)))
+            (is (= 2 (reduce (fn [n _] (if (= n 2) (reduced n) (inc n))) 0 s)))
+            (io/close s))
+          (let [v (io/gzip-vec path {:cache-size 4})]
+            (is (= (count expected) (count v)))
+            (is (= expected (clojure.core/seq v)))
+            (is (= expected (r/fold (r/monoid into vector) conj v)))
+            (is (= expected (reduce conj [] v)))
+            (is (= long-line (nth v 2500)))
+            (is (nil? (nth v 97)))
+            (is (= (last expected) (nth v (dec (count v)))))
+            (is (= (reverse expected) (map #(nth v %) (range (dec (count v)) -1 -1))))
+            (io/close v))))
+      ;; Without a trailing newline, and an empty file
+      (write-blocks gz "a\n\nb" [1] bgzf-block)
+      (is (= ["a" nil "b"] (reduce conj [] (io/gzip-seq (.getPath gz)))))
+      (is (= ["a" nil "b"] (clojure.core/vec (io/gzip-vec (.getPath gz)))))
+      (spit gz "")
+      (is (= [] (reduce conj [] (io/gzip-seq (.getPath gz)))))
+      (is (= 0 (count (io/gzip-vec (.getPath gz)))))
+      ;; Corruption is reported rather than read
+      (spit gz "not gzip")
+      (is (thrown? java.util.zip.ZipException (io/gzip-seq (.getPath gz))))
+      ;; As is a header whose file name, comment or extra field runs off the end
+      (doseq [[flags tail] [[0x08 "name"] [0x10 "comment"] [0x18 "name\u0000comment"] [0x04 "\u0010\u0000BC"]]]
+        (with-open [o (java.io.FileOutputStream. gz)]
+          (.write o (byte-array (map unchecked-byte (concat [0x1f 0x8b 8 flags 0 0 0 0 0 3] (.getBytes ^String tail "ISO-8859-1"))))))
+        (is (thrown-with-msg? java.util.zip.ZipException #"Truncated gzip header" (io/gzip-seq (.getPath gz)))))
+      (finally
+        (.delete plain)
+        (.delete gz)))))
+
+(deftest test-sorted-vec
+  (let [f (java.io.File/createTempFile "iota" ".tsv")
+        path (.getPath f)
+        ks (sort (distinct (concat (map #(format "k%05d" %) (range 0 3000 3)) ["a" "ab" "b" "é" "z"])))
+        rows (mapcat #(if (= % "k00300") [(str % "\t1") (str % "\t2") (str % "\t3")] [(str % "\tv")]) ks)]
+    (try
+      (spit f (str (clojure.string/join "\n" rows) "\n"))
+      (doseq [chunk-size [1 4 10 1000]]
+        (let [v (io/sorted-vec path {:chunk-size chunk-size})
+              in-range (fn [from to] (filter #(let [k (first (clojure.string/split % #"\t"))]
+                                                (and (or (nil? from) (>= (compare k from) 0))
+                                                     (or (nil? to) (neg? (compare k to)))))
+                                             rows))]
+          (is (= "a\tv" (io/lookup v "a")))
+          (is (= "ab\tv" (io/lookup v "ab")))
+          (is (= "é\tv" (io/lookup v "é")))
+          (is (= "k00300\t1" (io/lookup v "k00300")))
+          (is (= "k02997\tv" (io/lookup v "k02997")))
+          (is (nil? (io/lookup v "k00001")))
+          (is (nil? (io/lookup v "k0")))
+          (is (nil? (io/lookup v "zz")))
+          (is (nil? (io/lookup v "")))
+          (is (= ["k00300\t1" "k00300\t2" "k00300\t3"] (clojure.core/seq (io/key-subvec v "k00300"))))
+          (is (empty? (io/key-subvec v "k00301")))
+          (is (= (in-range "k00100" "k00200") (clojure.core/seq (io/key-subvec v "k00100" "k00200"))))
+          (is (= (in-range "k02990" nil) (clojure.core/seq (io/key-subvec v "k02990" nil))))
+          (is (= (in-range nil "b") (clojure.core/seq (io/key-subvec v nil "b"))))
+          (is (empty? (io/key-subvec v "k2" "k1")))
+          (is (= (count (in-range "k00000" "k01000"))
+                 (r/fold + (r/map (constantly 1) (io/key-subvec v "k00000" "k01000")))))))
+      (finally
+        (.delete f)))))
+
+(deftest test-hash-index
+  (let [f (java.io.File/createTempFile "iota" ".tsv")
+        idx-file (java.io.File/createTempFile "iota" ".hidx")
+        path (.getPath f)
+        rows (concat (map #(str % "\tk" (mod (* % 7) 1000) "\tv") (range 70000))
+                     ["" "short" "x\té\ty" "y\t\tempty-key"])]
+    (try
+      (spit f (str (clojure.string/join "\n" rows) "\n"))
+      (.delete idx-file)
+      (doseq [coll [(io/vec path) (io/vec path {:chunk-size 1}) (io/seq path)]
+              opts [{} {:index-file (.getPath idx-file)} {:index-file (.getPath idx-file)}]]
+        (with-open [idx (io/hash-index coll 1 opts)]
+          (let [k5 (filter #(.contains ^String % "\tk5\t") rows)]
+            (is (= (first k5) (io/lookup idx "k5")))
+            (is (= k5 (io/lookup-all idx "k5")))
+            (is (= 70 (count k5))))
+          (is (= "x\té\ty" (io/lookup idx "é")))
+          (is (= "y\t\tempty-key" (io/lookup idx "")))
+          (is (nil? (io/lookup idx "k1001")))
+          (is (nil? (io/lookup idx "k")))
+          (is (nil? (io/lookup idx "short")))
+          (is (= [] (io/lookup-all idx "v")))))
+      ;; Long runs of one key probe across regions of the table, round its end
+      (spit f (apply str (for [i (range 40000)] (str "same," i "\n"))))
+      (with-open [idx (io/hash-index (io/vec path {:chunk-size 1}) 0 {:delimiter \,})]
+        (is (= (set (for [i (range 40000)] (str "same," i)))
+               (set (io/lookup-all idx "same")))))
+      ;; A changed file isn't looked up through its stale index
+      (spit f "1\tnew\n")
+      (with-open [idx (io/hash-index (io/vec path) 1 {:index-file (.getPath idx-file)})]
+        (is (= "1\tnew" (io/lookup idx "new")))
+        (is (nil? (io/lookup idx "k5"))))
+      ;; Other columns and delimiters
+      (spit f "a,1\nb,2\na,3\n")
+      (let [idx (io/hash-index (io/vec path) 0 {:delimiter \,})]
+        (is (= ["a,1" "a,3"] (io/lookup-all idx "a")))
+        (is (= "b,2" (io/lookup idx "b")))
+        ;; A closed index throws rather than read its released table
+        (.close idx)
+        (.close idx)
+        (is (thrown? IllegalStateException (io/lookup idx "a"))))
+      ;; An index of part of the file isn't reused for all of it
+      (with-open [idx (io/hash-index (io/subvec (io/vec path) 2) 0 {:delimiter \, :index-file (.getPath idx-file)})]
+        (is (= ["a,3"] (io/lookup-all idx "a"))))
+      (with-open [idx (io/hash-index (io/vec path) 0 {:delimiter \, :index-file (.getPath idx-file)})]
+        (is (= ["a,1" "a,3"] (io/lookup-all idx "a"))))
+      (with-open [idx (io/hash-index (io/seq path) 0 {:delimiter \, :index-file (.getPath idx-file)})]
+        (is (= ["a,1" "a,3"] (io/lookup-all idx "a"))))
+      (finally
+        (.delete f)
+        (.delete idx-file)))))